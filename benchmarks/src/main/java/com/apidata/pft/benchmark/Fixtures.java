@@ -0,0 +1,48 @@
+package com.apidata.pft.benchmark;
+
+import com.apidata.pft.PFTServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Files and servers shared by the benchmarks.
+ */
+class Fixtures {
+    static final String HOSTNAME = "localhost";
+
+    static File randomFile(String prefix, long size) throws IOException {
+        File file = File.createTempFile(prefix, ".bin");
+        file.deleteOnExit();
+        byte[] bytes = new byte[1024 * 1024];
+        Random random = new Random(size);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            for (long written = 0; written < size; written += bytes.length) {
+                random.nextBytes(bytes);
+                raf.write(bytes, 0, (int) Math.min(bytes.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Starts a server and waits until it accepts connections.
+     */
+    static Thread startServer(PFTServer server) throws InterruptedException {
+        Thread thread = new Thread(server::doWork, "pft-server");
+        thread.setDaemon(true);
+        thread.start();
+        if (!server.awaitRunning(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Server did not start");
+        }
+        return thread;
+    }
+
+    static void stopServer(Thread thread) throws InterruptedException {
+        thread.interrupt();
+        thread.join(5000);
+    }
+}
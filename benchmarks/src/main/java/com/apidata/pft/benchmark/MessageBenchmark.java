@@ -0,0 +1,105 @@
+package com.apidata.pft.benchmark;
+
+import com.apidata.pft.message.FileRangeRequestMsg;
+import com.apidata.pft.message.FileRangeResponseMsg;
+import com.apidata.pft.message.ManifestResponseMsg;
+import com.apidata.pft.message.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the frames on the hot path: the range request and response of every
+ * chunk, and a full manifest page.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBenchmark {
+    private ByteBuffer buffer;
+    private ByteBuffer rangeFrame;
+    private ByteBuffer manifestFrame;
+    private Message[] reuse;
+    private FileRangeRequestMsg request;
+    private FileRangeResponseMsg response;
+
+    @Setup
+    public void setUp() {
+        buffer = ByteBuffer.allocateDirect(2048);
+        reuse = new Message[Message.MESSAGE_TYPES];
+        request = new FileRangeRequestMsg(7, 1L << 30, 9998336, 42);
+        response = new FileRangeResponseMsg(42, 9998336);
+
+        rangeFrame = ByteBuffer.allocateDirect(2048);
+        Message.encode(request, rangeFrame);
+        rangeFrame.flip();
+
+        int count = 40;
+        String[] paths = new String[count];
+        long[] sizes = new long[count];
+        long[] lastModified = new long[count];
+        int[] fileIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            paths[i] = "logs/2024/01/" + i + "/worker.log";
+            sizes[i] = i * 4096L;
+            lastModified[i] = 1700000000000L + i;
+            fileIds[i] = i;
+        }
+        manifestFrame = ByteBuffer.allocateDirect(2048);
+        Message.encode(new ManifestResponseMsg(1, 0, 1, paths, sizes, lastModified, fileIds, 0,
+                count), manifestFrame);
+        manifestFrame.flip();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeRangeRequest() {
+        buffer.clear();
+        Message.encode(request, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeRangeResponse() {
+        buffer.clear();
+        Message.encode(response, buffer);
+        return buffer;
+    }
+
+    /**
+     * What the reactor does, reusing one message instance per type.
+     */
+    @Benchmark
+    public Message decodeRangeRequest() throws IOException {
+        rangeFrame.rewind();
+        return Message.decode(rangeFrame, reuse);
+    }
+
+    /**
+     * What the client does, allocating every message.
+     */
+    @Benchmark
+    public Message decodeRangeRequestAllocating() throws IOException {
+        rangeFrame.rewind();
+        return Message.decode(rangeFrame, null);
+    }
+
+    @Benchmark
+    public Message decodeManifestPage() throws IOException {
+        manifestFrame.rewind();
+        return Message.decode(manifestFrame, null);
+    }
+}
@@ -0,0 +1,132 @@
+package com.apidata.pft.benchmark;
+
+import com.apidata.pft.ConnectionPool;
+import com.apidata.pft.PFTChunkClient;
+import com.apidata.pft.Result;
+import com.apidata.pft.exception.SocketCloseException;
+import com.apidata.pft.message.FileRangeRequestMsg;
+import com.apidata.pft.message.FileRangeResponseMsg;
+import com.apidata.pft.message.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The client side of a chunk: a {@link PFTChunkClient} fetches a range from a stub server that
+ * streams it from memory, so the time is spent reading the socket and writing the file, through
+ * positional writes or a mapped window.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReceiveBenchmark {
+    private static final int PORT = 54302;
+
+    @Param({ "1048576", "9998336" })
+    public int chunkSize;
+
+    @Param({ "false", "true" })
+    public boolean mapped;
+
+    private ServerSocketChannel serverChannel;
+    private ConnectionPool connectionPool;
+    private File file;
+    private RandomAccessFile target;
+    private int chunkId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(Fixtures.HOSTNAME, PORT));
+        Thread thread = new Thread(this::accept, "stub-server");
+        thread.setDaemon(true);
+        thread.start();
+        connectionPool = new ConnectionPool(Fixtures.HOSTNAME, PORT, 1);
+        file = File.createTempFile("pft-receive", ".bin");
+        file.deleteOnExit();
+        target = new RandomAccessFile(file, "rw");
+        target.setLength(chunkSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        connectionPool.close();
+        serverChannel.close();
+        target.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public Result receiveChunk() {
+        PFTChunkClient pftChunkClient = new PFTChunkClient(chunkId++, connectionPool, 1,
+                chunkSize, 0, target.getChannel());
+        if (mapped) {
+            // not forced to disk, like a transfer without a journal
+            pftChunkClient.setMapped(false);
+        }
+        Result result = pftChunkClient.call();
+        if (!result.isStatus()) {
+            throw new IllegalStateException("Chunk " + result.getId() + " failed");
+        }
+        return result;
+    }
+
+    /**
+     * Answers every range request of every connection with that many bytes of a buffer.
+     */
+    private void accept() {
+        ByteBuffer payload = ByteBuffer.allocateDirect(1024 * 1024);
+        try {
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                Thread thread = new Thread(() -> serve(channel, payload.duplicate()), "stub");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            // closed by the tear down
+        }
+    }
+
+    private static void serve(SocketChannel channel, ByteBuffer payload) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(20480);
+        try (SocketChannel client = channel) {
+            while (true) {
+                FileRangeRequestMsg request =
+                        (FileRangeRequestMsg) Message.nextMsgFromSocket(client, buffer);
+                Message.sendMessage(client,
+                        new FileRangeResponseMsg(request.getChunkId(), request.getLength()));
+                for (long sent = 0; sent < request.getLength(); ) {
+                    payload.clear();
+                    payload.limit((int) Math.min(payload.capacity(),
+                            request.getLength() - sent));
+                    sent += client.write(payload);
+                }
+            }
+        } catch (IOException | SocketCloseException e) {
+            // client gone
+        }
+    }
+}
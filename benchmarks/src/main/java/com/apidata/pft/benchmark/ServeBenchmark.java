@@ -0,0 +1,126 @@
+package com.apidata.pft.benchmark;
+
+import com.apidata.pft.PFTServer;
+import com.apidata.pft.exception.SocketCloseException;
+import com.apidata.pft.message.FileRangeRequestMsg;
+import com.apidata.pft.message.FileRangeResponseMsg;
+import com.apidata.pft.message.FileRequestMsg;
+import com.apidata.pft.message.FileResponseMsg;
+import com.apidata.pft.message.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server side of a chunk: a raw connection asks a {@link PFTServer} on loopback for a range
+ * of a file in the page cache and drains what it streams back, so the time is spent in the
+ * reactor decoding, transferTo and the socket. Run with -t to have several connections at once.
+ * With ioThreads the file is read ahead by the reader threads of the server instead of sent with
+ * zero-copy transfers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServeBenchmark {
+    private static final int PORT = 54301;
+    private static final long FILE_SIZE = 64L * 1024 * 1024;
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({ "0", "4" })
+        public int ioThreads;
+
+        private File file;
+        private Thread thread;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException, InterruptedException {
+            file = Fixtures.randomFile("pft-serve", FILE_SIZE);
+            PFTServer server = new PFTServer(Fixtures.HOSTNAME, PORT);
+            server.setIoThreads(ioThreads);
+            thread = Fixtures.startServer(server);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws InterruptedException {
+            Fixtures.stopServer(thread);
+            file.delete();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        @Param({ "65536", "1048576", "9998336" })
+        public int chunkSize;
+
+        private SocketChannel channel;
+        private ByteBuffer buffer;
+        private ByteBuffer sink;
+        private int fileId;
+        private long offset;
+        private int chunkId;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws IOException, SocketCloseException {
+            channel = SocketChannel.open(new InetSocketAddress(Fixtures.HOSTNAME, PORT));
+            buffer = ByteBuffer.allocateDirect(20480);
+            sink = ByteBuffer.allocateDirect(1024 * 1024);
+            Message.sendMessage(channel, new FileRequestMsg(server.file.getAbsolutePath()));
+            fileId = ((FileResponseMsg) Message.nextMsgFromSocket(channel, buffer)).getFileId();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * One chunk, walking through the file so every call reads another range.
+     *
+     * @return the number of payload bytes received
+     */
+    @Benchmark
+    public long serveChunk(Client client) throws IOException, SocketCloseException {
+        if (client.offset + client.chunkSize > FILE_SIZE) {
+            client.offset = 0;
+        }
+        Message.sendMessage(client.channel, new FileRangeRequestMsg(client.fileId, client.offset,
+                client.chunkSize, client.chunkId++));
+        FileRangeResponseMsg response =
+                (FileRangeResponseMsg) Message.nextMsgFromSocket(client.channel, client.buffer);
+        long received = client.buffer.remaining();
+        client.buffer.position(client.buffer.limit());
+        while (received < response.getLength()) {
+            client.sink.clear();
+            client.sink.limit((int) Math.min(client.sink.capacity(),
+                    response.getLength() - received));
+            int len = client.channel.read(client.sink);
+            if (len < 0) {
+                throw new SocketCloseException("Socket closed while reading");
+            }
+            received += len;
+        }
+        client.offset += client.chunkSize;
+        return received;
+    }
+}
@@ -0,0 +1,79 @@
+package com.apidata.pft.benchmark;
+
+import com.apidata.pft.PFTClient;
+import com.apidata.pft.PFTConstants;
+import com.apidata.pft.PFTServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole download over loopback, {@link PFTClient} to {@link PFTServer}, by file size, largest
+ * piece size and number of connections. Each iteration is one transfer into a fresh file.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+    private static final int PORT = 54303;
+
+    @Param({ "16777216", "268435456" })
+    public long fileSize;
+
+    @Param({ "1048576", "" + PFTConstants.MAX_BUFFER_PER_THREAD })
+    public long maxBufferPerThread;
+
+    @Param({ "1", "4", "" + PFTClient.DEFAULT_CONNECTIONS })
+    public int connections;
+
+    private File source;
+    private File target;
+    private Thread thread;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        source = Fixtures.randomFile("pft-transfer", fileSize);
+        target = new File(source.getAbsolutePath() + ".copy");
+        target.deleteOnExit();
+        thread = Fixtures.startServer(new PFTServer(Fixtures.HOSTNAME, PORT));
+    }
+
+    @Setup(Level.Iteration)
+    public void deleteTarget() {
+        target.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        Fixtures.stopServer(thread);
+        source.delete();
+        target.delete();
+    }
+
+    @Benchmark
+    public boolean transfer() {
+        PFTClient pftClient = new PFTClient(Fixtures.HOSTNAME, PORT, source.getAbsolutePath(),
+                target.getAbsolutePath(), maxBufferPerThread, connections);
+        if (!pftClient.doWork()) {
+            throw new IllegalStateException("Transfer failed");
+        }
+        return true;
+    }
+}
@@ -0,0 +1,455 @@
+package com.apidata.pft;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BlockCache keeps blocks of served files in direct buffers, off the heap, within a fixed budget,
+ * so the many clients pulling the same file at once are served from memory instead of each
+ * reading it from disk. Blocks are blockSize bytes at aligned offsets and belong to one version
+ * (size and mtime) of the file. Their buffers are allocated as needed up to the budget and then
+ * reused, never freed.
+ * <p>
+ * Eviction is a segmented LRU: a new block enters the probation segment and only moves to the
+ * protected one, {@link #PROTECTED_SHARE} of the budget, when it is asked for again. A block read
+ * ahead is asked for once by the transfer that read it ahead, so that first request does not
+ * count; it takes another one to protect it. A scan through a large file therefore only cycles
+ * the probation segment and leaves the blocks shared by many clients in place.
+ * <p>
+ * A block is pinned while a transfer sends from it and is never evicted meanwhile. A block being
+ * loaded is already in the cache, so concurrent readers of it wait for the one read instead of
+ * each reading it.
+ * <p>
+ * The blocks are spread by path and index over up to {@link #STRIPES} stripes, each with its own
+ * lock and share of the budget, so the reactors and disk readers do not all queue on one lock.
+ */
+public class BlockCache {
+    static final double PROTECTED_SHARE = 0.8;
+    // locks the blocks are spread over, each with its share of the budget
+    static final int STRIPES = 16;
+    static final int MIN_STRIPE_BLOCKS = 16;
+
+    private final int blockSize;
+    private final int capacity;
+    private final Stripe[] stripes;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder bytesServed;
+    private final LongAdder evictions;
+
+    public BlockCache(long budget, int blockSize) {
+        this.blockSize = blockSize;
+        this.capacity = (int) Math.min(Integer.MAX_VALUE, budget / blockSize);
+        int count = Math.max(1, Math.min(STRIPES, capacity / MIN_STRIPE_BLOCKS));
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(capacity / count + (i < capacity % count ? 1 : 0));
+        }
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.bytesServed = new LongAdder();
+        this.evictions = new LongAdder();
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Returns the block of the file version at index, pinned, or null if it is not cached. The
+     * block may still be loading, see {@link Block#whenLoaded}. The bytes only count as served
+     * from the cache if the block is loaded already; one still loading is counted as a miss.
+     */
+    public Block acquire(FileHandleCache.FileHandle handle, long index, int bytes) {
+        Key key = new Key(handle.getPath(), index);
+        Block block = stripe(key).acquire(key, handle);
+        if (block == null || !block.isLoaded()) {
+            misses.increment();
+        } else {
+            hits.increment();
+            bytesServed.add(bytes);
+        }
+        return block;
+    }
+
+    /**
+     * Returns true if the block of the file version at index is cached or being loaded.
+     */
+    public boolean contains(FileHandleCache.FileHandle handle, long index) {
+        Key key = new Key(handle.getPath(), index);
+        return stripe(key).contains(key, handle);
+    }
+
+    /**
+     * Adds a block of the file version at index, pinned and loading, for the caller to read into
+     * {@link Block#getBuffer} and then report {@link #loaded}. Returns null if every buffer of
+     * the share of the budget the block falls in is pinned. A block read ahead, not asked for
+     * yet, is only protected once asked for twice.
+     */
+    public Block allocate(FileHandleCache.FileHandle handle, long index, boolean readAhead) {
+        Key key = new Key(handle.getPath(), index);
+        long length = Math.min(blockSize, handle.getSize() - index * blockSize);
+        return stripe(key).allocate(key, handle, length, readAhead);
+    }
+
+    /**
+     * Ends the load of a block and runs whoever waits for it. A block that failed to load is
+     * dropped from the cache.
+     */
+    public void loaded(Block block, IOException error) {
+        List<Runnable> waiters;
+        synchronized (block.stripe) {
+            block.loading = false;
+            block.error = error;
+            if (error != null) {
+                block.stripe.remove(block);
+            }
+            waiters = block.waiters;
+            block.waiters = null;
+        }
+        for (Runnable waiter : waiters) {
+            waiter.run();
+        }
+    }
+
+    /**
+     * Drops a block whose load could not start. Whoever waits for it finds it aborted and tries
+     * again.
+     */
+    void abort(Block block) {
+        synchronized (block.stripe) {
+            block.aborted = true;
+            block.stripe.remove(block);
+        }
+        loaded(block, null);
+    }
+
+    /**
+     * Unpins the block.
+     */
+    public void release(Block block) {
+        block.stripe.release(block);
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getBytesServed() {
+        return bytesServed.sum();
+    }
+
+    long getBytesCached() {
+        long cached = 0;
+        for (Stripe stripe : stripes) {
+            cached += stripe.size();
+        }
+        return cached * blockSize;
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "blocks=" + getBytesCached() / blockSize + "/" + capacity + " in " + stripes.length
+                + " stripes, hits=" + hits + ", misses=" + misses + ", served=" + bytesServed
+                + ", evictions=" + evictions;
+    }
+
+    private Stripe stripe(Key key) {
+        return stripes[Math.floorMod(key.hashCode(), stripes.length)];
+    }
+
+    /**
+     * The blocks whose keys hash to one stripe, with their own share of the budget, eviction
+     * segments and free buffers, all guarded by the stripe.
+     */
+    private class Stripe {
+        private final int capacity;
+        private final int protectedCapacity;
+        private final Map<Key, Block> blocks;
+        private final Segment probation;
+        private final Segment protect;
+        private final Queue<ByteBuffer> free;
+        private int allocated;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = (int) (capacity * PROTECTED_SHARE);
+            this.blocks = new HashMap<>();
+            this.probation = new Segment();
+            this.protect = new Segment();
+            this.free = new ArrayDeque<>();
+        }
+
+        synchronized Block acquire(Key key, FileHandleCache.FileHandle handle) {
+            Block block = find(key, handle);
+            if (block == null) {
+                return null;
+            }
+            block.pins++;
+            if (block.readAhead) {
+                // the request it was read ahead for, not a second one
+                block.readAhead = false;
+                probation.remove(block);
+                probation.addFirst(block);
+            } else if (block.segment == probation) {
+                // asked for again, worth protecting
+                probation.remove(block);
+                protect.addFirst(block);
+                while (protect.size > protectedCapacity) {
+                    Block demoted = protect.removeLast();
+                    probation.addFirst(demoted);
+                }
+            } else {
+                protect.remove(block);
+                protect.addFirst(block);
+            }
+            return block;
+        }
+
+        synchronized boolean contains(Key key, FileHandleCache.FileHandle handle) {
+            return find(key, handle) != null;
+        }
+
+        synchronized Block allocate(Key key, FileHandleCache.FileHandle handle, long length,
+                boolean readAhead) {
+            ByteBuffer buffer = free.poll();
+            if (buffer == null && allocated < capacity) {
+                buffer = ByteBuffer.allocateDirect(blockSize);
+                allocated++;
+            }
+            if (buffer == null) {
+                Block victim = probation.findEvictable();
+                if (victim == null) {
+                    victim = protect.findEvictable();
+                }
+                if (victim == null) {
+                    return null;
+                }
+                remove(victim);
+                evictions.increment();
+                buffer = free.poll();
+            }
+            buffer.clear();
+            buffer.limit((int) Math.max(0, length));
+            Block block = new Block(this, key, handle.getSize(), handle.getLastModified(), buffer);
+            block.pins = 1;
+            block.readAhead = readAhead;
+            Block stale = blocks.get(key);
+            if (stale != null) {
+                remove(stale);
+            }
+            blocks.put(key, block);
+            probation.addFirst(block);
+            return block;
+        }
+
+        synchronized void release(Block block) {
+            block.pins--;
+            if (block.pins == 0 && block.removed) {
+                free.add(block.buffer);
+            }
+        }
+
+        synchronized int size() {
+            return blocks.size();
+        }
+
+        private Block find(Key key, FileHandleCache.FileHandle handle) {
+            Block block = blocks.get(key);
+            if (block == null) {
+                return null;
+            }
+            if (block.size != handle.getSize()
+                    || block.lastModified != handle.getLastModified()) {
+                // an older version of the file
+                if (block.pins == 0) {
+                    remove(block);
+                }
+                return null;
+            }
+            return block;
+        }
+
+        /**
+         * Takes the block out of the cache, its buffer goes back to the free list once unpinned.
+         */
+        private void remove(Block block) {
+            if (block.removed) {
+                return;
+            }
+            block.removed = true;
+            blocks.remove(block.key, block);
+            block.segment.remove(block);
+            if (block.pins == 0) {
+                free.add(block.buffer);
+            }
+        }
+    }
+
+    private static class Key {
+        private final String path;
+        private final long index;
+
+        Key(String path, long index) {
+            this.path = path;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return index == other.index && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, index);
+        }
+    }
+
+    /**
+     * A cached block, its fields are guarded by its stripe.
+     */
+    public class Block {
+        private final Stripe stripe;
+        private final Key key;
+        private final long size;
+        private final long lastModified;
+        private final ByteBuffer buffer;
+        private Segment segment;
+        private Block prev;
+        private Block next;
+        private int pins;
+        private boolean loading = true;
+        private boolean readAhead;
+        private boolean aborted;
+        private boolean removed;
+        private IOException error;
+        private List<Runnable> waiters = new ArrayList<>();
+
+        Block(Stripe stripe, Key key, long size, long lastModified, ByteBuffer buffer) {
+            this.stripe = stripe;
+            this.key = key;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Returns a view of the bytes of the block, to be read from once loaded or written to by
+         * the loader.
+         */
+        public ByteBuffer getBuffer() {
+            synchronized (stripe) {
+                return buffer.duplicate();
+            }
+        }
+
+        /**
+         * Runs the task once the block is loaded, right away if it is.
+         */
+        void whenLoaded(Runnable task) {
+            synchronized (stripe) {
+                if (loading) {
+                    waiters.add(task);
+                    return;
+                }
+            }
+            task.run();
+        }
+
+        boolean isLoaded() {
+            synchronized (stripe) {
+                return !loading;
+            }
+        }
+
+        boolean isAborted() {
+            synchronized (stripe) {
+                return aborted;
+            }
+        }
+
+        IOException getError() {
+            synchronized (stripe) {
+                return error;
+            }
+        }
+    }
+
+    /**
+     * A doubly linked list of blocks, most recently used first.
+     */
+    private static class Segment {
+        private Block head;
+        private Block tail;
+        private int size;
+
+        void addFirst(Block block) {
+            block.segment = this;
+            block.prev = null;
+            block.next = head;
+            if (head != null) {
+                head.prev = block;
+            }
+            head = block;
+            if (tail == null) {
+                tail = block;
+            }
+            size++;
+        }
+
+        void remove(Block block) {
+            if (block.prev != null) {
+                block.prev.next = block.next;
+            } else {
+                head = block.next;
+            }
+            if (block.next != null) {
+                block.next.prev = block.prev;
+            } else {
+                tail = block.prev;
+            }
+            block.prev = null;
+            block.next = null;
+            size--;
+        }
+
+        Block removeLast() {
+            Block block = tail;
+            remove(block);
+            return block;
+        }
+
+        /**
+         * Returns the least recently used block that is neither pinned nor loading.
+         */
+        Block findEvictable() {
+            for (Block block = tail; block != null; block = block.prev) {
+                if (block.pins == 0 && !block.loading) {
+                    return block;
+                }
+            }
+            return null;
+        }
+    }
+}
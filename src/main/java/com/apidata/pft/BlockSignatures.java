@@ -0,0 +1,38 @@
+package com.apidata.pft;
+
+/**
+ * The rolling and strong checksums of every blockSize block of a file, the last block being
+ * shorter, as used by delta transfers.
+ */
+class BlockSignatures {
+    private final int blockSize;
+    private final int[] rolling;
+    private final long[] strong;
+
+    BlockSignatures(int blockSize, int count) {
+        this.blockSize = blockSize;
+        this.rolling = new int[count];
+        this.strong = new long[count];
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    int getCount() {
+        return rolling.length;
+    }
+
+    int[] getRolling() {
+        return rolling;
+    }
+
+    long[] getStrong() {
+        return strong;
+    }
+
+    void set(int block, int rolling, long strong) {
+        this.rolling[block] = rolling;
+        this.strong[block] = strong;
+    }
+}
@@ -0,0 +1,80 @@
+package com.apidata.pft;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * BlockVerifier checks the bytes of a range against the block checksums sent by the server while
+ * they arrive, so corrupted blocks are known as soon as the range is in. Bytes must be fed in
+ * order. Blocks the range only partly covers cannot be checked and are skipped.
+ */
+class BlockVerifier {
+    private final long fileSize;
+    private final int blockSize;
+    private final long rangeStart;
+    private final long firstBlock;
+    private final int[] checksums;
+    private final CRC32 crc;
+    private final List<Long> failedBlocks;
+    private long next;
+    private int verifiedBlocks;
+
+    /**
+     * @param checksums the checksums of the blocks overlapping the range, starting with the block
+     *                  holding rangeStart
+     */
+    BlockVerifier(long fileSize, int blockSize, long rangeStart, int[] checksums) {
+        this.fileSize = fileSize;
+        this.blockSize = blockSize;
+        this.rangeStart = rangeStart;
+        this.firstBlock = rangeStart / blockSize;
+        this.checksums = checksums;
+        this.crc = new CRC32();
+        this.failedBlocks = new ArrayList<>();
+        this.next = rangeStart;
+    }
+
+    /**
+     * Feeds the readable bytes of the buffer, which belong at the next position of the range.
+     * The buffer position and limit are left as they were.
+     */
+    void update(ByteBuffer buffer) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        while (buffer.position() < limit) {
+            long block = next / blockSize;
+            long blockEnd = Math.min((block + 1) * blockSize, fileSize);
+            int len = (int) Math.min(limit - buffer.position(), blockEnd - next);
+            buffer.limit(buffer.position() + len);
+            crc.update(buffer);
+            next += len;
+            if (next == blockEnd) {
+                finish(block);
+            }
+        }
+        buffer.limit(limit);
+        buffer.position(position);
+    }
+
+    List<Long> getFailedBlocks() {
+        return failedBlocks;
+    }
+
+    int getVerifiedBlocks() {
+        return verifiedBlocks;
+    }
+
+    private void finish(long block) {
+        // a block starting before the range was only partly seen
+        if (block * blockSize >= rangeStart) {
+            if ((int) crc.getValue() == checksums[(int) (block - firstBlock)]) {
+                verifiedBlocks++;
+            } else {
+                failedBlocks.add(block);
+            }
+        }
+        crc.reset();
+    }
+}
@@ -0,0 +1,151 @@
+package com.apidata.pft;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BufferPool hands out direct ByteBuffers in power of two size classes, from 2 KB to 1 MB, so that
+ * socket IO needs no copy through a temporary direct buffer and a steady transfer allocates
+ * nothing. Each thread keeps a few released buffers of every class for itself and the rest go back
+ * to a shared free list. Larger requests are allocated as they come and not pooled.
+ * <p>
+ * Acquired minus released buffers are in use; once transfers end this should be back to the
+ * buffers held by idle connections, anything above that is a leak.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 11;
+    private static final int MAX_SHIFT = 20;
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+    private static final int THREAD_CACHE_SIZE = 4;
+    private static final int MAX_SHARED = 64;
+    private static final BufferPool SHARED = new BufferPool();
+
+    private final Queue<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCounts;
+    private final ThreadLocal<ThreadCache> cache;
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool() {
+        this.free = new Queue[CLASSES];
+        this.freeCounts = new AtomicInteger[CLASSES];
+        for (int i = 0; i < CLASSES; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            freeCounts[i] = new AtomicInteger();
+        }
+        this.cache = ThreadLocal.withInitial(ThreadCache::new);
+    }
+
+    /**
+     * The pool shared by the client and server of this JVM.
+     */
+    public static BufferPool getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns a cleared direct buffer with a capacity of at least size bytes, to be handed back
+     * with {@link #release}.
+     */
+    public ByteBuffer acquire(int size) {
+        acquired.incrementAndGet();
+        int sizeClass = sizeClass(size);
+        if (sizeClass < 0) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(size);
+        }
+        ThreadCache local = cache.get();
+        ByteBuffer buffer = local.poll(sizeClass);
+        if (buffer == null) {
+            buffer = free[sizeClass].poll();
+            if (buffer != null) {
+                freeCounts[sizeClass].decrementAndGet();
+            }
+        }
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        released.incrementAndGet();
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass < 0 || !buffer.isDirect() || capacity != 1 << (sizeClass + MIN_SHIFT)) {
+            return;
+        }
+        if (cache.get().offer(sizeClass, buffer)) {
+            return;
+        }
+        if (freeCounts[sizeClass].incrementAndGet() <= MAX_SHARED) {
+            free[sizeClass].add(buffer);
+        } else {
+            // enough spare buffers of this size, let the GC have it
+            freeCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    /**
+     * Number of buffers allocated since the start, reused ones are not counted again.
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    public long getReleased() {
+        return released.get();
+    }
+
+    public long getInUse() {
+        return acquired.get() - released.get();
+    }
+
+    @Override
+    public String toString() {
+        return "allocated=" + allocated + ", acquired=" + acquired + ", released=" + released
+                + ", inUse=" + getInUse();
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+
+    private static class ThreadCache {
+        private final ByteBuffer[][] buffers = new ByteBuffer[CLASSES][THREAD_CACHE_SIZE];
+        private final int[] counts = new int[CLASSES];
+
+        ByteBuffer poll(int sizeClass) {
+            if (counts[sizeClass] == 0) {
+                return null;
+            }
+            int index = --counts[sizeClass];
+            ByteBuffer buffer = buffers[sizeClass][index];
+            buffers[sizeClass][index] = null;
+            return buffer;
+        }
+
+        boolean offer(int sizeClass, ByteBuffer buffer) {
+            if (counts[sizeClass] == THREAD_CACHE_SIZE) {
+                return false;
+            }
+            buffers[sizeClass][counts[sizeClass]++] = buffer;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.apidata.pft;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * ChecksumStore provides the CRC32 of every {@link PFTConstants#CHECKSUM_BLOCK_SIZE} block of a
+ * served file. Checksums are computed once per version (size and mtime) of a file, reading groups
+ * of blocks in parallel, and kept in memory for the most recent files. They are also saved next
+ * to the file as {@code <file>.pft-crc} when the directory is writable, so they survive a
+ * restart. The computation runs off the reactor threads; callers get a future.
+ */
+class ChecksumStore extends FileVersionCache<int[]> {
+    private static final Logger LOG = LoggerFactory.getLogger(ChecksumStore.class);
+    private static final long MAGIC = 0x5046544352433201L;
+    private static final int HEADER_SIZE = 28;
+    private static final int BLOCKS_PER_TASK = 16;
+    static final String SUFFIX = ".pft-crc";
+
+    private final int blockSize;
+
+    ChecksumStore(int blockSize) {
+        super("pft-checksum");
+        this.blockSize = blockSize;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Loads the checksums saved next to the file, or computes them.
+     */
+    @Override
+    int[] compute(FileHandleCache.FileHandle handle) {
+        File sidecar = new File(handle.getPath() + SUFFIX);
+        int[] checksums = load(sidecar, handle);
+        if (checksums != null) {
+            return checksums;
+        }
+        long startTime = System.currentTimeMillis();
+        checksums = computeChecksums(handle.getChannel(), handle.getSize());
+        LOG.info("Computed {} block checksums of {} in {} msecs", checksums.length,
+                handle.getPath(), System.currentTimeMillis() - startTime);
+        save(sidecar, handle, checksums);
+        return checksums;
+    }
+
+    private int[] computeChecksums(FileChannel channel, long size) {
+        int blocks = (int) ((size + blockSize - 1) / blockSize);
+        int[] checksums = new int[blocks];
+        int tasks = (blocks + BLOCKS_PER_TASK - 1) / BLOCKS_PER_TASK;
+        IntStream.range(0, tasks).parallel().forEach(task -> {
+            ByteBuffer buffer = BufferPool.getShared().acquire(blockSize);
+            CRC32 crc = new CRC32();
+            int last = Math.min(blocks, (task + 1) * BLOCKS_PER_TASK);
+            try {
+                for (int block = task * BLOCKS_PER_TASK; block < last; block++) {
+                    long position = (long) block * blockSize;
+                    buffer.clear();
+                    buffer.limit((int) Math.min(blockSize, size - position));
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, position + buffer.position()) < 0) {
+                            throw new IOException("File shrunk while computing checksums");
+                        }
+                    }
+                    buffer.flip();
+                    crc.reset();
+                    crc.update(buffer);
+                    checksums[block] = (int) crc.getValue();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                BufferPool.getShared().release(buffer);
+            }
+        });
+        return checksums;
+    }
+
+    private int[] load(File sidecar, FileHandleCache.FileHandle handle) {
+        if (!sidecar.exists()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(sidecar.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                // read the whole file
+            }
+            buffer.flip();
+            if (buffer.remaining() < HEADER_SIZE || buffer.getLong() != MAGIC
+                    || buffer.getLong() != handle.getSize()
+                    || buffer.getLong() != handle.getLastModified()
+                    || buffer.getInt() != blockSize) {
+                return null;
+            }
+            IntBuffer ints = buffer.asIntBuffer();
+            int[] checksums = new int[(int) ((handle.getSize() + blockSize - 1) / blockSize)];
+            if (ints.remaining() != checksums.length) {
+                return null;
+            }
+            ints.get(checksums);
+            LOG.debug("Loaded block checksums of {}", handle.getPath());
+            return checksums;
+        } catch (IOException e) {
+            LOG.warn("Unable to read {}", sidecar, e);
+            return null;
+        }
+    }
+
+    private void save(File sidecar, FileHandleCache.FileHandle handle, int[] checksums) {
+        File tmp = new File(sidecar.getPath() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + checksums.length * 4);
+        buffer.putLong(MAGIC).putLong(handle.getSize()).putLong(handle.getLastModified())
+                .putInt(blockSize);
+        buffer.asIntBuffer().put(checksums);
+        buffer.position(buffer.capacity());
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            // read-only directories just keep the checksums in memory
+            LOG.debug("Unable to save block checksums next to {}", handle.getPath(), e);
+            tmp.delete();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.debug("Unable to save block checksums next to {}", handle.getPath(), e);
+            tmp.delete();
+        }
+    }
+}
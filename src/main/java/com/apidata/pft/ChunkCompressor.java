@@ -0,0 +1,104 @@
+package com.apidata.pft;
+
+import com.apidata.pft.message.FileRangeResponseMsg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+
+/**
+ * ChunkCompressor turns the payload of a range into independent deflated frames of up to
+ * {@link PFTConstants#COMPRESSION_FRAME_SIZE} raw bytes, see {@link FileRangeResponseMsg}. A
+ * frame that does not shrink is stored as is. Each {@link Reactor} owns one and uses it from its
+ * own thread only, so the scratch arrays are shared by all of its transfers. The bytes before and
+ * after compression are also recorded in the {@link ServerMetrics}.
+ */
+class ChunkCompressor {
+    private final Deflater deflater;
+    private final byte[] raw;
+    private final byte[] compressed;
+    private final ServerMetrics metrics;
+    private long rawBytes;
+    private long compressedBytes;
+
+    ChunkCompressor(ServerMetrics metrics) {
+        this.metrics = metrics;
+        this.deflater = new Deflater(Deflater.BEST_SPEED);
+        this.raw = new byte[PFTConstants.COMPRESSION_FRAME_SIZE];
+        this.compressed = new byte[PFTConstants.COMPRESSION_FRAME_SIZE];
+    }
+
+    /**
+     * Returns a buffer large enough for any frame, to be released to the {@link BufferPool}.
+     */
+    static ByteBuffer acquireFrame() {
+        ByteBuffer frame = BufferPool.getShared().acquire(
+                PFTConstants.COMPRESSION_FRAME_SIZE + FileRangeResponseMsg.FRAME_HEADER_SIZE);
+        frame.limit(0);
+        return frame;
+    }
+
+    /**
+     * Reads the next frame of the file at position and puts it into the frame buffer, ready for
+     * writing.
+     *
+     * @return the number of raw bytes the frame carries
+     */
+    int compress(FileChannel channel, long position, long remaining, ByteBuffer frame)
+            throws IOException {
+        int length = (int) Math.min(raw.length, remaining);
+        ByteBuffer buffer = ByteBuffer.wrap(raw, 0, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("File shrunk while compressing");
+            }
+        }
+        deflate(length, frame);
+        return length;
+    }
+
+    /**
+     * Takes the next frame from the bytes read ahead into source and puts it into the frame
+     * buffer, ready for writing.
+     *
+     * @return the number of raw bytes the frame carries
+     */
+    int compress(ByteBuffer source, ByteBuffer frame) {
+        int length = Math.min(raw.length, source.remaining());
+        source.get(raw, 0, length);
+        deflate(length, frame);
+        return length;
+    }
+
+    private void deflate(int length, ByteBuffer frame) {
+        deflater.reset();
+        deflater.setInput(raw, 0, length);
+        deflater.finish();
+        int size = deflater.deflate(compressed, 0, length);
+        frame.clear();
+        frame.putInt(length);
+        if (deflater.finished() && size < length) {
+            frame.putInt(size).put(compressed, 0, size);
+        } else {
+            frame.putInt(length).put(raw, 0, length);
+        }
+        frame.flip();
+        int frameBytes = frame.remaining() - FileRangeResponseMsg.FRAME_HEADER_SIZE;
+        rawBytes += length;
+        compressedBytes += frameBytes;
+        metrics.compressed(length, frameBytes);
+    }
+
+    long getRawBytes() {
+        return rawBytes;
+    }
+
+    long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    void close() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,101 @@
+package com.apidata.pft;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * ChunkReceiver takes the payload of an upload piece off a connection of a {@link Reactor} and
+ * writes it to the file of the {@link UploadStore.Upload} at its offset. The bytes that came in
+ * with the request are taken from the read buffer of the connection, the rest is read straight
+ * from the socket into a pooled buffer of its own. The writes go to the page cache, the file is
+ * only synced on commit.
+ */
+class ChunkReceiver {
+    private final UploadStore.Upload upload;
+    private final long offset;
+    private final long length;
+    private final int chunkId;
+    private long position;
+    private ByteBuffer buffer;
+
+    ChunkReceiver(UploadStore.Upload upload, long offset, long length, int chunkId) {
+        this.upload = upload;
+        this.offset = offset;
+        this.length = length;
+        this.chunkId = chunkId;
+        this.position = offset;
+    }
+
+    UploadStore.Upload getUpload() {
+        return upload;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    int getChunkId() {
+        return chunkId;
+    }
+
+    boolean isDone() {
+        return position == offset + length;
+    }
+
+    /**
+     * Writes the payload bytes buffered from, a buffer ready for reading, up to the end of the
+     * piece.
+     */
+    void drain(ByteBuffer from) throws IOException {
+        int count = (int) Math.min(from.remaining(), offset + length - position);
+        if (count == 0) {
+            return;
+        }
+        ByteBuffer payload = from.slice();
+        payload.limit(count);
+        upload.write(payload, position);
+        from.position(from.position() + count);
+        position += count;
+    }
+
+    /**
+     * Reads and writes what the socket has of the payload.
+     *
+     * @return false if the client closed the connection
+     */
+    boolean receive(SocketChannel channel) throws IOException {
+        if (buffer == null) {
+            buffer = BufferPool.getShared().acquire(PFTConstants.STREAM_BUFFER_SIZE);
+        }
+        while (!isDone()) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), offset + length - position));
+            int len = channel.read(buffer);
+            if (len < 0) {
+                return false;
+            }
+            if (len == 0) {
+                break;
+            }
+            buffer.flip();
+            upload.write(buffer, position);
+            position += len;
+        }
+        return true;
+    }
+
+    /**
+     * Hands the buffer back to the {@link BufferPool}.
+     */
+    void close() {
+        if (buffer != null) {
+            BufferPool.getShared().release(buffer);
+            buffer = null;
+        }
+    }
+}
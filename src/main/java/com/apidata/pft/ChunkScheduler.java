@@ -0,0 +1,497 @@
+package com.apidata.pft;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChunkScheduler hands out the ranges of a file to a fixed set of workers. Each worker starts
+ * with a contiguous share of the file and takes pieces from the front of it; a worker whose share
+ * is used up steals the back half of the largest share left, so fast streams take over the tail
+ * of slow ones. Piece sizes follow the throughput measured per worker: a piece is sized to take
+ * about {@link PFTConstants#TARGET_PIECE_MILLIS}, between minPieceSize and maxPieceSize.
+ * <p>
+ * The scheduler may cover only some ranges of the file, e.g. those missing when resuming. These
+ * are laid end to end in a virtual space that the workers share out; a piece never crosses the
+ * end of a range. With an alignment, shares and pieces start and end on multiples of it within
+ * the file, e.g. so that each checksum block is fetched by a single piece.
+ * <p>
+ * A piece may be fetched by several attempts: retries after a failure, and a hedge started by an
+ * idle worker once the piece runs well past the p95 time per byte of the pieces completed so far.
+ * Every attempt starts where the earlier ones got to; the first one to reach the end completes
+ * the piece and the others are cancelled.
+ * <p>
+ * A worker may retire, e.g. once the server it fetches from is given up on. The piece it failed
+ * is handed out again as it is, and its share goes whole to the next worker out of pieces. The
+ * same goes for the share of a worker parked by a {@link StreamController}, until it is back.
+ */
+class ChunkScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkScheduler.class);
+    private static final double EWMA_WEIGHT = 0.3;
+    private static final int LATENCY_SAMPLES = 64;
+    private static final int HEDGE_MIN_SAMPLES = 4;
+    private static final double HEDGE_FACTOR = 2;
+    private static final long HEDGE_MIN_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    static final long HEDGE_POLL_MILLIS = 20;
+
+    private final long[] rangeOffsets;
+    private final long[] rangeStarts;
+    private final long[] next;
+    private final long[] end;
+    private final double[] bytesPerSec;
+    private final long minPieceSize;
+    private final long maxPieceSize;
+    private final long alignment;
+    private final long total;
+    private final List<Range> inFlight;
+    private final Queue<Range> requeued;
+    private final boolean[] retired;
+    private final boolean[] parked;
+    private int live;
+    private final double[] nanosPerByte;
+    private int latencySamples;
+    private int nextChunkId;
+    private int steals;
+    private int hedges;
+    private int retries;
+
+    ChunkScheduler(long fileSize, int workers, long minPieceSize, long maxPieceSize) {
+        this(Collections.singletonList(new long[] { 0, fileSize }), workers, minPieceSize,
+                maxPieceSize, 1);
+    }
+
+    /**
+     * @param ranges the [offset, length] pairs to fetch, in ascending order
+     */
+    ChunkScheduler(List<long[]> ranges, int workers, long minPieceSize, long maxPieceSize,
+            long alignment) {
+        this.rangeOffsets = new long[ranges.size()];
+        this.rangeStarts = new long[ranges.size() + 1];
+        for (int i = 0; i < ranges.size(); i++) {
+            rangeOffsets[i] = ranges.get(i)[0];
+            rangeStarts[i + 1] = rangeStarts[i] + ranges.get(i)[1];
+        }
+        this.total = rangeStarts[ranges.size()];
+        this.alignment = Math.max(1, alignment);
+        this.next = new long[workers];
+        this.end = new long[workers];
+        this.bytesPerSec = new double[workers];
+        this.maxPieceSize = Math.max(1, maxPieceSize);
+        this.minPieceSize = Math.max(1, Math.min(minPieceSize, this.maxPieceSize));
+        this.inFlight = new ArrayList<>();
+        this.requeued = new ArrayDeque<>();
+        this.retired = new boolean[workers];
+        this.parked = new boolean[workers];
+        this.live = workers;
+        this.nanosPerByte = new double[LATENCY_SAMPLES];
+        long share = total / workers;
+        for (int i = 0; i < workers; i++) {
+            next[i] = align(i * share);
+            end[i] = i == workers - 1 ? total : align((i + 1) * share);
+        }
+    }
+
+    /**
+     * Returns the next piece the worker should fetch, or null once the whole file is handed out.
+     */
+    synchronized Range next(int worker) {
+        Range requeue = requeued.poll();
+        if (requeue != null) {
+            requeue.startNanos = System.nanoTime();
+            return requeue;
+        }
+        if (next[worker] >= end[worker] && !steal(worker)) {
+            return null;
+        }
+        long size = pieceSize(worker);
+        // do not leave a sliver behind that would cost a request of its own
+        if (end[worker] - next[worker] < size + minPieceSize) {
+            size = end[worker] - next[worker];
+        }
+        int index = rangeIndex(next[worker]);
+        size = Math.min(end[worker], align(next[worker] + size)) - next[worker];
+        size = Math.min(size, rangeStarts[index + 1] - next[worker]);
+        Range range = new Range(nextChunkId++,
+                rangeOffsets[index] + next[worker] - rangeStarts[index], size);
+        next[worker] += size;
+        range.startNanos = System.nanoTime();
+        inFlight.add(range);
+        return range;
+    }
+
+    /**
+     * Waits for a piece in flight to straggle and returns it for the caller to hedge, or returns
+     * null once the file is drained or work of a retired worker is to be handed out again. Each
+     * piece is hedged at most once.
+     */
+    synchronized Range awaitHedge() throws InterruptedException {
+        while (!isDrained() && !orphaned()) {
+            Range straggler = pollHedge();
+            if (straggler != null) {
+                return straggler;
+            }
+            wait(HEDGE_POLL_MILLIS);
+        }
+        return null;
+    }
+
+    /**
+     * Returns a piece in flight to hedge if one straggles right now, without waiting.
+     */
+    synchronized Range pollHedge() {
+        Range straggler = findStraggler(System.nanoTime());
+        if (straggler != null) {
+            straggler.hedged = true;
+            hedges++;
+            LOG.debug("Hedging chunk {} after {} msecs", straggler.chunkId,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - straggler.startNanos));
+        }
+        return straggler;
+    }
+
+    /**
+     * Returns true once the whole file is handed out and every piece is complete or abandoned.
+     */
+    synchronized boolean isDrained() {
+        if (!inFlight.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < next.length; i++) {
+            if (next[i] < end[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Takes the worker out of the transfer. The piece it was fetching, if any and not complete,
+     * is handed out again to the other workers, as is the rest of its share.
+     *
+     * @return false if no worker is left to take them over
+     */
+    synchronized boolean retire(int worker, Range range) {
+        if (!retired[worker]) {
+            retired[worker] = true;
+            live--;
+        }
+        if (live == 0) {
+            return false;
+        }
+        if (range != null && !range.done && !requeued.contains(range)) {
+            requeued.add(range);
+        }
+        LOG.debug("Worker-{} retired, {} workers left", worker, live);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Parks the worker, whose share is then taken whole by the next worker out of pieces, or has
+     * it back.
+     */
+    synchronized void setParked(int worker, boolean parked) {
+        this.parked[worker] = parked;
+        notifyAll();
+    }
+
+    /**
+     * Returns true while pieces or shares of retired or parked workers wait for another worker.
+     */
+    private boolean orphaned() {
+        if (!requeued.isEmpty()) {
+            return true;
+        }
+        for (int i = 0; i < retired.length; i++) {
+            if ((retired[i] || parked[i]) && next[i] < end[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the file offset a new attempt at the piece should start from: the bytes written by
+     * earlier attempts are kept, back to the last aligned offset. Returns -1 once the piece is
+     * complete.
+     */
+    synchronized long resumeFrom(Range range) {
+        if (range.done) {
+            return -1;
+        }
+        long covered = range.covered;
+        for (Attempt attempt : range.attempts) {
+            covered = Math.max(covered, attempt.start + attempt.client.getFetched());
+        }
+        return Math.max(range.offset, covered / alignment * alignment);
+    }
+
+    /**
+     * Registers an attempt at the piece, unless it is complete already.
+     */
+    synchronized boolean start(Range range, long start, Fetch client) {
+        if (range.done) {
+            return false;
+        }
+        range.attempts.add(new Attempt(start, client, System.nanoTime()));
+        return true;
+    }
+
+    /**
+     * Records the end of an attempt. The first successful attempt completes the piece, feeds the
+     * throughput of the worker and the latency samples, and cancels the other attempts.
+     *
+     * @return true if this attempt completed the piece
+     */
+    synchronized boolean finish(int worker, Range range, Fetch client, boolean status) {
+        Attempt attempt = null;
+        for (Attempt a : range.attempts) {
+            if (a.client == client) {
+                attempt = a;
+            }
+        }
+        range.attempts.remove(attempt);
+        if (range.done || attempt == null) {
+            return false;
+        }
+        if (!status) {
+            range.covered = Math.max(range.covered, attempt.start + client.getFetched());
+            return false;
+        }
+        range.done = true;
+        inFlight.remove(range);
+        long bytes = range.offset + range.length - attempt.start;
+        long nanos = System.nanoTime() - attempt.startNanos;
+        complete(worker, bytes, nanos);
+        if (bytes > 0) {
+            nanosPerByte[latencySamples++ % LATENCY_SAMPLES] = nanos / (double) bytes;
+        }
+        for (Attempt other : range.attempts) {
+            other.client.cancel();
+        }
+        range.attempts.clear();
+        notifyAll();
+        return true;
+    }
+
+    synchronized boolean isDone(Range range) {
+        return range.done;
+    }
+
+    /**
+     * Gives up on a piece, the transfer is failing anyway.
+     */
+    synchronized void abandon(Range range) {
+        inFlight.remove(range);
+        notifyAll();
+    }
+
+    synchronized void retried() {
+        retries++;
+    }
+
+    /**
+     * Feeds the time a worker took for a piece into its throughput estimate.
+     */
+    synchronized void complete(int worker, long bytes, long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        double sample = bytes * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+        bytesPerSec[worker] = bytesPerSec[worker] == 0 ?
+                sample :
+                EWMA_WEIGHT * sample + (1 - EWMA_WEIGHT) * bytesPerSec[worker];
+    }
+
+    synchronized int getSteals() {
+        return steals;
+    }
+
+    synchronized int getHedges() {
+        return hedges;
+    }
+
+    synchronized int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Returns the bytes not handed out as pieces yet.
+     */
+    synchronized long getQueuedBytes() {
+        long queued = 0;
+        for (int i = 0; i < next.length; i++) {
+            queued += Math.max(0, end[i] - next[i]);
+        }
+        return queued;
+    }
+
+    /**
+     * Returns the piece in flight that overran its expected time the most, if any did: the p95
+     * time per byte seen so far, times the length of the piece and {@link #HEDGE_FACTOR}.
+     */
+    private Range findStraggler(long now) {
+        int samples = Math.min(latencySamples, LATENCY_SAMPLES);
+        if (samples < HEDGE_MIN_SAMPLES) {
+            return null;
+        }
+        double[] sorted = Arrays.copyOf(nanosPerByte, samples);
+        Arrays.sort(sorted);
+        double p95 = sorted[(int) Math.ceil(samples * 0.95) - 1];
+        Range straggler = null;
+        double worst = 1;
+        for (Range range : inFlight) {
+            if (range.hedged || range.attempts.isEmpty()) {
+                continue;
+            }
+            double expected = Math.max(HEDGE_MIN_NANOS, HEDGE_FACTOR * p95 * range.length);
+            double overrun = (now - range.startNanos) / expected;
+            if (overrun > worst) {
+                worst = overrun;
+                straggler = range;
+            }
+        }
+        return straggler;
+    }
+
+    /**
+     * Moves a virtual position forward to the next aligned file offset, or to the end of its
+     * range if that comes first.
+     */
+    private long align(long position) {
+        if (alignment == 1 || position >= total) {
+            return Math.min(position, total);
+        }
+        int index = rangeIndex(position);
+        long offset = rangeOffsets[index] + position - rangeStarts[index];
+        long aligned = (offset + alignment - 1) / alignment * alignment;
+        return Math.min(rangeStarts[index] + aligned - rangeOffsets[index],
+                rangeStarts[index + 1]);
+    }
+
+    /**
+     * Finds the range the virtual position falls in.
+     */
+    private int rangeIndex(long position) {
+        int index = Arrays.binarySearch(rangeStarts, position);
+        index = index >= 0 ? index : -index - 2;
+        // skip empty ranges sharing the same start
+        while (rangeStarts[index + 1] <= position) {
+            index++;
+        }
+        return index;
+    }
+
+    private long pieceSize(int worker) {
+        if (bytesPerSec[worker] == 0) {
+            // nothing measured yet, start large
+            return maxPieceSize;
+        }
+        long size = (long) (bytesPerSec[worker] * PFTConstants.TARGET_PIECE_MILLIS / 1000);
+        return Math.max(minPieceSize, Math.min(maxPieceSize, size));
+    }
+
+    private boolean steal(int worker) {
+        // the share of a retired or parked worker is taken whole
+        for (int i = 0; i < retired.length; i++) {
+            if ((retired[i] || parked[i]) && next[i] < end[i]) {
+                next[worker] = next[i];
+                end[worker] = end[i];
+                next[i] = end[i];
+                steals++;
+                LOG.debug("Worker-{} took [{}, {}) over from worker-{}", worker, next[worker],
+                        end[worker], i);
+                return true;
+            }
+        }
+        int victim = -1;
+        long largest = 0;
+        for (int i = 0; i < next.length; i++) {
+            long left = end[i] - next[i];
+            if (left > largest) {
+                largest = left;
+                victim = i;
+            }
+        }
+        if (victim < 0 || largest < 2 * minPieceSize) {
+            return false;
+        }
+        long split = align(next[victim] + largest / 2);
+        if (split >= end[victim]) {
+            return false;
+        }
+        next[worker] = split;
+        end[worker] = end[victim];
+        end[victim] = split;
+        steals++;
+        LOG.debug("Worker-{} stole [{}, {}) from worker-{}", worker, split, end[worker], victim);
+        return true;
+    }
+
+    /**
+     * A piece of the file: length bytes starting at offset. The other fields are guarded by the
+     * scheduler.
+     */
+    static class Range {
+        private final int chunkId;
+        private final long offset;
+        private final long length;
+        private final List<Attempt> attempts = new ArrayList<>();
+        private long startNanos;
+        private long covered;
+        private boolean hedged;
+        private boolean done;
+
+        Range(int chunkId, long offset, long length) {
+            this.chunkId = chunkId;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int getChunkId() {
+            return chunkId;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        long getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * An attempt at a piece, as seen by the scheduler.
+     */
+    interface Fetch {
+        /**
+         * Returns how many bytes from the start of the attempt are on disk.
+         */
+        long getFetched();
+
+        /**
+         * Stops the attempt, another one has completed the piece. May be called from any thread.
+         */
+        void cancel();
+    }
+
+    private static class Attempt {
+        private final long start;
+        private final Fetch client;
+        private final long startNanos;
+
+        Attempt(long start, Fetch client, long startNanos) {
+            this.start = start;
+            this.client = client;
+            this.startNanos = startNanos;
+        }
+    }
+}
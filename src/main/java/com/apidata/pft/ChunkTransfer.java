@@ -0,0 +1,515 @@
+package com.apidata.pft;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * ChunkTransfer keeps the send state of one chunk streamed from a file to a client. The payload is
+ * moved with {@link FileChannel#transferTo} so it never gets copied into the heap, and the current
+ * position is remembered so a partial write can be resumed once the socket is writable again.
+ * The file channel is borrowed from a {@link FileHandleCache} and handed back on {@link #close()}.
+ * An optional header, such as the frame of a range response, is written ahead of the payload.
+ * A compressed payload is read and deflated one frame at a time by a {@link ChunkCompressor}
+ * instead, as the socket takes them.
+ * <p>
+ * With a {@link DiskReader}, the payload is read ahead into pooled buffers of
+ * {@link PFTConstants#READ_AHEAD_SIZE} on the reader threads instead, one buffer being sent while
+ * the next one is read, so the thread calling {@link #transferTo} never waits for the disk. When
+ * it runs out of bytes read ahead the transfer is starved, and the wakeup given with the reader
+ * runs once the read is done.
+ * <p>
+ * With a {@link BlockCache} as well, the payload is sent from the cached blocks it spans, each
+ * block read once for all the transfers that want it. A sequential transfer also has the blocks
+ * after its own read ahead into the cache, for the request that is likely to follow.
+ */
+class ChunkTransfer {
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkTransfer.class);
+
+    private final int chunkId;
+    private final FileHandleCache fileHandleCache;
+    private final FileHandleCache.FileHandle fileHandle;
+    private final FileChannel fileChannel;
+    private final long startNanos;
+    private ByteBuffer header;
+    private ChunkCompressor compressor;
+    private ByteBuffer frame;
+    private long position;
+    private long remaining;
+    private long written;
+    private DiskReader reader;
+    private BlockCache cache;
+    private boolean sequential;
+    private long prefetched;
+    private Executor completions;
+    private Runnable wakeup;
+    private ByteBuffer sending;
+    private ByteBuffer fetched;
+    private BlockCache.Block sendingBlock;
+    private BlockCache.Block fetchedBlock;
+    private long readPosition;
+    private long readRemaining;
+    private boolean reading;
+    private boolean deferred;
+    private boolean starved;
+    private boolean closed;
+    private IOException readError;
+
+    ChunkTransfer(FileHandleCache fileHandleCache, String filePath, long offset, long length,
+            int chunkId) throws IOException {
+        this(fileHandleCache, fileHandleCache.acquire(filePath), offset, length, chunkId);
+    }
+
+    /**
+     * Takes over a handle already acquired from the cache.
+     */
+    ChunkTransfer(FileHandleCache fileHandleCache, FileHandleCache.FileHandle fileHandle,
+            long offset, long length, int chunkId) {
+        this.chunkId = chunkId;
+        this.fileHandleCache = fileHandleCache;
+        this.fileHandle = fileHandle;
+        this.fileChannel = fileHandle.getChannel();
+        this.startNanos = System.nanoTime();
+        this.position = offset;
+        // never promise more bytes than the file holds
+        this.remaining = Math.max(0, Math.min(length, fileHandle.getSize() - offset));
+        if (remaining < length) {
+            LOG.warn("Chunk {} asked for {} bytes at {} but only {} are available", chunkId,
+                    length, offset, remaining);
+        }
+    }
+
+    /**
+     * Transfers as much of the chunk as the socket accepts without blocking.
+     *
+     * @return true once the whole chunk has been written, false if the socket buffer is full
+     */
+    boolean transferTo(SocketChannel socket) throws IOException {
+        return transferTo(socket, Long.MAX_VALUE);
+    }
+
+    /**
+     * Transfers as much of the chunk as the socket accepts without blocking, but no more than
+     * budget bytes of payload. The header is small and always written in full.
+     *
+     * @return true once the whole chunk has been written, false if the socket buffer is full or
+     * the budget used up
+     */
+    boolean transferTo(SocketChannel socket, long budget) throws IOException {
+        if (header != null) {
+            written += socket.write(header);
+            if (header.hasRemaining()) {
+                return false;
+            }
+            header = null;
+        }
+        if (reader != null) {
+            return transferReadAhead(socket, budget);
+        }
+        if (compressor != null) {
+            return transferFrames(socket, budget);
+        }
+        while (remaining > 0) {
+            if (budget <= 0) {
+                return false;
+            }
+            long sent = fileChannel.transferTo(position, Math.min(remaining, budget), socket);
+            if (sent <= 0) {
+                return false;
+            }
+            position += sent;
+            remaining -= sent;
+            budget -= sent;
+            written += sent;
+        }
+        return true;
+    }
+
+    private boolean transferFrames(SocketChannel socket, long budget) throws IOException {
+        while (true) {
+            if (frame.hasRemaining()) {
+                if (budget <= 0) {
+                    return false;
+                }
+                int sent = write(socket, frame, budget);
+                budget -= sent;
+                if (frame.hasRemaining()) {
+                    return false;
+                }
+            }
+            if (remaining == 0) {
+                return true;
+            }
+            long length = compressor.compress(fileChannel, position, remaining, frame);
+            position += length;
+            remaining -= length;
+        }
+    }
+
+    private boolean transferReadAhead(SocketChannel socket, long budget) throws IOException {
+        if (readError != null) {
+            throw readError;
+        }
+        starved = false;
+        while (true) {
+            if (frame != null && frame.hasRemaining()) {
+                if (budget <= 0) {
+                    return false;
+                }
+                int sent = write(socket, frame, budget);
+                budget -= sent;
+                if (frame.hasRemaining()) {
+                    return false;
+                }
+            }
+            if (remaining == 0) {
+                return true;
+            }
+            if (sending != null && !sending.hasRemaining()) {
+                releaseSending();
+            }
+            if (sending == null) {
+                takeFetched();
+            }
+            readAhead();
+            if (sending == null) {
+                // a cached block may be at hand already
+                takeFetched();
+            }
+            if (sending == null) {
+                starved = true;
+                return false;
+            }
+            if (compressor != null) {
+                int length = compressor.compress(sending, frame);
+                position += length;
+                remaining -= length;
+                continue;
+            }
+            if (budget <= 0) {
+                return false;
+            }
+            int sent = write(socket, sending, budget);
+            position += sent;
+            remaining -= sent;
+            budget -= sent;
+            if (sending.hasRemaining()) {
+                return false;
+            }
+        }
+    }
+
+    private void takeFetched() {
+        sending = fetched;
+        sendingBlock = fetchedBlock;
+        fetched = null;
+        fetchedBlock = null;
+    }
+
+    private void releaseSending() {
+        if (sendingBlock != null) {
+            cache.release(sendingBlock);
+            sendingBlock = null;
+        } else {
+            BufferPool.getShared().release(sending);
+        }
+        sending = null;
+    }
+
+    private int write(SocketChannel socket, ByteBuffer buffer, long budget) throws IOException {
+        int limit = buffer.limit();
+        int position = buffer.position();
+        // the budget is Long.MAX_VALUE when unlimited, adding the position to it would overflow
+        buffer.limit(position + (int) Math.min(limit - position, budget));
+        int sent = socket.write(buffer);
+        buffer.limit(limit);
+        written += sent;
+        return sent;
+    }
+
+    /**
+     * Starts reading the next buffer, unless one is already read or being read.
+     */
+    private void readAhead() {
+        if (reading || fetched != null || readRemaining == 0) {
+            return;
+        }
+        if (cache != null && readCached()) {
+            return;
+        }
+        int length = (int) Math.min(PFTConstants.READ_AHEAD_SIZE, readRemaining);
+        ByteBuffer buffer = BufferPool.getShared().acquire(length);
+        buffer.limit(length);
+        deferred = !reader.read(fileHandle, readPosition, buffer, this::readDone);
+        if (deferred) {
+            BufferPool.getShared().release(buffer);
+            return;
+        }
+        reading = true;
+        readPosition += length;
+        readRemaining -= length;
+    }
+
+    /**
+     * Starts getting the rest of the block at the read position from the cache, loading the
+     * block if it is not there.
+     *
+     * @return false if every cached block is in use and the bytes have to be read uncached
+     */
+    private boolean readCached() {
+        int blockSize = cache.getBlockSize();
+        long index = readPosition / blockSize;
+        int offset = (int) (readPosition - index * blockSize);
+        int length = (int) Math.min(blockSize - offset, readRemaining);
+        BlockCache.Block block = cache.acquire(fileHandle, index, length);
+        if (block == null) {
+            block = cache.allocate(fileHandle, index, false);
+            if (block == null) {
+                return false;
+            }
+            deferred = !load(block, index);
+            if (deferred) {
+                cache.release(block);
+                return true;
+            }
+        }
+        deferred = false;
+        reading = true;
+        readPosition += length;
+        readRemaining -= length;
+        if (sequential) {
+            prefetch(index + 1);
+        }
+        BlockCache.Block fetching = block;
+        if (block.isLoaded()) {
+            blockDone(block, offset, length);
+        } else {
+            block.whenLoaded(() -> completions.execute(() -> blockDone(fetching, offset, length)));
+        }
+        return true;
+    }
+
+    /**
+     * Reads the block into the cache, unless the reader refuses it.
+     */
+    private boolean load(BlockCache.Block block, long index) {
+        boolean started = reader.read(fileHandle, index * cache.getBlockSize(), block.getBuffer(),
+                (buffer, error) -> cache.loaded(block, error));
+        if (!started) {
+            cache.abort(block);
+        }
+        return started;
+    }
+
+    /**
+     * Loads the blocks following the one being sent, up to
+     * {@link PFTConstants#CACHE_READ_AHEAD_BLOCKS} ahead and the end of the file. Those are
+     * loaded whether or not this transfer is still open, the handle is held until they are.
+     */
+    private void prefetch(long from) {
+        int blockSize = cache.getBlockSize();
+        long last = Math.min(from + PFTConstants.CACHE_READ_AHEAD_BLOCKS,
+                (fileHandle.getSize() + blockSize - 1) / blockSize);
+        for (long index = Math.max(from, prefetched); index < last; index++) {
+            if (cache.contains(fileHandle, index)) {
+                prefetched = index + 1;
+                continue;
+            }
+            BlockCache.Block block = cache.allocate(fileHandle, index, true);
+            if (block == null) {
+                return;
+            }
+            fileHandleCache.retain(fileHandle);
+            boolean started = reader.read(fileHandle, index * blockSize, block.getBuffer(),
+                    (buffer, error) -> {
+                        cache.loaded(block, error);
+                        cache.release(block);
+                        try {
+                            fileHandleCache.release(fileHandle);
+                        } catch (IOException e) {
+                            LOG.error("IOException occurred", e);
+                        }
+                    });
+            if (!started) {
+                // the disk is busy enough, try again with the next block sent
+                cache.abort(block);
+                cache.release(block);
+                try {
+                    fileHandleCache.release(fileHandle);
+                } catch (IOException e) {
+                    LOG.error("IOException occurred", e);
+                }
+                return;
+            }
+            prefetched = index + 1;
+        }
+    }
+
+    /**
+     * Called on the thread sending the transfer once the block is loaded, keeps the bytes of the
+     * block it wants to send next.
+     */
+    private void blockDone(BlockCache.Block block, int offset, int length) {
+        reading = false;
+        if (closed) {
+            cache.release(block);
+            try {
+                fileHandleCache.release(fileHandle);
+            } catch (IOException e) {
+                LOG.error("IOException occurred", e);
+            }
+            return;
+        }
+        if (block.isAborted()) {
+            // its load was refused, to be tried again a little later
+            cache.release(block);
+            readPosition -= length;
+            readRemaining += length;
+            deferred = true;
+        } else if (block.getError() != null) {
+            cache.release(block);
+            readError = block.getError();
+        } else {
+            ByteBuffer buffer = block.getBuffer();
+            buffer.limit(offset + length);
+            buffer.position(offset);
+            fetched = buffer;
+            fetchedBlock = block;
+        }
+        if (starved) {
+            starved = false;
+            wakeup.run();
+        }
+    }
+
+    /**
+     * Called on a reader thread, hands the buffer over to the thread sending the transfer.
+     */
+    private void readDone(ByteBuffer buffer, IOException error) {
+        completions.execute(() -> {
+            reading = false;
+            if (closed) {
+                BufferPool.getShared().release(buffer);
+                try {
+                    fileHandleCache.release(fileHandle);
+                } catch (IOException e) {
+                    LOG.error("IOException occurred", e);
+                }
+                return;
+            }
+            if (error != null) {
+                BufferPool.getShared().release(buffer);
+                readError = error;
+            } else {
+                fetched = buffer;
+            }
+            if (starved) {
+                starved = false;
+                wakeup.run();
+            }
+        });
+    }
+
+    /**
+     * Has the payload read ahead by the reader. Completed reads are handed back through the
+     * completions executor, which must run them on the thread calling {@link #transferTo}, and
+     * the wakeup is run there if the transfer was starved.
+     */
+    void setReader(DiskReader reader, Executor completions, Runnable wakeup) {
+        this.reader = reader;
+        this.completions = completions;
+        this.wakeup = wakeup;
+        this.readPosition = position;
+        this.readRemaining = remaining;
+    }
+
+    /**
+     * Sends the payload from the cache, to be called after {@link #setReader}. A sequential
+     * transfer, one following on from the previous request of its client, reads ahead into the
+     * cache past its own end.
+     */
+    void setCache(BlockCache cache, boolean sequential) {
+        this.cache = cache;
+        this.sequential = sequential;
+    }
+
+    /**
+     * Returns true if the last {@link #transferTo} stopped for want of bytes read from the disk.
+     */
+    boolean isStarved() {
+        return starved;
+    }
+
+    /**
+     * Returns true if the reader refused the last read, it has to be tried again later.
+     */
+    boolean isDeferred() {
+        return deferred;
+    }
+
+    /**
+     * Sends the payload as compressed frames. The compressor is only used from the thread
+     * calling {@link #transferTo}.
+     */
+    void setCompressor(ChunkCompressor compressor) {
+        this.compressor = compressor;
+        this.frame = ChunkCompressor.acquireFrame();
+    }
+
+    /**
+     * Sets the bytes, ready for reading, to send before the payload.
+     */
+    void setHeader(ByteBuffer header) {
+        this.header = header;
+    }
+
+    int getChunkId() {
+        return chunkId;
+    }
+
+    long getPosition() {
+        return position;
+    }
+
+    long getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * Returns the number of bytes written to the socket so far, header and frames included.
+     */
+    long getWritten() {
+        return written;
+    }
+
+    /**
+     * Returns when the chunk was asked for, in System.nanoTime.
+     */
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    void close() throws IOException {
+        closed = true;
+        if (frame != null) {
+            BufferPool.getShared().release(frame);
+            frame = null;
+        }
+        if (sending != null) {
+            releaseSending();
+        }
+        if (fetched != null) {
+            takeFetched();
+            releaseSending();
+        }
+        // a read under way still uses the handle, it is released once done
+        if (!reading) {
+            fileHandleCache.release(fileHandle);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.apidata.pft;
+
+import com.apidata.pft.message.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * ChunkWorker keeps asking the {@link ChunkScheduler} for pieces and fetches each of them with a
+ * {@link PFTChunkClient} until the scheduler runs dry. It reports how long every piece took so
+ * the scheduler can size the next one, and records finished pieces in the journal if any. A
+ * failed piece is retried from where it stopped, after an exponential backoff. Once out of pieces
+ * the worker hedges the pieces of other workers that straggle, until none is left in flight.
+ * Every attempt is recorded into the {@link ClientMetrics} under the worker id.
+ * <p>
+ * In a multi-source download the worker fetches from one {@link Replica}. A piece that fails
+ * after all retries takes the replica down; its workers then retire and leave their pieces to
+ * the workers of the other replicas, unless none is left.
+ * <p>
+ * In an adaptive transfer the worker only fetches a piece while the {@link StreamController}
+ * gives it a slot, and reports the goodput and round trip of every piece to it.
+ */
+class ChunkWorker implements Callable<Result> {
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkWorker.class);
+
+    private final int workerId;
+    private final ChunkScheduler scheduler;
+    private final ConnectionPool connectionPool;
+    private final int fileId;
+    private final FileChannel channel;
+    private final TransferJournal journal;
+    private final ClientMetrics metrics;
+    private long verifyFileSize = -1;
+    private int[] checksums;
+    private boolean mapped;
+    private byte compression = Message.COMPRESSION_NONE;
+    private Replica replica;
+    private StreamController controller;
+    private int pieces;
+    private long bytes;
+    private long nanos;
+    private int stalls;
+
+    ChunkWorker(int workerId, ChunkScheduler scheduler, ConnectionPool connectionPool, int fileId,
+            FileChannel channel, TransferJournal journal, ClientMetrics metrics) {
+        this.workerId = workerId;
+        this.scheduler = scheduler;
+        this.connectionPool = connectionPool;
+        this.fileId = fileId;
+        this.channel = channel;
+        this.journal = journal;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Has every piece checked against the server's block checksums.
+     */
+    void setVerify(long fileSize) {
+        this.verifyFileSize = fileSize;
+    }
+
+    /**
+     * Has every piece checked against the given checksums of the file's blocks, as sent by the
+     * origin, instead of those of the server it is fetched from.
+     */
+    void setVerify(long fileSize, int[] checksums) {
+        this.verifyFileSize = fileSize;
+        this.checksums = checksums;
+    }
+
+    /**
+     * Has every piece written through a memory-mapped window, forced to disk before it is
+     * journaled.
+     */
+    void setMapped(boolean mapped) {
+        this.mapped = mapped;
+    }
+
+    /**
+     * Has every piece sent with the compression agreed in the handshake.
+     */
+    void setCompression(byte compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Has the worker fail over to the workers of other replicas once this one is down.
+     */
+    void setReplica(Replica replica) {
+        this.replica = replica;
+    }
+
+    /**
+     * Has the worker wait for a slot of the controller before every piece.
+     */
+    void setController(StreamController controller) {
+        this.controller = controller;
+    }
+
+    @Override
+    public Result call() {
+        long startTime = System.currentTimeMillis();
+        try {
+            while (true) {
+                ChunkScheduler.Range range;
+                while (!isDown() && (range = next()) != null) {
+                    boolean fetched;
+                    try {
+                        fetched = fetch(range, false);
+                    } finally {
+                        if (controller != null) {
+                            controller.release();
+                        }
+                    }
+                    if (!fetched) {
+                        return giveUp(startTime, range);
+                    }
+                }
+                if (isDown()) {
+                    return giveUp(startTime, null);
+                }
+                range = scheduler.awaitHedge();
+                if (range == null) {
+                    if (scheduler.isDrained()) {
+                        break;
+                    }
+                    // pieces of a retired worker are up for grabs
+                    continue;
+                }
+                metrics.hedged();
+                if (!fetch(range, true)) {
+                    return result(startTime, false);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.error("InterruptedException occurred", e);
+            Thread.currentThread().interrupt();
+            return result(startTime, false);
+        }
+        LOG.info("Worker-{} fetched {} bytes in {} pieces", workerId, bytes, pieces);
+        return result(startTime, true);
+    }
+
+    /**
+     * Returns the next piece, holding a slot of the controller if any, or null once the
+     * scheduler is out of pieces.
+     */
+    private ChunkScheduler.Range next() throws InterruptedException {
+        if (controller == null) {
+            return scheduler.next(workerId);
+        }
+        controller.acquire(workerId, scheduler);
+        ChunkScheduler.Range range = scheduler.next(workerId);
+        if (range == null) {
+            controller.release();
+        }
+        return range;
+    }
+
+    private boolean isDown() {
+        return replica != null && replica.isDown();
+    }
+
+    /**
+     * Retires the worker once its replica is down, or fails the transfer if there is no other
+     * replica to fall back on.
+     */
+    private Result giveUp(long startTime, ChunkScheduler.Range range) {
+        if (replica != null) {
+            replica.setDown();
+            if (scheduler.retire(workerId, range)) {
+                LOG.warn("Worker-{} retired, its replica failed: {}", workerId, replica);
+                return result(startTime, true);
+            }
+        }
+        if (range != null) {
+            scheduler.abandon(range);
+        }
+        return result(startTime, false);
+    }
+
+    private Result result(long startTime, boolean status) {
+        return new Result(workerId, System.currentTimeMillis() - startTime, status, bytes, nanos,
+                stalls);
+    }
+
+    /**
+     * Fetches what is left of the piece until an attempt, this one or another, completes it.
+     * A hedge makes a single attempt and leaves the piece to its owner if that fails.
+     *
+     * @return false if the piece could not be fetched
+     */
+    private boolean fetch(ChunkScheduler.Range range, boolean hedge) throws InterruptedException {
+        long end = range.getOffset() + range.getLength();
+        for (int attempt = 0; ; attempt++) {
+            long start = scheduler.resumeFrom(range);
+            if (start < 0) {
+                return true;
+            }
+            PFTChunkClient pftChunkClient =
+                    new PFTChunkClient(range.getChunkId(), connectionPool, fileId, end - start,
+                            start, channel);
+            if (verifyFileSize >= 0) {
+                if (checksums != null) {
+                    pftChunkClient.setVerify(verifyFileSize, checksums);
+                } else {
+                    pftChunkClient.setVerify(verifyFileSize);
+                }
+            }
+            if (mapped) {
+                pftChunkClient.setMapped(journal != null);
+            }
+            pftChunkClient.setCompression(compression);
+            if (!scheduler.start(range, start, pftChunkClient)) {
+                return true;
+            }
+            metrics.streamStarted();
+            Result result = pftChunkClient.call();
+            metrics.streamFinished(workerId, result);
+            bytes += result.getBytes();
+            if (replica != null) {
+                replica.fetched(result.getBytes());
+            }
+            nanos += result.getNanos();
+            stalls += result.getStalls();
+            if (controller != null) {
+                controller.sample(result.getBytes(), pftChunkClient.getRttNanos());
+            }
+            if (scheduler.finish(workerId, range, pftChunkClient, result.isStatus())) {
+                if (journal != null) {
+                    try {
+                        journal.complete(range.getOffset(), range.getLength());
+                    } catch (IOException e) {
+                        LOG.error("IOException occurred", e);
+                        return false;
+                    }
+                }
+                pieces++;
+                return true;
+            }
+            if (scheduler.isDone(range) || hedge) {
+                return true;
+            }
+            if (attempt == PFTConstants.MAX_PIECE_RETRIES) {
+                LOG.error("Worker-{} failed on chunk {}", workerId, range.getChunkId());
+                return false;
+            }
+            long backoff = PFTConstants.RETRY_BACKOFF_MILLIS << attempt;
+            backoff += ThreadLocalRandom.current().nextLong(backoff);
+            LOG.warn("Worker-{} retrying chunk {} in {} msecs ({}/{})", workerId,
+                    range.getChunkId(), backoff, attempt + 1, PFTConstants.MAX_PIECE_RETRIES);
+            scheduler.retried();
+            metrics.retried();
+            Thread.sleep(backoff);
+        }
+    }
+}
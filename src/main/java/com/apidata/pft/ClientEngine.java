@@ -0,0 +1,87 @@
+package com.apidata.pft;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ClientEngine drives the streams of any number of transfers from a few {@link EventLoop}s, with
+ * non-blocking sockets, instead of a thread per connection. Writing to disk may block, so the
+ * loops hand every filled buffer to a separate pool of disk threads and go on reading. One engine
+ * is shared by the transfers of the JVM running at once, see {@link StreamTransfer}: it is
+ * started by the first of them and closed once the last one releases it.
+ */
+class ClientEngine {
+    private static ClientEngine shared;
+    private static int users;
+
+    private final EventLoop[] loops;
+    private final ExecutorService disk;
+    private final AtomicInteger nextLoop;
+
+    ClientEngine(int loops, int diskThreads) throws IOException {
+        this.loops = new EventLoop[Math.max(1, loops)];
+        for (int i = 0; i < this.loops.length; i++) {
+            this.loops[i] = new EventLoop(i);
+            this.loops[i].start();
+        }
+        AtomicInteger threads = new AtomicInteger();
+        this.disk = Executors.newFixedThreadPool(Math.max(1, diskThreads), r -> {
+            Thread thread = new Thread(r, "pft-disk-" + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.nextLoop = new AtomicInteger();
+    }
+
+    /**
+     * Returns the engine shared by the transfers of this JVM, with a loop per two cores and a
+     * disk thread per core, to be handed back with {@link #release()} once the transfer is done.
+     */
+    static synchronized ClientEngine acquire() {
+        if (shared == null) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            try {
+                shared = new ClientEngine(Math.max(1, cores / 2), Math.max(2, cores));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        users++;
+        return shared;
+    }
+
+    /**
+     * Hands the shared engine back, closing it once no transfer uses it.
+     */
+    static synchronized void release() {
+        if (--users == 0) {
+            shared.close();
+            shared = null;
+        }
+    }
+
+    /**
+     * Returns the loops round robin, to spread the streams.
+     */
+    EventLoop nextLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    ExecutorService getDisk() {
+        return disk;
+    }
+
+    /**
+     * Stops the loops and the disk threads. Writes still queued, e.g. of a stream stopped as a
+     * hedge was won, are let through: interrupting one would close the file channel.
+     */
+    void close() {
+        for (EventLoop loop : loops) {
+            loop.close();
+        }
+        disk.shutdown();
+    }
+}
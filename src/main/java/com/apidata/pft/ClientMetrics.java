@@ -0,0 +1,182 @@
+package com.apidata.pft;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * ClientMetrics gathers the counters and histograms of a {@link PFTClient} from all of its
+ * workers without locking. Each worker records the {@link Result} of every chunk it fetched,
+ * under its own stream index.
+ */
+class ClientMetrics implements ClientMetricsMBean {
+    private final Meter bytesReceived;
+    private final AtomicInteger activeStreams;
+    private final AtomicLongArray streamBytes;
+    private final AtomicLongArray streamNanos;
+    private final Histogram chunkLatency;
+    private final LongAdder failedChunks;
+    private final LongAdder stalls;
+    private final LongAdder retries;
+    private final LongAdder hedges;
+    private final LongAdder streamLimitChanges;
+    private final LongAdder workerParks;
+    private volatile LongSupplier queuedBytes;
+
+    ClientMetrics(int streams) {
+        this.bytesReceived = new Meter();
+        this.activeStreams = new AtomicInteger();
+        this.streamBytes = new AtomicLongArray(streams);
+        this.streamNanos = new AtomicLongArray(streams);
+        this.chunkLatency = new Histogram();
+        this.failedChunks = new LongAdder();
+        this.stalls = new LongAdder();
+        this.retries = new LongAdder();
+        this.hedges = new LongAdder();
+        this.streamLimitChanges = new LongAdder();
+        this.workerParks = new LongAdder();
+        this.queuedBytes = () -> 0;
+    }
+
+    /**
+     * Sets where the bytes left to hand out are read from, for the transfer under way.
+     */
+    void setQueuedBytes(LongSupplier queuedBytes) {
+        this.queuedBytes = queuedBytes;
+    }
+
+    void streamStarted() {
+        activeStreams.incrementAndGet();
+    }
+
+    /**
+     * Records the chunk a stream has just finished, successfully or not.
+     */
+    void streamFinished(int stream, Result result) {
+        activeStreams.decrementAndGet();
+        bytesReceived.mark(result.getBytes());
+        if (stream >= 0 && stream < streamBytes.length()) {
+            streamBytes.addAndGet(stream, result.getBytes());
+            streamNanos.addAndGet(stream, result.getNanos());
+        }
+        stalls.add(result.getStalls());
+        if (result.isStatus()) {
+            chunkLatency.record(result.getNanos());
+        } else {
+            failedChunks.increment();
+        }
+    }
+
+    void retried() {
+        retries.increment();
+    }
+
+    void hedged() {
+        hedges.increment();
+    }
+
+    void streamLimitChanged() {
+        streamLimitChanges.increment();
+    }
+
+    void workerParked() {
+        workerParks.increment();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.getTotal();
+    }
+
+    @Override
+    public long getBytesPerSecond() {
+        return bytesReceived.getRate();
+    }
+
+    @Override
+    public int getActiveStreams() {
+        return activeStreams.get();
+    }
+
+    @Override
+    public long[] getStreamBytesPerSecond() {
+        long[] rates = new long[streamBytes.length()];
+        for (int i = 0; i < rates.length; i++) {
+            long nanos = streamNanos.get(i);
+            rates[i] = nanos == 0 ? 0 :
+                    (long) (streamBytes.get(i) * (double) TimeUnit.SECONDS.toNanos(1) / nanos);
+        }
+        return rates;
+    }
+
+    @Override
+    public long getChunksFetched() {
+        return chunkLatency.getCount();
+    }
+
+    @Override
+    public long getFailedChunks() {
+        return failedChunks.sum();
+    }
+
+    @Override
+    public long getChunkLatencyMicrosMean() {
+        return ServerMetrics.micros(chunkLatency.getMean());
+    }
+
+    @Override
+    public long getChunkLatencyMicrosP50() {
+        return ServerMetrics.micros(chunkLatency.quantile(0.5));
+    }
+
+    @Override
+    public long getChunkLatencyMicrosP99() {
+        return ServerMetrics.micros(chunkLatency.quantile(0.99));
+    }
+
+    @Override
+    public long getChunkLatencyMicrosMax() {
+        return ServerMetrics.micros(chunkLatency.getMax());
+    }
+
+    @Override
+    public long getStalls() {
+        return stalls.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return queuedBytes.getAsLong();
+    }
+
+    @Override
+    public long getStreamLimitChanges() {
+        return streamLimitChanges.sum();
+    }
+
+    @Override
+    public long getWorkerParks() {
+        return workerParks.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "received " + getBytesReceived() + " bytes in " + getChunksFetched()
+                + " chunks, latency p50/p99/max " + getChunkLatencyMicrosP50() + "/"
+                + getChunkLatencyMicrosP99() + "/" + getChunkLatencyMicrosMax() + " us, "
+                + getStalls() + " stalls, " + getRetries() + " retries, " + getHedges()
+                + " hedges";
+    }
+}
@@ -0,0 +1,64 @@
+package com.apidata.pft;
+
+/**
+ * What a {@link PFTClient} publishes over JMX while transferring, as
+ * com.apidata.pft:type=PFTClient,id=&lt;n&gt;. A stream is one pooled connection and the worker
+ * using it. Latencies are in microseconds.
+ */
+public interface ClientMetricsMBean {
+    long getBytesReceived();
+
+    /**
+     * Bytes per second received since the previous reading.
+     */
+    long getBytesPerSecond();
+
+    /**
+     * Streams fetching a chunk right now.
+     */
+    int getActiveStreams();
+
+    /**
+     * Bytes per second of each stream while it was fetching.
+     */
+    long[] getStreamBytesPerSecond();
+
+    long getChunksFetched();
+
+    long getFailedChunks();
+
+    /**
+     * Time to fetch a chunk, from borrowing a connection to its last byte.
+     */
+    long getChunkLatencyMicrosMean();
+
+    long getChunkLatencyMicrosP50();
+
+    long getChunkLatencyMicrosP99();
+
+    long getChunkLatencyMicrosMax();
+
+    /**
+     * Socket reads that blocked for over {@link PFTConstants#STALL_MILLIS}.
+     */
+    long getStalls();
+
+    long getRetries();
+
+    long getHedges();
+
+    /**
+     * Bytes not handed to a stream yet.
+     */
+    long getQueuedBytes();
+
+    /**
+     * Times adaptive mode changed the number of streams fetching at once.
+     */
+    long getStreamLimitChanges();
+
+    /**
+     * Times a worker of an adaptive transfer waited for a slot.
+     */
+    long getWorkerParks();
+}
@@ -0,0 +1,63 @@
+package com.apidata.pft;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+
+/**
+ * CompressionSampler tells whether a served file is worth compressing. It deflates a few frames
+ * spread over the file, the way {@link ChunkCompressor} would, and only says yes when they
+ * shrink enough to pay for the CPU. Media, archives and encrypted files are then sent raw.
+ */
+class CompressionSampler extends FileVersionCache<Boolean> {
+    private static final Logger LOG = LoggerFactory.getLogger(CompressionSampler.class);
+    private static final int SAMPLES = 8;
+    private static final double MAX_RATIO = 0.9;
+
+    CompressionSampler() {
+        super("pft-sampler");
+    }
+
+    @Override
+    Boolean compute(FileHandleCache.FileHandle handle) {
+        FileChannel channel = handle.getChannel();
+        long size = handle.getSize();
+        int frameSize = PFTConstants.COMPRESSION_FRAME_SIZE;
+        byte[] raw = new byte[frameSize];
+        byte[] compressed = new byte[frameSize];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        long rawBytes = 0;
+        long compressedBytes = 0;
+        try {
+            long stride = Math.max(frameSize, size / SAMPLES);
+            for (long position = 0; position < size; position += stride) {
+                ByteBuffer buffer = ByteBuffer.wrap(raw, 0, (int) Math.min(frameSize,
+                        size - position));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("File shrunk while sampling");
+                    }
+                }
+                deflater.reset();
+                deflater.setInput(raw, 0, buffer.position());
+                deflater.finish();
+                int length = deflater.deflate(compressed);
+                rawBytes += buffer.position();
+                compressedBytes += deflater.finished() ? length : buffer.position();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deflater.end();
+        }
+        double ratio = rawBytes == 0 ? 1 : compressedBytes / (double) rawBytes;
+        LOG.info("Sampled {} bytes of {}, compression ratio {}", rawBytes, handle.getPath(),
+                String.format("%.2f", ratio));
+        return ratio < MAX_RATIO;
+    }
+}
@@ -0,0 +1,196 @@
+package com.apidata.pft;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Per connection state kept by a {@link Reactor}: bytes read from the socket but not decoded yet,
+ * a buffer for the frame header of the next chunk, the chunks being sent, the files of a batch
+ * still to be opened, the upload piece being received, whether a reply is being prepared off the
+ * reactor thread, and the rest of a reply the socket did not take. With a {@link RateLimiter} it
+ * also holds the token bucket of the client address.
+ */
+class Connection {
+    private final ByteBuffer readBuffer;
+    private final ByteBuffer headerBuffer;
+    private final Queue<ChunkTransfer> transfers;
+    private final Queue<BatchFile> batchFiles;
+    private ChunkReceiver receiver;
+    private ByteBuffer reply;
+    private boolean waiting;
+    private boolean released;
+    private InetAddress clientAddress;
+    private TokenBucket clientBucket;
+    private String lastPath;
+    private long lastEnd;
+
+    Connection() {
+        this.readBuffer = BufferPool.getShared().acquire(PFTConstants.BUFFER_SIZE);
+        this.headerBuffer = BufferPool.getShared().acquire(PFTConstants.BUFFER_SIZE);
+        this.transfers = new ArrayDeque<>();
+        this.batchFiles = new ArrayDeque<>();
+    }
+
+    ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    ByteBuffer getHeaderBuffer() {
+        return headerBuffer;
+    }
+
+    /**
+     * Returns the chunk being sent, null if none.
+     */
+    ChunkTransfer getTransfer() {
+        return transfers.peek();
+    }
+
+    /**
+     * Queues a chunk to be sent once the ones before it are.
+     */
+    void addTransfer(ChunkTransfer transfer) {
+        transfers.add(transfer);
+    }
+
+    /**
+     * Queues a file of a batch, to be opened and sent once the files before it are.
+     */
+    void addBatchFile(BatchFile file) {
+        batchFiles.add(file);
+    }
+
+    /**
+     * Takes the next file of the batch to open, null if none.
+     */
+    BatchFile nextBatchFile() {
+        return batchFiles.poll();
+    }
+
+    /**
+     * Returns true if the range follows on from the one asked for before on this connection, a
+     * client reading the file in order, and remembers it for the next one.
+     */
+    boolean isSequential(String path, long offset, long length) {
+        boolean sequential = path.equals(lastPath) && offset == lastEnd;
+        lastPath = path;
+        lastEnd = offset + length;
+        return sequential;
+    }
+
+    /**
+     * Drops the chunk being sent, once sent or failed, and returns the next one, if any.
+     */
+    ChunkTransfer nextTransfer() {
+        transfers.poll();
+        return transfers.peek();
+    }
+
+    /**
+     * Returns the upload piece being received, null if none.
+     */
+    ChunkReceiver getReceiver() {
+        return receiver;
+    }
+
+    void setReceiver(ChunkReceiver receiver) {
+        this.receiver = receiver;
+    }
+
+    /**
+     * Returns the rest of a reply still to be written, null if none.
+     */
+    ByteBuffer getReply() {
+        return reply;
+    }
+
+    /**
+     * Keeps the bytes remaining in the buffer, a reply the socket only took part of.
+     */
+    void setReply(ByteBuffer rest) {
+        reply = BufferPool.getShared().acquire(rest.remaining());
+        reply.put(rest);
+        reply.flip();
+    }
+
+    /**
+     * Hands the buffer of the reply back once it is written.
+     */
+    void replied() {
+        BufferPool.getShared().release(reply);
+        reply = null;
+    }
+
+    InetAddress getClientAddress() {
+        return clientAddress;
+    }
+
+    TokenBucket getClientBucket() {
+        return clientBucket;
+    }
+
+    void setClient(InetAddress clientAddress, TokenBucket clientBucket) {
+        this.clientAddress = clientAddress;
+        this.clientBucket = clientBucket;
+    }
+
+    boolean isWaiting() {
+        return waiting;
+    }
+
+    void setWaiting(boolean waiting) {
+        this.waiting = waiting;
+    }
+
+    /**
+     * A busy connection does not take new requests until the current one is answered.
+     */
+    boolean isBusy() {
+        return !transfers.isEmpty() || !batchFiles.isEmpty() || receiver != null || waiting
+                || reply != null;
+    }
+
+    /**
+     * Hands the buffers back to the {@link BufferPool} once the connection is closed.
+     */
+    void release() {
+        if (!released) {
+            released = true;
+            BufferPool.getShared().release(readBuffer);
+            BufferPool.getShared().release(headerBuffer);
+            if (reply != null) {
+                replied();
+            }
+            batchFiles.clear();
+        }
+    }
+
+    /**
+     * A file of a batch, with the length announced for it in the batch header.
+     */
+    static class BatchFile {
+        private final String path;
+        private final long length;
+        private final int chunkId;
+
+        BatchFile(String path, long length, int chunkId) {
+            this.path = path;
+            this.length = length;
+            this.chunkId = chunkId;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        int getChunkId() {
+            return chunkId;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.apidata.pft;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConnectionPool keeps a fixed number of long-lived connections to the server. The handshake and
+ * every chunk borrow a connection and hand it back once done, so the chunks of a transfer are
+ * carried one after the other over the same few sockets and their TCP windows stay open instead of
+ * going through a handshake and slow start for each chunk. A connection carries one request at
+ * a time: responses are not tagged with the request they answer, so chunks cannot be multiplexed
+ * over it and take turns instead.
+ * <p>
+ * The socket buffers are left to the OS unless a socket buffer size is set, e.g. by a
+ * {@link StreamController} given a cap; the sockets open and to come then get buffers of at least
+ * that size.
+ */
+public class ConnectionPool {
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private final InetSocketAddress hostAddress;
+    private final int size;
+    private final BlockingQueue<PooledConnection> idle;
+    private final List<PooledConnection> all;
+    private boolean closed;
+    private int socketBufferSize;
+
+    public ConnectionPool(String hostName, int port, int size) {
+        this.hostAddress = new InetSocketAddress(hostName, port);
+        this.size = Math.max(1, size);
+        this.idle = new LinkedBlockingQueue<>();
+        this.all = new ArrayList<>();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public InetSocketAddress getHostAddress() {
+        return hostAddress;
+    }
+
+    /**
+     * Returns an idle connection, opening a new one while the pool is not full, and waits for one
+     * to be released otherwise.
+     */
+    public PooledConnection borrow() throws IOException, InterruptedException {
+        while (true) {
+            PooledConnection connection = idle.poll();
+            if (connection != null) {
+                return connection;
+            }
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Connection pool is closed");
+                }
+                if (all.size() < size) {
+                    SocketChannel channel = SocketChannel.open();
+                    try {
+                        if (socketBufferSize > 0) {
+                            // before connecting, so the window scale is negotiated for it
+                            sizeBuffers(channel, socketBufferSize);
+                        }
+                        channel.connect(hostAddress);
+                    } catch (IOException e) {
+                        channel.close();
+                        throw e;
+                    }
+                    connection = new PooledConnection(channel);
+                    all.add(connection);
+                    LOG.info("Connect to server:{}, pooled connections {}/{}",
+                            connection.getChannel().getRemoteAddress(), all.size(), size);
+                    return connection;
+                }
+            }
+            // wake up now and then in case a slot was freed by invalidate
+            connection = idle.poll(100, TimeUnit.MILLISECONDS);
+            if (connection != null) {
+                return connection;
+            }
+        }
+    }
+
+    /**
+     * Grows the send and receive buffers of the open sockets, and of those opened later, to at
+     * least size bytes. Buffers the OS made larger already are left alone. On Linux a buffer set
+     * this way is no longer autotuned by the kernel, so it only pays when the autotuning limits
+     * are too low for the link.
+     */
+    public synchronized void setSocketBufferSize(int size) {
+        this.socketBufferSize = size;
+        for (PooledConnection connection : all) {
+            try {
+                sizeBuffers(connection.getChannel(), size);
+            } catch (IOException e) {
+                LOG.warn("Unable to size the socket buffers: {}", e.toString());
+            }
+        }
+    }
+
+    private static void sizeBuffers(SocketChannel channel, int size) throws IOException {
+        if (channel.getOption(StandardSocketOptions.SO_RCVBUF) < size) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, size);
+        }
+        if (channel.getOption(StandardSocketOptions.SO_SNDBUF) < size) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, size);
+        }
+    }
+
+    public void release(PooledConnection connection) {
+        synchronized (this) {
+            if (!closed) {
+                idle.add(connection);
+                return;
+            }
+        }
+        invalidate(connection);
+    }
+
+    /**
+     * Closes a connection that failed mid-request so its slot gets reopened on the next borrow.
+     */
+    public void invalidate(PooledConnection connection) {
+        synchronized (this) {
+            all.remove(connection);
+        }
+        try {
+            connection.getChannel().close();
+        } catch (IOException e) {
+            LOG.error("IOException occurred", e);
+        }
+        connection.free();
+    }
+
+    /**
+     * Closes every connection. The buffers of borrowed ones go back to the {@link BufferPool}
+     * once their borrower hands them in.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (PooledConnection connection : all) {
+            try {
+                connection.getChannel().close();
+            } catch (IOException e) {
+                LOG.error("IOException occurred", e);
+            }
+        }
+        PooledConnection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.free();
+        }
+        all.clear();
+    }
+
+    /**
+     * A pooled socket along with its read buffer, which may hold bytes read ahead of the message
+     * that was decoded last.
+     */
+    public static class PooledConnection {
+        private final SocketChannel channel;
+        private final ByteBuffer buffer;
+        private boolean freed;
+
+        PooledConnection(SocketChannel channel) {
+            this.channel = channel;
+            this.buffer = BufferPool.getShared().acquire(PFTConstants.LENGTH_SIZE);
+        }
+
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        synchronized void free() {
+            if (!freed) {
+                freed = true;
+                BufferPool.getShared().release(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.apidata.pft;
+
+import com.apidata.pft.exception.SocketCloseException;
+import com.apidata.pft.message.BlockSignatureRequestMsg;
+import com.apidata.pft.message.BlockSignatureResponseMsg;
+import com.apidata.pft.message.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+/**
+ * DeltaPlan works out which blocks of the server file can be taken from a stale local copy, in
+ * the manner of rsync with the roles turned around: the server publishes the
+ * {@link BlockSignatures} of its file and the client slides a {@link RollingChecksum} over every
+ * offset of its copy, so blocks are found even after insertions shifted them. Matched blocks are
+ * copied locally into the new file and only the rest is fetched as ranges.
+ */
+class DeltaPlan {
+    private static final Logger LOG = LoggerFactory.getLogger(DeltaPlan.class);
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int COPY_PIECE_SIZE = 8 * 1024 * 1024;
+    private static final int FILTER_BITS = 20;
+    // signature requests kept in flight per connection
+    private static final int WINDOW = 8;
+    static final String SUFFIX = ".pft-delta";
+
+    private final int blockSize;
+    private final long fileSize;
+    private final long[] sources;
+
+    private DeltaPlan(int blockSize, long fileSize, long[] sources) {
+        this.blockSize = blockSize;
+        this.fileSize = fileSize;
+        this.sources = sources;
+    }
+
+    /**
+     * Fetches the signatures of the whole file, spreading the requests over the pooled
+     * connections and pipelining them on each.
+     */
+    static BlockSignatures fetchSignatures(ConnectionPool connectionPool, int fileId,
+            long fileSize, int blockSize) throws IOException, InterruptedException {
+        int blocks = (int) ((fileSize + blockSize - 1) / blockSize);
+        BlockSignatures signatures = new BlockSignatures(blockSize, blocks);
+        int batches = (blocks + BlockSignatureResponseMsg.MAX_SIGNATURES - 1)
+                / BlockSignatureResponseMsg.MAX_SIGNATURES;
+        int slices = Math.max(1, Math.min(connectionPool.getSize(), batches));
+        ExecutorService executorService = Executors.newFixedThreadPool(slices);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < slices; i++) {
+                int first = Math.min(blocks,
+                        batches * i / slices * BlockSignatureResponseMsg.MAX_SIGNATURES);
+                int last = Math.min(blocks,
+                        batches * (i + 1) / slices * BlockSignatureResponseMsg.MAX_SIGNATURES);
+                futures.add(executorService.submit(() -> {
+                    fetchSlice(connectionPool, fileId, signatures, first, last);
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to fetch block signatures", e.getCause());
+        } finally {
+            executorService.shutdownNow();
+        }
+        return signatures;
+    }
+
+    /**
+     * Finds every full block of the server file in the local copy. Segments of the copy are
+     * scanned in parallel; a block that shows up more than once is taken from any of them.
+     */
+    static DeltaPlan match(BlockSignatures signatures, long fileSize, FileChannel basis)
+            throws IOException {
+        int blockSize = signatures.getBlockSize();
+        int fullBlocks = (int) (fileSize / blockSize);
+        AtomicLongArray sources = new AtomicLongArray(signatures.getCount());
+        for (int i = 0; i < signatures.getCount(); i++) {
+            sources.set(i, -1);
+        }
+
+        // full blocks sorted by rolling checksum, behind a bit filter that rejects most offsets
+        long[] keys = new long[fullBlocks];
+        BitSet filter = new BitSet(1 << FILTER_BITS);
+        for (int i = 0; i < fullBlocks; i++) {
+            int rolling = signatures.getRolling()[i];
+            keys[i] = (long) rolling << 32 | i;
+            filter.set(filterIndex(rolling));
+        }
+        Arrays.sort(keys);
+        int[] sortedRolling = new int[fullBlocks];
+        int[] sortedBlocks = new int[fullBlocks];
+        for (int i = 0; i < fullBlocks; i++) {
+            sortedRolling[i] = (int) (keys[i] >> 32);
+            sortedBlocks[i] = (int) keys[i];
+        }
+
+        long basisSize = basis.size();
+        if (fullBlocks > 0 && basisSize >= blockSize) {
+            int segments = (int) ((basisSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            try {
+                IntStream.range(0, segments).parallel().forEach(segment -> {
+                    try {
+                        scan(basis, basisSize, (long) segment * SEGMENT_SIZE, signatures,
+                                filter, sortedRolling, sortedBlocks, sources);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        long[] result = new long[sources.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = sources.get(i);
+        }
+        return new DeltaPlan(blockSize, fileSize, result);
+    }
+
+    /**
+     * Returns the [offset, length] pairs of the server file not found locally, in ascending
+     * order.
+     */
+    List<long[]> getMissing() {
+        List<long[]> missing = new ArrayList<>();
+        for (int block = 0; block < sources.length; block++) {
+            if (sources[block] >= 0) {
+                continue;
+            }
+            long start = (long) block * blockSize;
+            long end = Math.min(fileSize, start + blockSize);
+            long[] last = missing.isEmpty() ? null : missing.get(missing.size() - 1);
+            if (last != null && last[0] + last[1] == start) {
+                last[1] += end - start;
+            } else {
+                missing.add(new long[] { start, end - start });
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Drops the matches of every block of the given size that is not found whole, so that the
+     * ranges left to fetch start and end on its boundaries. Verify mode needs it, as only the
+     * checksum blocks a range fully covers are checked. The size must be a multiple of the delta
+     * block size.
+     */
+    void alignMissing(int alignment) {
+        int blocks = alignment / blockSize;
+        for (int first = 0; first < sources.length; first += blocks) {
+            int last = Math.min(sources.length, first + blocks);
+            for (int block = first; block < last; block++) {
+                if (sources[block] < 0) {
+                    Arrays.fill(sources, first, last, -1);
+                    break;
+                }
+            }
+        }
+    }
+
+    long getMatchedBytes() {
+        long matched = 0;
+        for (long source : sources) {
+            if (source >= 0) {
+                matched += blockSize;
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Copies the matched blocks from the local copy into the new file, in parallel. Runs of
+     * blocks that follow each other in both files are copied as one.
+     */
+    void copy(FileChannel basis, FileChannel target) throws IOException {
+        List<long[]> copies = new ArrayList<>();
+        for (int block = 0; block < sources.length; block++) {
+            if (sources[block] < 0) {
+                continue;
+            }
+            long position = (long) block * blockSize;
+            long[] last = copies.isEmpty() ? null : copies.get(copies.size() - 1);
+            if (last != null && last[0] + last[2] == position
+                    && last[1] + last[2] == sources[block] && last[2] < COPY_PIECE_SIZE) {
+                last[2] += blockSize;
+            } else {
+                copies.add(new long[] { position, sources[block], blockSize });
+            }
+        }
+        try {
+            copies.parallelStream().forEach(copy -> {
+                try {
+                    copy(basis, copy[1], target, copy[0], copy[2]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        LOG.debug("Copied {} local blocks in {} pieces", getMatchedBytes() / blockSize,
+                copies.size());
+    }
+
+    private static void copy(FileChannel from, long source, FileChannel to, long position,
+            long length) throws IOException {
+        ByteBuffer buffer = BufferPool.getShared()
+                .acquire((int) Math.min(length, PFTConstants.WRITE_BUFFER_SIZE));
+        try {
+            long copied = 0;
+            while (copied < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - copied));
+                while (buffer.hasRemaining()) {
+                    if (from.read(buffer, source + copied + buffer.position()) < 0) {
+                        throw new IOException("Local copy shrunk while copying blocks");
+                    }
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    copied += to.write(buffer, position + copied);
+                }
+            }
+        } finally {
+            BufferPool.getShared().release(buffer);
+        }
+    }
+
+    private static void fetchSlice(ConnectionPool connectionPool, int fileId,
+            BlockSignatures signatures, int first, int last)
+            throws IOException, InterruptedException, SocketCloseException {
+        ConnectionPool.PooledConnection connection = connectionPool.borrow();
+        boolean status = false;
+        try {
+            SocketChannel client = connection.getChannel();
+            int maxBatch = BlockSignatureResponseMsg.MAX_SIGNATURES;
+            int requested = first;
+            int received = first;
+            while (received < last) {
+                while (requested < last && requested - received < WINDOW * maxBatch) {
+                    int batch = Math.min(last - requested, maxBatch);
+                    Message.sendMessage(client,
+                            new BlockSignatureRequestMsg(fileId, requested, batch));
+                    requested += batch;
+                }
+                BlockSignatureResponseMsg response = (BlockSignatureResponseMsg) Message
+                        .nextMsgFromSocket(client, connection.getBuffer());
+                if (response.getBlockSize() != signatures.getBlockSize()
+                        || response.getFirstBlock() != received || response.getCount() == 0) {
+                    throw new IOException("Unexpected signature response " + response);
+                }
+                for (int i = 0; i < response.getCount(); i++) {
+                    signatures.set(received + i, response.getRolling(i), response.getStrong(i));
+                }
+                received += response.getCount();
+            }
+            status = true;
+        } finally {
+            if (status) {
+                connectionPool.release(connection);
+            } else {
+                connectionPool.invalidate(connection);
+            }
+        }
+    }
+
+    /**
+     * Slides the rolling checksum over every offset of one segment of the local copy. A window
+     * may run past the end of the segment into the next one.
+     */
+    private static void scan(FileChannel basis, long basisSize, long start,
+            BlockSignatures signatures, BitSet filter, int[] sortedRolling, int[] sortedBlocks,
+            AtomicLongArray sources) throws IOException {
+        int blockSize = signatures.getBlockSize();
+        long end = Math.min(basisSize, start + SEGMENT_SIZE);
+        long mapEnd = Math.min(basisSize, end + blockSize - 1);
+        if (mapEnd - start < blockSize) {
+            return;
+        }
+        MappedByteBuffer map = basis.map(FileChannel.MapMode.READ_ONLY, start, mapEnd - start);
+        try {
+            int limit = (int) (mapEnd - start);
+            int windows = (int) (end - start);
+            RollingChecksum rolling = new RollingChecksum();
+            rolling.reset(map, 0, blockSize);
+            int position = 0;
+            while (true) {
+                boolean matched = false;
+                int value = rolling.getValue();
+                if (filter.get(filterIndex(value))) {
+                    int i = Arrays.binarySearch(sortedRolling, value);
+                    while (i > 0 && sortedRolling[i - 1] == value) {
+                        i--;
+                    }
+                    long strong = 0;
+                    boolean hashed = false;
+                    for (; i >= 0 && i < sortedRolling.length && sortedRolling[i] == value; i++) {
+                        if (!hashed) {
+                            strong = RollingChecksum.strong(map, position, blockSize);
+                            hashed = true;
+                        }
+                        int block = sortedBlocks[i];
+                        if (signatures.getStrong()[block] == strong) {
+                            sources.compareAndSet(block, -1, start + position);
+                            matched = true;
+                        }
+                    }
+                }
+                if (matched) {
+                    // blocks do not overlap, carry on right after the match
+                    position += blockSize;
+                    if (position >= windows || position + blockSize > limit) {
+                        break;
+                    }
+                    rolling.reset(map, position, blockSize);
+                } else {
+                    if (position + 1 >= windows || position + blockSize >= limit) {
+                        break;
+                    }
+                    rolling.roll(map.get(position), map.get(position + blockSize));
+                    position++;
+                }
+            }
+        } finally {
+            MappedBuffers.unmap(map);
+        }
+    }
+
+    private static int filterIndex(int rolling) {
+        return (rolling * 0x9E3779B9) >>> (32 - FILTER_BITS);
+    }
+}
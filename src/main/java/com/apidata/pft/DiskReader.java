@@ -0,0 +1,125 @@
+package com.apidata.pft;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DiskReader does the file reads of the {@link Reactor}s on a bounded pool of threads, so a cold
+ * read from a slow disk only holds up the chunk waiting for it and never the select loop. The
+ * queue of the pool is bounded: a read that does not fit is refused and the reactor tries again
+ * a little later instead of queuing without limit. At most maxFileReads reads of the same file
+ * run at once, the others are refused the same way, so many clients of one file do not make the
+ * disk seek back and forth between them.
+ */
+class DiskReader {
+    private static final Logger LOG = LoggerFactory.getLogger(DiskReader.class);
+
+    private final ThreadPoolExecutor executor;
+    private final int maxFileReads;
+    private final Map<String, Integer> fileReads;
+    private final ServerMetrics metrics;
+
+    /**
+     * Called on the reader thread once a read is over.
+     */
+    interface Callback {
+        /**
+         * @param buffer the buffer, ready for reading
+         * @param error  what failed, null if the read succeeded
+         */
+        void done(ByteBuffer buffer, IOException error);
+    }
+
+    DiskReader(int threads, int queueSize, int maxFileReads, ServerMetrics metrics) {
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread thread = new Thread(r, "pft-io-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxFileReads = maxFileReads;
+        this.fileReads = new HashMap<>();
+        this.metrics = metrics;
+    }
+
+    /**
+     * Fills the buffer, cleared and limited to the bytes wanted, from the file at position,
+     * unless the pool or the file has too many reads going on already. Reaching the end of the
+     * file first is an error.
+     *
+     * @return false if the read was refused and should be tried again later
+     */
+    boolean read(FileHandleCache.FileHandle handle, long position, ByteBuffer buffer,
+            Callback callback) {
+        String path = handle.getPath();
+        synchronized (fileReads) {
+            int reads = fileReads.getOrDefault(path, 0);
+            if (reads >= maxFileReads) {
+                metrics.readDeferred();
+                return false;
+            }
+            fileReads.put(path, reads + 1);
+        }
+        long queued = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                IOException error = null;
+                try {
+                    fill(handle.getChannel(), position, buffer);
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    done(path);
+                }
+                metrics.diskRead(System.nanoTime() - queued);
+                buffer.flip();
+                callback.done(buffer, error);
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            done(path);
+            metrics.readDeferred();
+            return false;
+        }
+    }
+
+    private void done(String path) {
+        synchronized (fileReads) {
+            int reads = fileReads.get(path) - 1;
+            if (reads == 0) {
+                fileReads.remove(path);
+            } else {
+                fileReads.put(path, reads);
+            }
+        }
+    }
+
+    private static void fill(FileChannel channel, long position, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("File shrunk while reading at " + position);
+            }
+        }
+    }
+
+    /**
+     * Lets the reads under way finish, an interrupted read would close the shared file channel.
+     */
+    void close() {
+        LOG.debug("Disk reader stopping with {} reads queued", executor.getQueue().size());
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,162 @@
+package com.apidata.pft;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EventLoop runs a Selector on its own thread for the {@link ClientEngine}, the client side
+ * counterpart of a {@link Reactor}. Channels registered with it, and the handlers attached to
+ * them, are only touched from that thread; other threads hand work over with
+ * {@link #execute(Runnable)}. Timers run on the same thread, so handlers need no locking.
+ */
+class EventLoop implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(EventLoop.class);
+
+    private final int id;
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final PriorityQueue<Timer> timers;
+    private final Thread thread;
+
+    /**
+     * Reacts to the readiness of the channel it is attached to.
+     */
+    interface Handler {
+        void ready(SelectionKey key) throws IOException;
+
+        /**
+         * Called when {@link #ready} failed. The handler is expected to close its channel.
+         */
+        void failed(IOException e);
+    }
+
+    EventLoop(int id) throws IOException {
+        this.id = id;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.timers = new PriorityQueue<>();
+        this.thread = new Thread(this, "pft-loop-" + id);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void close() {
+        thread.interrupt();
+    }
+
+    /**
+     * Runs the task on the loop thread.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the loop thread once the delay has passed. Only to be called from the loop
+     * thread.
+     */
+    void schedule(Runnable task, long delayNanos) {
+        timers.add(new Timer(System.nanoTime() + delayNanos, task));
+    }
+
+    /**
+     * Registers the channel with the handler attached. Only to be called from the loop thread.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+            throws IOException {
+        return channel.register(selector, ops, handler);
+    }
+
+    @Override
+    public void run() {
+        LOG.debug("EventLoop-{} running...", id);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select(selectTimeout());
+                runTasks();
+                runTimers();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        handler.ready(key);
+                    } catch (IOException e) {
+                        handler.failed(e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("IOException occurred", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((Handler) key.attachment()).failed(new IOException("Event loop stopped"));
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOG.error("IOException occurred", e);
+            }
+            LOG.debug("EventLoop-{} stopped", id);
+        }
+    }
+
+    private long selectTimeout() {
+        Timer next = timers.peek();
+        if (next == null) {
+            return 0;
+        }
+        // 0 would block for good
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime()));
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+            timers.poll().task.run();
+        }
+    }
+
+    /**
+     * A task to run at the deadline, in System.nanoTime.
+     */
+    private static class Timer implements Comparable<Timer> {
+        private final long deadline;
+        private final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.apidata.pft;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FileHandleCache keeps read-only FileChannels and the metadata of recently served files open, so
+ * that consecutive chunk requests for the same file do not pay an open/close each. Entries are
+ * evicted in LRU order once more than maxOpen files are open, and are replaced when the size or
+ * mtime of the file on disk changes. A handle stays usable until it is released by every reader,
+ * even if it got evicted in the meantime.
+ */
+public class FileHandleCache {
+    private static final Logger LOG = LoggerFactory.getLogger(FileHandleCache.class);
+
+    private final int maxOpen;
+    private final long revalidateMillis;
+    private final LinkedHashMap<String, FileHandle> handles;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public FileHandleCache(int maxOpen, long revalidateMillis) {
+        this.maxOpen = Math.max(1, maxOpen);
+        this.revalidateMillis = revalidateMillis;
+        this.handles = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns an open handle for the path, which must be handed back with {@link #release}.
+     *
+     * @throws NoSuchFileException if the file does not exist
+     */
+    public synchronized FileHandle acquire(String filePath) throws IOException {
+        long now = System.currentTimeMillis();
+        FileHandle handle = handles.get(filePath);
+        if (handle != null) {
+            if (now - handle.checkedAt < revalidateMillis) {
+                hits++;
+                handle.refs++;
+                return handle;
+            }
+            BasicFileAttributes attrs = readAttributes(filePath, handle);
+            if (attrs.size() == handle.size
+                    && attrs.lastModifiedTime().toMillis() == handle.lastModified) {
+                hits++;
+                handle.checkedAt = now;
+                handle.refs++;
+                return handle;
+            }
+            LOG.info("File {} changed on disk, invalidating cached handle", filePath);
+            invalidations++;
+            retire(handles.remove(filePath));
+        }
+
+        misses++;
+        Path path = Paths.get(filePath);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        handle = new FileHandle(filePath, channel, attrs.size(),
+                attrs.lastModifiedTime().toMillis(), now);
+        handle.refs++;
+        handles.put(filePath, handle);
+        evictOverflow();
+        return handle;
+    }
+
+    /**
+     * Takes one more reference to a handle already held, for a read that may outlive the holder.
+     */
+    synchronized void retain(FileHandle handle) {
+        handle.refs++;
+    }
+
+    public synchronized void release(FileHandle handle) throws IOException {
+        handle.refs--;
+        if (handle.retired && handle.refs == 0) {
+            handle.channel.close();
+        }
+    }
+
+    /**
+     * Drops the cached handle of the path, if any. Readers still holding it may finish.
+     */
+    public synchronized void invalidate(String filePath) throws IOException {
+        FileHandle handle = handles.remove(filePath);
+        if (handle != null) {
+            invalidations++;
+            retire(handle);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        for (FileHandle handle : handles.values()) {
+            retire(handle);
+        }
+        handles.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized int getOpenFiles() {
+        return handles.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "open=" + handles.size() + ", hits=" + hits + ", misses=" + misses + ", evictions="
+                + evictions + ", invalidations=" + invalidations;
+    }
+
+    private BasicFileAttributes readAttributes(String filePath, FileHandle handle)
+            throws IOException {
+        try {
+            return Files.readAttributes(Paths.get(filePath), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            invalidations++;
+            retire(handles.remove(filePath));
+            throw e;
+        }
+    }
+
+    private void evictOverflow() throws IOException {
+        Iterator<Map.Entry<String, FileHandle>> it = handles.entrySet().iterator();
+        while (handles.size() > maxOpen && it.hasNext()) {
+            FileHandle eldest = it.next().getValue();
+            it.remove();
+            evictions++;
+            LOG.debug("Evicted file handle {}", eldest.path);
+            retire(eldest);
+        }
+    }
+
+    private void retire(FileHandle handle) throws IOException {
+        handle.retired = true;
+        if (handle.refs == 0) {
+            handle.channel.close();
+        }
+    }
+
+    /**
+     * An open read-only channel of a file along with the size and mtime seen when it was opened.
+     */
+    public static class FileHandle {
+        private final String path;
+        private final FileChannel channel;
+        private final long size;
+        private final long lastModified;
+        private long checkedAt;
+        private int refs;
+        private boolean retired;
+
+        FileHandle(String path, FileChannel channel, long size, long lastModified,
+                long checkedAt) {
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checkedAt = checkedAt;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+}
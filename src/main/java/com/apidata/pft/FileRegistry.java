@@ -0,0 +1,55 @@
+package com.apidata.pft;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FileRegistry hands out the ids a client uses to refer to a file once the handshake told it the
+ * file exists, so chunk requests carry a fixed width int instead of the path. It keeps the
+ * {@link PFTConstants#MAX_REGISTERED_FILES} files registered or asked for most recently; the id
+ * of a file dropped is unknown from then on, and the file gets a new one if registered again.
+ */
+class FileRegistry {
+    private final Map<String, Integer> ids;
+    private final LinkedHashMap<Integer, String> paths;
+    private int nextId;
+
+    FileRegistry() {
+        this.ids = new HashMap<>();
+        this.paths = new LinkedHashMap<Integer, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                if (size() > PFTConstants.MAX_REGISTERED_FILES) {
+                    ids.remove(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    synchronized int register(String filePath) {
+        Integer id = ids.get(filePath);
+        if (id != null) {
+            // keeps it recently used
+            paths.get(id);
+            return id;
+        }
+        // 0 is not an id
+        if (++nextId == 0) {
+            nextId = 1;
+        }
+        ids.put(filePath, nextId);
+        paths.put(nextId, filePath);
+        return nextId;
+    }
+
+    /**
+     * @return the path registered for the id, or null if the id was never handed out or was
+     * dropped since
+     */
+    synchronized String getPath(int fileId) {
+        return paths.get(fileId);
+    }
+}
@@ -0,0 +1,71 @@
+package com.apidata.pft;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * FileVersionCache computes something about a served file once per version (size and mtime) of
+ * it and keeps the result in memory for the most recent files. The computation runs on a thread
+ * of its own, off the reactor threads, and callers get a future. A failed computation is tried
+ * again on the next request.
+ */
+abstract class FileVersionCache<T> {
+    private static final int MAX_ENTRIES = 64;
+
+    private final ExecutorService executor;
+    private final LinkedHashMap<String, Entry<T>> entries;
+
+    FileVersionCache(String threadName) {
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.entries = new LinkedHashMap<String, Entry<T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<T>> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * Returns the value for the file version the handle was opened on. The handle must stay
+     * acquired until the future completes.
+     */
+    synchronized CompletableFuture<T> get(FileHandleCache.FileHandle handle) {
+        Entry<T> entry = entries.get(handle.getPath());
+        if (entry == null || entry.size != handle.getSize()
+                || entry.lastModified != handle.getLastModified()
+                || entry.value.isCompletedExceptionally()) {
+            entry = new Entry<>(handle.getSize(), handle.getLastModified(),
+                    CompletableFuture.supplyAsync(() -> compute(handle), executor));
+            entries.put(handle.getPath(), entry);
+        }
+        return entry.value;
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Computes the value from the file, on the cache thread.
+     */
+    abstract T compute(FileHandleCache.FileHandle handle);
+
+    private static class Entry<T> {
+        private final long size;
+        private final long lastModified;
+        private final CompletableFuture<T> value;
+
+        Entry(long size, long lastModified, CompletableFuture<T> value) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.value = value;
+        }
+    }
+}
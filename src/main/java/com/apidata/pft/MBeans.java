@@ -0,0 +1,47 @@
+package com.apidata.pft;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Publishes metrics on the platform MBean server. Failing to do so is logged and otherwise
+ * ignored, a transfer never fails for want of metrics.
+ */
+class MBeans {
+    private static final Logger LOG = LoggerFactory.getLogger(MBeans.class);
+    static final String DOMAIN = "com.apidata.pft";
+
+    /**
+     * @return the name it was registered under, null if it could not be
+     */
+    static ObjectName register(Object mbean, String properties) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mbean, name);
+            return name;
+        } catch (JMException e) {
+            LOG.warn("Unable to register MBean {}", properties, e);
+            return null;
+        }
+    }
+
+    static void unregister(ObjectName name) {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            LOG.warn("Unable to unregister MBean {}", name, e);
+        }
+    }
+}
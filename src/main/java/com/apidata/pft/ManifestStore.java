@@ -0,0 +1,215 @@
+package com.apidata.pft;
+
+import com.apidata.pft.message.ManifestResponseMsg;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ManifestStore walks the directory trees clients ask for and keeps the resulting manifests for a
+ * while, so a client can page through a large tree and get every page from the same walk. Walks
+ * run off the reactor threads; callers get a future. Every file of a manifest is registered with
+ * the {@link FileRegistry} so it can be fetched by id, as long as the registry still holds it.
+ */
+class ManifestStore {
+    private static final Logger LOG = LoggerFactory.getLogger(ManifestStore.class);
+    private static final int MAX_MANIFESTS = 16;
+
+    private final FileRegistry fileRegistry;
+    private final ExecutorService executor;
+    private final LinkedHashMap<Integer, Manifest> manifests;
+    private final AtomicInteger nextId;
+
+    ManifestStore(FileRegistry fileRegistry) {
+        this.fileRegistry = fileRegistry;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "pft-manifest");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.manifests = new LinkedHashMap<Integer, Manifest>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Manifest> eldest) {
+                return size() > MAX_MANIFESTS;
+            }
+        };
+        this.nextId = new AtomicInteger();
+    }
+
+    /**
+     * Walks the tree under dirPath into a new manifest.
+     */
+    CompletableFuture<Manifest> walk(String dirPath) {
+        return CompletableFuture.supplyAsync(() -> {
+            Manifest manifest = build(dirPath);
+            if (manifest.id != 0) {
+                synchronized (this) {
+                    manifests.put(manifest.id, manifest);
+                }
+            }
+            return manifest;
+        }, executor);
+    }
+
+    /**
+     * @return the manifest with the id, or null if it expired
+     */
+    synchronized Manifest get(int manifestId) {
+        return manifests.get(manifestId);
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns true for the files kept next to the data: checksums, transfer journals, and the
+     * temporary files of delta downloads and uploads.
+     */
+    private static boolean isSidecar(String name) {
+        if (name.endsWith(ChecksumStore.SUFFIX) || name.endsWith(TransferJournal.SUFFIX)
+                || name.endsWith(DeltaPlan.SUFFIX)) {
+            return true;
+        }
+        // uploads are suffixed with their id as well
+        int suffix = name.lastIndexOf(UploadStore.SUFFIX + ".");
+        if (suffix < 0) {
+            return false;
+        }
+        String id = name.substring(suffix + UploadStore.SUFFIX.length() + 1);
+        return !id.isEmpty() && id.chars().allMatch(Character::isDigit);
+    }
+
+    private Manifest build(String dirPath) {
+        Path root = Paths.get(dirPath);
+        if (!Files.isDirectory(root)) {
+            LOG.warn("Directory not found-{}", dirPath);
+            return new Manifest(0, new ArrayList<>(), new ArrayList<>(), new ArrayList<>(),
+                    new ArrayList<>());
+        }
+        long startTime = System.currentTimeMillis();
+        List<String> paths = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        List<Long> lastModified = new ArrayList<>();
+        List<Integer> fileIds = new ArrayList<>();
+        int maxPathBytes = ManifestResponseMsg.MAX_PAGE_BYTES - ManifestResponseMsg.ENTRY_OVERHEAD;
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    // links are not followed and the sidecars are not data
+                    if (!attrs.isRegularFile() || isSidecar(file.getFileName().toString())) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    String path = root.relativize(file).toString();
+                    if (path.getBytes().length > maxPathBytes) {
+                        LOG.warn("Skipping {}, its path is too long", file);
+                        return FileVisitResult.CONTINUE;
+                    }
+                    paths.add(path);
+                    sizes.add(attrs.size());
+                    lastModified.add(attrs.lastModifiedTime().toMillis());
+                    fileIds.add(fileRegistry.register(file.toString()));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    LOG.warn("Skipping {}", file, e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Manifest manifest =
+                new Manifest(nextId.incrementAndGet(), paths, sizes, lastModified, fileIds);
+        LOG.info("Walked {} files of {} into {} manifest pages in {} msecs", paths.size(),
+                dirPath, manifest.getPages(), System.currentTimeMillis() - startTime);
+        if (paths.size() > PFTConstants.MAX_REGISTERED_FILES) {
+            LOG.warn("{} holds more than {} files, the ids of the first ones are dropped already",
+                    dirPath, PFTConstants.MAX_REGISTERED_FILES);
+        }
+        return manifest;
+    }
+
+    /**
+     * The regular files found under a directory, cut into pages. The id of a manifest for a
+     * missing directory is 0.
+     */
+    static class Manifest {
+        private final int id;
+        private final String[] paths;
+        private final long[] sizes;
+        private final long[] lastModified;
+        private final int[] fileIds;
+        private final int[] pageStarts;
+
+        Manifest(int id, List<String> paths, List<Long> sizes, List<Long> lastModified,
+                List<Integer> fileIds) {
+            this.id = id;
+            int count = paths.size();
+            this.paths = paths.toArray(new String[count]);
+            this.sizes = new long[count];
+            this.lastModified = new long[count];
+            this.fileIds = new int[count];
+            List<Integer> starts = new ArrayList<>();
+            starts.add(0);
+            int pageBytes = 0;
+            for (int i = 0; i < count; i++) {
+                this.sizes[i] = sizes.get(i);
+                this.lastModified[i] = lastModified.get(i);
+                this.fileIds[i] = fileIds.get(i);
+                int entryBytes =
+                        ManifestResponseMsg.ENTRY_OVERHEAD + this.paths[i].getBytes().length;
+                if (pageBytes + entryBytes > ManifestResponseMsg.MAX_PAGE_BYTES) {
+                    starts.add(i);
+                    pageBytes = 0;
+                }
+                pageBytes += entryBytes;
+            }
+            starts.add(count);
+            this.pageStarts = new int[starts.size()];
+            for (int i = 0; i < pageStarts.length; i++) {
+                pageStarts[i] = starts.get(i);
+            }
+        }
+
+        int getPages() {
+            return pageStarts.length - 1;
+        }
+
+        /**
+         * Returns the response carrying the page, which is empty if out of range.
+         */
+        ManifestResponseMsg page(int page) {
+            if (id == 0) {
+                return expired(0, page);
+            }
+            int from = page >= 0 && page < getPages() ? pageStarts[page] : 0;
+            int to = page >= 0 && page < getPages() ? pageStarts[page + 1] : 0;
+            return new ManifestResponseMsg(id, page, getPages(), paths, sizes, lastModified,
+                    fileIds, from, to - from);
+        }
+
+        static ManifestResponseMsg expired(int manifestId, int page) {
+            return new ManifestResponseMsg(manifestId, page, -1, null, null, null, null, 0, 0);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.apidata.pft;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Unmaps mapped buffers as soon as they are done with, instead of leaving the mapping to the
+ * garbage collector, which may keep gigabytes of address space and file pages pinned long after
+ * a transfer. There is no public API for it: Java 9 and later have Unsafe.invokeCleaner, Java 8
+ * the cleaner of the buffer. Failing to unmap is logged once and otherwise ignored, the mapping
+ * then goes with the buffer.
+ */
+class MappedBuffers {
+    private static final Logger LOG = LoggerFactory.getLogger(MappedBuffers.class);
+    private static volatile boolean failed;
+
+    /**
+     * Unmaps the buffer, which must not be used afterwards.
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        if (buffer == null || failed) {
+            return;
+        }
+        try {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            failed = true;
+            LOG.warn("Unable to unmap buffers, leaving them to the garbage collector", e);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.apidata.pft;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Meter counts events, such as bytes, without locking and turns the count into a rate when read:
+ * the events per second since the previous reading. Readings closer than a second apart return
+ * the last rate again, so a busy JMX console does not make it jumpy.
+ */
+class Meter {
+    private static final long MIN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final LongAdder total;
+    private long lastTotal;
+    private long lastNanos;
+    private long rate;
+
+    Meter() {
+        this.total = new LongAdder();
+        this.lastNanos = System.nanoTime();
+    }
+
+    void mark(long count) {
+        total.add(count);
+    }
+
+    long getTotal() {
+        return total.sum();
+    }
+
+    synchronized long getRate() {
+        long now = System.nanoTime();
+        if (now - lastNanos >= MIN_INTERVAL_NANOS) {
+            long current = total.sum();
+            rate = (long) ((current - lastTotal) * (double) TimeUnit.SECONDS.toNanos(1)
+                    / (now - lastNanos));
+            lastTotal = current;
+            lastNanos = now;
+        }
+        return rate;
+    }
+}
@@ -1,115 +1,501 @@
 package com.apidata.pft;
 
-import com.apidata.pft.message.FileChunkRequestMsg;
+import com.apidata.pft.exception.SocketCloseException;
+import com.apidata.pft.message.BlockChecksumRequestMsg;
+import com.apidata.pft.message.BlockChecksumResponseMsg;
+import com.apidata.pft.message.FileRangeRequestMsg;
+import com.apidata.pft.message.FileRangeResponseMsg;
 import com.apidata.pft.message.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
-import static com.apidata.pft.PFTConstants.LENGTH_SIZE;
+import static com.apidata.pft.PFTConstants.CHECKSUM_BLOCK_SIZE;
+import static com.apidata.pft.PFTConstants.MAX_BLOCK_RETRIES;
 
 /**
  * PFTChunkClient thread pulls data for specific offset from server and returns a Result object.
+ * The whole range is requested with a single {@link FileRangeRequestMsg}, so the server keeps
+ * streaming instead of waiting for a request per {@link PFTConstants#LENGTH_SIZE} piece. The
+ * connection is borrowed from a {@link ConnectionPool} and shared with the other chunks. The
+ * bytes written so far are published, so that another attempt can take over from there, and a
+ * running fetch can be cancelled once another attempt has completed the range.
+ * <p>
+ * The payload is gathered into large positional writes of {@link PFTConstants#WRITE_BUFFER_SIZE},
+ * or read straight into a memory-mapped window of the file in mapped mode. Compressed frames are
+ * inflated by this thread and always go through the positional writes.
  */
 
-public class PFTChunkClient implements Callable {
+public class PFTChunkClient implements Callable, ChunkScheduler.Fetch {
     private static final Logger LOG = LoggerFactory.getLogger(PFTChunkClient.class);
+    private static final long STALL_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(PFTConstants.STALL_MILLIS);
 
     private int chunkId;
-    private String hostName;
-    private int port;
-    private String serverFilePath;
+    private ConnectionPool connectionPool;
+    private int fileId;
     private long offset;
     private FileChannel channel;
     private long startPosition;
+    private boolean verify;
+    private long fileSize;
+    private int[] fileChecksums;
+    private boolean mapped;
+    private boolean sync;
+    private byte compression = Message.COMPRESSION_NONE;
+    private volatile long fetched;
+    private long bytes;
+    private int stalls;
+    private long rttNanos;
+    private boolean cancelled;
+    private ConnectionPool.PooledConnection connection;
 
-    public PFTChunkClient(int chunkId, String hostName, int port, String serverFilePath,
-            long offset, long startPosition, FileChannel channel) {
+    public PFTChunkClient(int chunkId, ConnectionPool connectionPool, int fileId, long offset,
+            long startPosition, FileChannel channel) {
         this.chunkId = chunkId;
-        this.hostName = hostName;
-        this.port = port;
-        this.serverFilePath = serverFilePath;
+        this.connectionPool = connectionPool;
+        this.fileId = fileId;
         this.offset = offset;
         this.startPosition = startPosition;
         this.channel = channel;
     }
 
+    /**
+     * Verifies every block the range fully covers against the server checksums and re-fetches
+     * the blocks that do not match, up to {@link PFTConstants#MAX_BLOCK_RETRIES} times each.
+     */
+    public void setVerify(long fileSize) {
+        this.verify = true;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Verifies against the checksums of every block of the file, as sent by another server,
+     * instead of asking the server of the connection for them. A peer serving corrupted blocks
+     * then cannot vouch for them itself.
+     */
+    public void setVerify(long fileSize, int[] fileChecksums) {
+        setVerify(fileSize);
+        this.fileChecksums = fileChecksums;
+    }
+
+    /**
+     * Writes through a memory-mapped window of the file instead of positional writes. With sync
+     * the window is forced to disk before the range counts as fetched, otherwise flushing is left
+     * to the OS.
+     */
+    public void setMapped(boolean sync) {
+        this.mapped = true;
+        this.sync = sync;
+    }
+
+    /**
+     * Asks for the range compressed, as agreed with the server in the handshake.
+     */
+    public void setCompression(byte compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns how many bytes from the start position have been written so far.
+     */
+    @Override
+    public long getFetched() {
+        return fetched;
+    }
+
+    /**
+     * Returns the time from sending the request for the range to the server answering it, 0 if
+     * it did not answer.
+     */
+    public long getRttNanos() {
+        return rttNanos;
+    }
+
+    /**
+     * Stops the fetch by closing its connection, which then is not returned to the pool.
+     */
+    @Override
+    public synchronized void cancel() {
+        cancelled = true;
+        if (connection != null) {
+            try {
+                connection.getChannel().close();
+            } catch (IOException e) {
+                LOG.error("IOException occurred", e);
+            }
+        }
+    }
+
     @Override
     public Result call() {
         Long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         boolean status = false;
         LOG.info("Started PFTChunkClient-{}", chunkId);
-        InetSocketAddress hostAddress = new InetSocketAddress(hostName, port);
-        SocketChannel client = null;
+        ConnectionPool.PooledConnection connection = null;
         try {
-            client = SocketChannel.open(hostAddress);
-            LOG.info("Connect to server:{}", client.getRemoteAddress());
-            //            client.socket().setReceiveBufferSize(LENGTH_SIZE);
-
-            if (client.isOpen()) {
-                // formulate the request message and send it to the server.
-
-                long bufferChunks = offset / LENGTH_SIZE;
-                long remainder = offset % LENGTH_SIZE;
-
-                FileChunkRequestMsg msg = null;
-                int len = 0;
-                long totalBytes = 0;
-                while (bufferChunks > 0) {
-                    msg = new FileChunkRequestMsg(serverFilePath, startPosition, chunkId,
-                                    LENGTH_SIZE);
-                    Message.sendMessage(client, msg);
-                    ByteBuffer buffer = ByteBuffer.allocate(LENGTH_SIZE);
-                    int currLen = 0;
-                    while (currLen < LENGTH_SIZE && (len = client.read(buffer)) > 0) {
-                        totalBytes += len;
-                        // put the data into the fileChannel
-                        buffer.flip();
-                        channel.write(buffer, startPosition);
-                        startPosition += len;
-                        buffer.clear();
-                        currLen += len;
-                    }
-                    bufferChunks--;
+            connection = connectionPool.borrow();
+            synchronized (this) {
+                this.connection = connection;
+                if (cancelled) {
+                    connection.getChannel().close();
+                }
+            }
+            SocketChannel client = connection.getChannel();
+            ByteBuffer buffer = connection.getBuffer();
+
+            BlockVerifier verifier = null;
+            if (verify && offset > 0) {
+                verifier = new BlockVerifier(fileSize, CHECKSUM_BLOCK_SIZE, startPosition,
+                        checksums(client, buffer, startPosition, offset));
+            }
+            long totalBytes = fetch(client, buffer, startPosition, offset, verifier);
+            bytes += totalBytes;
+            status = totalBytes == offset;
+            if (status && verifier != null) {
+                LOG.debug("PFTChunkClient-{} verified {} blocks, {} corrupted", chunkId,
+                        verifier.getVerifiedBlocks(), verifier.getFailedBlocks().size());
+                status = refetch(client, buffer, verifier.getFailedBlocks());
+            }
+            LOG.info("Total bytes asked {} downloaded {} by PFTChunkClient-{}", offset,
+                    totalBytes, chunkId);
+        } catch (IOException e) {
+            if (isCancelled()) {
+                LOG.debug("PFTChunkClient-{} cancelled", chunkId);
+            } else {
+                LOG.error("IOException occurred", e);
+            }
+        } catch (SocketCloseException e) {
+            LOG.error("SocketCloseException occurred", e);
+        } catch (InterruptedException e) {
+            LOG.error("InterruptedException occurred", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (this) {
+                // a cancel may have closed the channel after the last byte arrived
+                this.connection = null;
+                status = status && !cancelled;
+            }
+            if (connection != null) {
+                if (status) {
+                    connectionPool.release(connection);
+                } else {
+                    // the stream may be left mid-payload, never hand it to another chunk
+                    connectionPool.invalidate(connection);
                 }
+            }
+        }
+        Long endTime = System.currentTimeMillis();
+        return new Result(chunkId, endTime - startTime, status, bytes,
+                System.nanoTime() - startNanos, stalls);
+    }
 
-                if (remainder > 0) {
-                    msg = new FileChunkRequestMsg(serverFilePath, startPosition, chunkId,
-                                    (int) remainder);
-                    Message.sendMessage(client, msg);
-                    int currLen = 0;
-                    ByteBuffer buffer = ByteBuffer.allocate((int) remainder);
-                    while (currLen < remainder && (len = client.read(buffer)) > 0) {
-                        totalBytes += len;
-                        // put the data into the fileChannel
-                        buffer.flip();
-                        channel.write(buffer, startPosition);
-                        buffer.clear();
-                        currLen += len;
+    /**
+     * Asks the server for the whole range at once and writes what it streams back to the file.
+     *
+     * @return the number of bytes written, less than length if the server file is shorter
+     */
+    private long fetch(SocketChannel client, ByteBuffer buffer, long start, long length,
+            BlockVerifier verifier) throws IOException, SocketCloseException {
+        FileRangeRequestMsg msg =
+                new FileRangeRequestMsg(fileId, start, length, chunkId, compression);
+        long sentNanos = System.nanoTime();
+        Message.sendMessage(client, msg);
+
+        FileRangeResponseMsg response =
+                (FileRangeResponseMsg) Message.nextMsgFromSocket(client, buffer);
+        if (rttNanos == 0) {
+            rttNanos = System.nanoTime() - sentNanos;
+        }
+        long expected = response.getLength();
+        // verified bytes only count once their blocks are checked
+        boolean progress = verifier == null && start == startPosition;
+        if (compression == Message.COMPRESSION_DEFLATE) {
+            return fetchCompressed(client, buffer, start, expected, verifier, progress);
+        }
+        if (mapped) {
+            return fetchMapped(client, buffer, start, expected, verifier, progress);
+        }
+
+        // the buffer may already hold the first payload bytes read along with the header
+        ByteBuffer writeBuffer = BufferPool.getShared().acquire(PFTConstants.WRITE_BUFFER_SIZE);
+        try {
+            writeBuffer.put(buffer);
+            return write(client, writeBuffer, start, expected, verifier, progress);
+        } finally {
+            BufferPool.getShared().release(writeBuffer);
+        }
+    }
+
+    /**
+     * Reads the rest of the payload into the write buffer and puts it into the fileChannel with
+     * one positional write whenever the buffer is full.
+     */
+    private long write(SocketChannel client, ByteBuffer writeBuffer, long start, long expected,
+            BlockVerifier verifier, boolean progress) throws IOException, SocketCloseException {
+        long received = writeBuffer.position();
+        long position = start;
+        while (position < start + expected) {
+            if (received < expected && writeBuffer.hasRemaining()) {
+                writeBuffer.limit((int) Math.min(writeBuffer.capacity(),
+                        writeBuffer.position() + expected - received));
+                received += read(client, writeBuffer);
+                if (received < expected && writeBuffer.hasRemaining()) {
+                    continue;
+                }
+            }
+            position = flush(writeBuffer, position, verifier);
+            if (progress) {
+                fetched = position - start;
+            }
+        }
+        return position - start;
+    }
+
+    /**
+     * Reads the compressed frames of the payload, inflates them and gathers the raw bytes into
+     * positional writes like {@link #write}.
+     */
+    private long fetchCompressed(SocketChannel client, ByteBuffer buffer, long start,
+            long expected, BlockVerifier verifier, boolean progress)
+            throws IOException, SocketCloseException {
+        int frameSize = PFTConstants.COMPRESSION_FRAME_SIZE;
+        ByteBuffer frameHeader = ByteBuffer.allocate(FileRangeResponseMsg.FRAME_HEADER_SIZE);
+        byte[] compressed = new byte[frameSize];
+        byte[] raw = new byte[frameSize];
+        Inflater inflater = new Inflater();
+        ByteBuffer writeBuffer = BufferPool.getShared().acquire(PFTConstants.WRITE_BUFFER_SIZE);
+        try {
+            long received = 0;
+            long position = start;
+            while (received < expected) {
+                frameHeader.clear();
+                readFully(client, buffer, frameHeader);
+                frameHeader.flip();
+                int rawLength = frameHeader.getInt();
+                int compressedLength = frameHeader.getInt();
+                if (rawLength <= 0 || rawLength > frameSize || compressedLength <= 0
+                        || compressedLength > rawLength || received + rawLength > expected) {
+                    throw new IOException("Corrupt frame of " + rawLength + "/"
+                            + compressedLength + " bytes in chunk " + chunkId);
+                }
+                ByteBuffer data = ByteBuffer.wrap(compressed, 0, compressedLength);
+                readFully(client, buffer, data);
+                if (compressedLength < rawLength) {
+                    inflater.reset();
+                    inflater.setInput(compressed, 0, compressedLength);
+                    try {
+                        if (inflater.inflate(raw, 0, rawLength) != rawLength
+                                || !inflater.finished()) {
+                            throw new IOException("Short frame in chunk " + chunkId);
+                        }
+                    } catch (DataFormatException e) {
+                        throw new IOException("Corrupt frame in chunk " + chunkId, e);
                     }
+                    data = ByteBuffer.wrap(raw, 0, rawLength);
+                } else {
+                    data.flip();
                 }
-                status = true;
-                LOG.info("Total bytes asked {} downloaded {} by PFTChunkClient-{}", offset,
-                        totalBytes, chunkId);
+                if (writeBuffer.remaining() < rawLength) {
+                    position = flush(writeBuffer, position, verifier);
+                    if (progress) {
+                        fetched = position - start;
+                    }
+                }
+                writeBuffer.put(data);
+                received += rawLength;
             }
-        } catch (IOException e) {
-            LOG.error("IOException occurred", e);
+            position = flush(writeBuffer, position, verifier);
+            if (progress) {
+                fetched = position - start;
+            }
+            return position - start;
         } finally {
+            inflater.end();
+            BufferPool.getShared().release(writeBuffer);
+        }
+    }
+
+    /**
+     * Fills the target, with the bytes left in the read buffer first and then from the socket.
+     */
+    private void readFully(SocketChannel client, ByteBuffer buffer, ByteBuffer target)
+            throws IOException, SocketCloseException {
+        if (buffer.hasRemaining()) {
+            ByteBuffer leftover = buffer.duplicate();
+            leftover.limit(leftover.position() + Math.min(leftover.remaining(),
+                    target.remaining()));
+            target.put(leftover);
+            buffer.position(leftover.position());
+        }
+        while (target.hasRemaining()) {
+            read(client, target);
+        }
+    }
+
+    /**
+     * Reads what the socket has, counting a read that blocks for over
+     * {@link PFTConstants#STALL_MILLIS} as a stall.
+     */
+    private int read(SocketChannel client, ByteBuffer target)
+            throws IOException, SocketCloseException {
+        long start = System.nanoTime();
+        int len = client.read(target);
+        if (len < 0) {
+            throw new SocketCloseException("Socket closed while reading");
+        }
+        if (System.nanoTime() - start > STALL_NANOS) {
+            stalls++;
+        }
+        return len;
+    }
+
+    /**
+     * Writes out the gathered bytes at position, checking them first if verifying.
+     *
+     * @return the position following the bytes written
+     */
+    private long flush(ByteBuffer writeBuffer, long position, BlockVerifier verifier)
+            throws IOException {
+        writeBuffer.flip();
+        if (verifier != null) {
+            verifier.update(writeBuffer);
+        }
+        while (writeBuffer.hasRemaining()) {
+            position += channel.write(writeBuffer, position);
+        }
+        writeBuffer.clear();
+        return position;
+    }
+
+    /**
+     * Reads the payload straight into windows of the file mapped for the range, so it lands in
+     * the page cache without another copy. The range is mapped one window of
+     * {@link PFTConstants#WRITE_BUFFER_SIZE} bytes at a time, each unmapped once filled, so a
+     * large piece does not pin its whole length in the address space.
+     */
+    private long fetchMapped(SocketChannel client, ByteBuffer buffer, long start, long expected,
+            BlockVerifier verifier, boolean progress) throws IOException, SocketCloseException {
+        long done = 0;
+        while (done < expected) {
+            int size = (int) Math.min(expected - done, PFTConstants.WRITE_BUFFER_SIZE);
+            MappedByteBuffer window =
+                    channel.map(FileChannel.MapMode.READ_WRITE, start + done, size);
             try {
-                if (client != null) {
-                    client.close();
+                // the buffer may still hold payload bytes read along with the header
+                int carried = Math.min(buffer.remaining(), size);
+                ByteBuffer head = buffer.duplicate();
+                head.limit(head.position() + carried);
+                window.put(head);
+                buffer.position(buffer.position() + carried);
+                int verified = 0;
+                while (true) {
+                    if (verifier != null) {
+                        ByteBuffer read = window.duplicate();
+                        read.limit(window.position()).position(verified);
+                        verifier.update(read);
+                        verified = window.position();
+                    }
+                    if (progress) {
+                        fetched = done + window.position();
+                    }
+                    if (!window.hasRemaining()) {
+                        break;
+                    }
+                    read(client, window);
                 }
-            } catch (IOException e) {
-                LOG.error("IOException occurred", e);
+                if (sync) {
+                    window.force();
+                }
+            } finally {
+                MappedBuffers.unmap(window);
             }
+            done += size;
         }
-        Long endTime = System.currentTimeMillis();
-        return new Result(chunkId, endTime - startTime, status);
+        return done;
+    }
+
+    private synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns the checksums of the blocks overlapping the range.
+     */
+    private int[] checksums(SocketChannel client, ByteBuffer buffer, long start, long length)
+            throws IOException, SocketCloseException {
+        if (fileChecksums == null) {
+            return fetchChecksums(client, buffer, fileId, start, length);
+        }
+        int firstBlock = (int) (start / CHECKSUM_BLOCK_SIZE);
+        int lastBlock = (int) ((start + length - 1) / CHECKSUM_BLOCK_SIZE);
+        return Arrays.copyOfRange(fileChecksums, firstBlock, lastBlock + 1);
+    }
+
+    /**
+     * Asks the server for the checksums of the blocks overlapping the range.
+     */
+    static int[] fetchChecksums(SocketChannel client, ByteBuffer buffer, int fileId, long start,
+            long length) throws IOException, SocketCloseException {
+        int firstBlock = (int) (start / CHECKSUM_BLOCK_SIZE);
+        int count = (int) ((start + length - 1) / CHECKSUM_BLOCK_SIZE) - firstBlock + 1;
+        int[] checksums = new int[count];
+        int received = 0;
+        while (received < count) {
+            int batch = Math.min(count - received, BlockChecksumResponseMsg.MAX_CHECKSUMS);
+            Message.sendMessage(client,
+                    new BlockChecksumRequestMsg(fileId, firstBlock + received, batch));
+            BlockChecksumResponseMsg response =
+                    (BlockChecksumResponseMsg) Message.nextMsgFromSocket(client, buffer);
+            if (response.getBlockSize() != CHECKSUM_BLOCK_SIZE || response.getCount() != batch) {
+                throw new IOException("Unexpected checksum response " + response);
+            }
+            for (int i = 0; i < batch; i++) {
+                checksums[received + i] = response.getChecksum(i);
+            }
+            received += batch;
+        }
+        return checksums;
+    }
+
+    /**
+     * Fetches the corrupted blocks again, one by one.
+     *
+     * @return true once every block matches its checksum
+     */
+    private boolean refetch(SocketChannel client, ByteBuffer buffer, List<Long> failedBlocks)
+            throws IOException, SocketCloseException {
+        for (long block : failedBlocks) {
+            long start = block * CHECKSUM_BLOCK_SIZE;
+            long length = Math.min(CHECKSUM_BLOCK_SIZE, fileSize - start);
+            boolean repaired = false;
+            for (int attempt = 1; attempt <= MAX_BLOCK_RETRIES && !repaired; attempt++) {
+                LOG.warn("Block {} of PFTChunkClient-{} is corrupted, fetching it again ({}/{})",
+                        block, chunkId, attempt, MAX_BLOCK_RETRIES);
+                BlockVerifier verifier =
+                        new BlockVerifier(fileSize, CHECKSUM_BLOCK_SIZE, start,
+                                checksums(client, buffer, start, length));
+                long refetched = fetch(client, buffer, start, length, verifier);
+                bytes += refetched;
+                repaired = refetched == length && verifier.getFailedBlocks().isEmpty();
+            }
+            if (!repaired) {
+                LOG.error("Block {} of PFTChunkClient-{} is still corrupted", block, chunkId);
+                return false;
+            }
+        }
+        return true;
     }
-}
\ No newline at end of file
+}
@@ -4,6 +4,10 @@ import com.apidata.pft.exception.SocketCloseException;
 import com.apidata.pft.message.FileRequestMsg;
 import com.apidata.pft.message.FileResponseMsg;
 import com.apidata.pft.message.Message;
+import com.apidata.pft.message.PeerResponseMsg;
+import com.apidata.pft.message.UploadCommitMsg;
+import com.apidata.pft.message.UploadRequestMsg;
+import com.apidata.pft.message.UploadResponseMsg;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -13,141 +17,840 @@ import org.apache.commons.cli.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.ObjectName;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import static com.apidata.pft.PFTConstants.BUFFER_SIZE;
 import static com.apidata.pft.PFTConstants.MAX_BUFFER_PER_THREAD;
 
 /**
  * PFTClient opens a SocketChannel to the server running on hostName and port configured.
  * First Client sends a FileRequestMsg to the server and get the FileResponseMsg. Next based on
- * the FileResponseMsg it creates multiple {@link PFTChunkClient} threads which reads the data from
- * server using SocketChannel and writes to a RandomAccessFile with the required offset position.
+ * the FileResponseMsg it starts one {@link ChunkWorker} per pooled connection. The workers take
+ * pieces of the file from a work-stealing {@link ChunkScheduler} and fetch each of them with a
+ * {@link PFTChunkClient}, which writes to a RandomAccessFile with the required offset position.
+ * In delta mode the blocks already present in a stale copy are copied locally meanwhile, see
+ * {@link DeltaPlan}.
+ * <p>
+ * With compression on, the client offers to take deflated chunks in the FileRequestMsg and the
+ * server agrees in the FileResponseMsg only if a sample of the file shrinks enough.
+ * <p>
+ * With streams set, the pieces are fetched by a {@link StreamTransfer} instead, over that many
+ * non-blocking connections driven by the few threads of the shared {@link ClientEngine}.
+ * <p>
+ * With replicas, the file is fetched from every server that holds the same version of it at once,
+ * each {@link Replica} with a pool of its own and one worker per pooled connection.
+ * <p>
+ * In swarm mode the client is a peer too: it serves the ranges it has written to the other
+ * clients of the file, and fetches what the peers the origin server tells it of hold from them
+ * before going to the origin for the rest, see {@link Swarm}.
+ * <p>
+ * In adaptive mode a {@link StreamController} sets how many of the workers fetch at once, and
+ * the socket buffers if given a cap, from the goodput and round trips it measures.
+ * <p>
+ * In upload mode the transfer goes the other way: the clientFilePath is pushed to the
+ * serverFilePath by one {@link UploadWorker} per pooled connection.
  */
 public class PFTClient {
     private static final Logger LOG = LoggerFactory.getLogger(PFTClient.class);
-    private static final int EXECUTORS = 10;
+    public static final int DEFAULT_CONNECTIONS = 10;
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
 
     private String hostName;
     private int port;
     private String serverFilePath;
     private String clientFilePath;
     private long maxBufferPerThread;
+    private int connections;
+    private boolean resume;
+    private boolean verify;
+    private boolean delta;
+    private boolean mapped;
+    private boolean compress;
+    private boolean tree;
+    private boolean upload;
+    private boolean adaptive;
+    private int socketBufferCap;
+    private int streams;
+    private List<String> replicas = Collections.emptyList();
+    private int peerPort;
+    private Swarm swarm;
+    private final int id;
+    private ClientMetrics metrics;
 
     public PFTClient(String hostName, int port, String serverFilePath, String clientFilePath,
             long maxBufferPerThread) {
+        this(hostName, port, serverFilePath, clientFilePath, maxBufferPerThread,
+                DEFAULT_CONNECTIONS);
+    }
+
+    public PFTClient(String hostName, int port, String serverFilePath, String clientFilePath,
+            long maxBufferPerThread, int connections) {
         this.hostName = hostName;
         this.port = port;
         this.serverFilePath = serverFilePath;
         this.clientFilePath = clientFilePath;
         this.maxBufferPerThread = maxBufferPerThread;
+        this.connections = connections;
+        this.id = NEXT_ID.incrementAndGet();
+        this.metrics = newMetrics();
     }
 
-    public void doWork() {
-        InetSocketAddress hostAddress = new InetSocketAddress(hostName, port);
-        RandomAccessFile clientFile = null;
-        SocketChannel client = null;
-        try {
-            client = SocketChannel.open(hostAddress);
-            LOG.info("Connect to server:{}", client.getRemoteAddress());
+    private ClientMetrics newMetrics() {
+        int workers = connections * (1 + replicas.size());
+        return new ClientMetrics(Math.max(1, Math.max(workers, streams)));
+    }
+
+    /**
+     * Counters and latency histograms of the transfers of this client, also published over JMX
+     * while one is running.
+     */
+    public ClientMetricsMBean getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Resume mode keeps a {@link TransferJournal} of the ranges already on disk, so a failed or
+     * killed transfer can be restarted and only fetches what is missing.
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Verify mode checks every block of {@link PFTConstants#CHECKSUM_BLOCK_SIZE} bytes against a
+     * checksum computed by the server and fetches the corrupted blocks again.
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Delta mode treats an existing clientFilePath as a stale copy of the server file: the blocks
+     * found in it are copied locally and only the others are downloaded. The new file is built
+     * next to it and replaces it once complete. Resume does not apply to delta transfers. With
+     * verify mode, a checksum block is only copied if it is found whole, so that every fetched
+     * range can be checked.
+     */
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    /**
+     * Mapped mode has the workers read the payload straight into memory-mapped windows of the
+     * client file instead of gathering it for positional writes.
+     */
+    public void setMapped(boolean mapped) {
+        this.mapped = mapped;
+    }
+
+    /**
+     * Compress mode has the server deflate every chunk on its own if the file compresses well,
+     * which pays off on slow links. The workers inflate them as they arrive.
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Tree mode downloads every regular file under the serverFilePath directory into the
+     * clientFilePath directory, see {@link TreeTransfer}. The other modes do not apply to it.
+     */
+    public void setTree(boolean tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * Adaptive mode starts with a few of the workers and has a {@link StreamController} grow or
+     * shrink their number from the goodput and round trips measured as pieces complete, up to
+     * one per pooled connection. Its decisions are logged. Streams mode does not apply to it.
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Has adaptive mode size the socket buffers to the bandwidth-delay product, up to cap bytes.
+     * Off by default: on Linux a socket buffer set by hand is no longer autotuned by the kernel,
+     * which usually does better unless its limits are too low for the link.
+     */
+    public void setSocketBufferCap(int cap) {
+        this.socketBufferCap = cap;
+    }
 
-            // Step-1: Get FileSize from the server.
-            long fileSize = 0;
-            if (client.isOpen()) {
-                ByteBuffer byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    /**
+     * Upload mode pushes the clientFilePath to the serverFilePath instead. The server preallocates
+     * the file and the pieces are pushed in parallel, one worker per pooled connection, and
+     * written at their offsets; the file only takes its name on the server once every piece is
+     * confirmed, see {@link UploadStore}. The server must take uploads under that path. The other
+     * modes do not apply to it.
+     */
+    public void setUpload(boolean upload) {
+        this.upload = upload;
+    }
 
-                // we formulate the request message and send it to the server.
-                FileRequestMsg msg = new FileRequestMsg(serverFilePath);
-                Message.sendMessage(client, msg);
+    /**
+     * Streams mode fetches the pieces over that many non-blocking connections, all driven by a
+     * few event loop threads, see {@link StreamTransfer}. It scales to far more connections than
+     * a thread each, which pays off on links with a large bandwidth-delay product. Verify, mapped
+     * and compress mode need the workers and turn it off.
+     */
+    public void setStreams(int streams) {
+        this.streams = streams;
+        this.metrics = newMetrics();
+    }
 
-                // we then await the servers response.
-                Message response = Message.nextMsgFromSocket(client, byteBuffer);
-                FileResponseMsg fileResponseMsg = (FileResponseMsg) response;
-                fileSize = fileResponseMsg.getFileSize();
-                LOG.info("Response received filesize={} ", fileSize);
+    /**
+     * Adds servers holding copies of the file, as host or host:port, the port defaulting to the
+     * one of the first server. Those that report the same size and modification time in the
+     * handshake serve pieces alongside it; the scheduler sizes the pieces of every worker to its
+     * throughput, so faster servers serve more, and a server failing a piece after all retries is
+     * dropped and its pieces fetched from the others. Streams mode and tree mode only use the
+     * first server.
+     */
+    public void setReplicas(List<String> replicas) {
+        this.replicas = replicas;
+        this.metrics = newMetrics();
+    }
+
+    /**
+     * Swarm mode serves the pieces of the file on peerPort as they are written, to the other
+     * clients the origin server tells of, and keeps serving the whole file once it is complete,
+     * until {@link #stopSwarm()}. Before fetching from the origin, it fetches what the peers hold
+     * from them, one pool of connections per peer, so the origin only serves each piece about
+     * once however many clients download the file. The ranges written are kept in a
+     * {@link TransferJournal}, as in resume mode. Only whole checksum blocks are taken from peers,
+     * and each is checked against the checksums of the origin: the pieces of a peer that keeps
+     * serving corrupted blocks are left to the origin. Compress mode only fetches from the origin;
+     * delta and tree mode do not apply.
+     */
+    public void setPeerPort(int peerPort) {
+        this.peerPort = peerPort;
+    }
+
+    /**
+     * Stops serving the file to the other peers in swarm mode.
+     */
+    public void stopSwarm() {
+        if (swarm != null) {
+            swarm.stop();
+            swarm = null;
+        }
+    }
+
+    /**
+     * Downloads the file, or the tree in tree mode.
+     *
+     * @return true if the client file is a complete copy of the server file
+     */
+    public boolean doWork() {
+        ObjectName mbeanName = MBeans.register(metrics, "type=PFTClient,id=" + id);
+        try {
+            return upload ? doUploadWork() : tree ? doTreeWork() : doFileWork();
+        } finally {
+            MBeans.unregister(mbeanName);
+            LOG.info("Metrics {}", metrics);
+        }
+    }
+
+    private boolean doFileWork() {
+        ConnectionPool connectionPool = new ConnectionPool(hostName, port, connections);
+        RandomAccessFile clientFile = null;
+        RandomAccessFile basisFile = null;
+        String targetFilePath = clientFilePath;
+        TransferJournal journal = null;
+        boolean status = false;
+        List<Replica> sources = new ArrayList<>();
+        try {
+            // Step-1: Get FileSize from the server over the first pooled connection.
+            FileResponseMsg fileResponseMsg = handshake(connectionPool);
+            long fileSize = fileResponseMsg.getFileSize();
+            int fileId = fileResponseMsg.getFileId();
+            if (fileSize < 0) {
+                LOG.error("File {} does not exist on the server", serverFilePath);
+                return false;
             }
-            client.close();
+            sources.add(new Replica(connectionPool, fileId));
+            addReplicas(sources, fileResponseMsg);
 
-            long total = fileSize / maxBufferPerThread;
-            boolean isRemaining = fileSize % maxBufferPerThread > 0;
-            if (isRemaining) {
-                total++;
+            // Match the stale copy, if any, against the block signatures of the server file
+            DeltaPlan deltaPlan = null;
+            if (delta && new File(clientFilePath).length() > 0) {
+                long startTime = System.currentTimeMillis();
+                basisFile = new RandomAccessFile(clientFilePath, "r");
+                BlockSignatures signatures =
+                        DeltaPlan.fetchSignatures(connectionPool, fileId, fileSize,
+                                PFTConstants.DELTA_BLOCK_SIZE);
+                deltaPlan = DeltaPlan.match(signatures, fileSize, basisFile.getChannel());
+                if (verify) {
+                    deltaPlan.alignMissing(PFTConstants.CHECKSUM_BLOCK_SIZE);
+                }
+                targetFilePath = clientFilePath + DeltaPlan.SUFFIX;
+                LOG.info("Delta found {}/{} bytes in the local copy in {} msecs",
+                        deltaPlan.getMatchedBytes(), fileSize,
+                        System.currentTimeMillis() - startTime);
             }
 
             // Created a RandomAccessFile for clientFile
-            clientFile = new RandomAccessFile(clientFilePath, "rw");
+            clientFile = new RandomAccessFile(targetFilePath, "rw");
+            // size the file up front instead of growing it out of order from every worker
+            if (clientFile.length() < fileSize) {
+                clientFile.setLength(fileSize);
+            }
+            List<long[]> ranges = Collections.singletonList(new long[] { 0, fileSize });
+            if (deltaPlan != null) {
+                ranges = deltaPlan.getMissing();
+                if (peerPort > 0) {
+                    LOG.warn("Swarm mode does not apply with delta");
+                }
+            } else if (resume || peerPort > 0) {
+                if (!resume) {
+                    // a journal left over would claim ranges of the deleted copy
+                    Files.deleteIfExists(Paths.get(clientFilePath + TransferJournal.SUFFIX));
+                }
+                journal = TransferJournal.open(clientFilePath, clientFile.getChannel(), fileSize,
+                        fileResponseMsg.getLastModified());
+                ranges = journal.missing(fileSize);
+            }
+            PeerShare share = null;
+            if (journal != null && peerPort > 0) {
+                share = new PeerShare(serverFilePath, clientFilePath, fileSize,
+                        fileResponseMsg.getLastModified(), journal);
+                swarm = new Swarm(hostName, port, fileId, peerPort, share);
+                swarm.start();
+                if (compress) {
+                    LOG.warn("Compress mode only fetches from the origin");
+                } else {
+                    fetchFromPeers(swarm.announce(), ranges, fileResponseMsg,
+                            clientFile.getChannel(), journal, connectionPool);
+                    ranges = journal.missing(fileSize);
+                }
+            }
 
-            // Step-2: Based on the fileSize decide the number of threads required
-            ExecutorService executorService = Executors.newFixedThreadPool(EXECUTORS);
-            if (fileSize > 0) {
-                CompletionService<Result>
-                        completionService =
-                        new ExecutorCompletionService<>(executorService);
-                List<Future> futures = new ArrayList<>();
-                for (int i = 0; i < total; i++) {
-                    long
-                            offset =
-                            (isRemaining && i == total - 1) ?
-                                    (fileSize % maxBufferPerThread) :
-                                    maxBufferPerThread;
-                    PFTChunkClient
-                            pftChunkClient =
-                            new PFTChunkClient(i, hostName, port, serverFilePath, offset,
-                                    i * maxBufferPerThread, clientFile.getChannel());
-                    futures.add(completionService.submit(pftChunkClient));
-                }
-                try {
-                    long startTime = System.currentTimeMillis();
-                    for (int i = 1; i <= total; i++) {
-                        Result result = completionService.take().get();
-                        LOG.info("Completed: {} in {}, progress {}/{}", result.getId(),
-                                result.getTimeTaken(), i, total);
-                        if (!result.isStatus()) {
-                            // TODO: can be re-tried.
-                            throw new RuntimeException(
-                                    "Unable to proceed as thread is not successfull-" + result
-                                            .getId());
+            // Step-2: Split the file between one worker per pooled connection, or per stream
+            boolean useStreams = streams > 0 && !verify && !mapped && !compress;
+            if (streams > 0 && !useStreams) {
+                LOG.warn("Streams do not apply with verify, mmap or compress, using workers");
+            }
+            int workers = 0;
+            for (Replica replica : sources) {
+                workers += replica.getConnectionPool().getSize();
+            }
+            if (useStreams) {
+                if (sources.size() > 1) {
+                    LOG.warn("Streams only fetch from the first server");
+                }
+                workers = streams;
+            }
+            StreamController controller = null;
+            if (adaptive && useStreams) {
+                LOG.warn("Adaptive mode does not apply to streams");
+            } else if (adaptive) {
+                List<ConnectionPool> pools = new ArrayList<>();
+                for (Replica replica : sources) {
+                    pools.add(replica.getConnectionPool());
+                }
+                controller = new StreamController(workers, pools, socketBufferCap, metrics);
+            }
+            ExecutorService executorService =
+                    useStreams ? null : Executors.newFixedThreadPool(workers);
+            ChunkScheduler scheduler =
+                    new ChunkScheduler(ranges, workers, PFTConstants.MIN_PIECE_SIZE,
+                            maxBufferPerThread, verify ? PFTConstants.CHECKSUM_BLOCK_SIZE : 1);
+            metrics.setQueuedBytes(scheduler::getQueuedBytes);
+            CompletableFuture<Void> localCopy = null;
+            if (deltaPlan != null) {
+                DeltaPlan plan = deltaPlan;
+                FileChannel basis = basisFile.getChannel();
+                FileChannel target = clientFile.getChannel();
+                localCopy = CompletableFuture.runAsync(() -> {
+                    try {
+                        plan.copy(basis, target);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            try {
+                long startTime = System.currentTimeMillis();
+                if (useStreams) {
+                    StreamTransfer transfer = new StreamTransfer(ClientEngine.acquire(),
+                            new InetSocketAddress(hostName, port), fileId,
+                            clientFile.getChannel(), scheduler, journal, metrics, workers);
+                    try {
+                        if (!transfer.start().get()) {
+                            // pieces were already retried by the streams
+                            throw new RuntimeException("Unable to proceed as a stream failed");
+                        }
+                    } finally {
+                        ClientEngine.release();
+                    }
+                } else {
+                    runWorkers(executorService, scheduler, sources, fileSize,
+                            fileResponseMsg.getCompression(), clientFile.getChannel(), journal,
+                            controller, null);
+                    if (sources.size() > 1) {
+                        for (Replica replica : sources) {
+                            LOG.info("Fetched {} bytes from {}", replica.getBytes(), replica);
                         }
                     }
-                    long endTime = System.currentTimeMillis();
-                    LOG.info("Completed successfully in {} msecs", endTime - startTime);
-                } catch (InterruptedException e) {
-                    LOG.error("InterruptedException occurred", e);
-                } catch (Exception e) {
-                    LOG.error("Exception occurred", e);
-                } finally {
-                    executorService.shutdown();
                 }
+                if (localCopy != null) {
+                    localCopy.get();
+                }
+                long endTime = System.currentTimeMillis();
+                LOG.info("Completed successfully in {} msecs with {} steals, {} hedges, {} retries",
+                        endTime - startTime, scheduler.getSteals(), scheduler.getHedges(),
+                        scheduler.getRetries());
+                status = true;
+            } catch (InterruptedException e) {
+                LOG.error("InterruptedException occurred", e);
+            } catch (Exception e) {
+                LOG.error("Exception occurred", e);
+            } finally {
+                if (executorService != null) {
+                    executorService.shutdownNow();
+                }
+            }
+
+            if (status) {
+                // a resumed file may be longer than the current version
+                if (clientFile.length() > fileSize) {
+                    clientFile.setLength(fileSize);
+                }
+                if (share != null) {
+                    share.setComplete();
+                    swarm.announce();
+                }
+                if (journal != null) {
+                    journal.delete();
+                    journal = null;
+                }
+                if (deltaPlan != null) {
+                    clientFile.close();
+                    clientFile = null;
+                    basisFile.close();
+                    basisFile = null;
+                    Files.move(Paths.get(targetFilePath), Paths.get(clientFilePath),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                LOG.debug("Successfully created file: " + clientFilePath);
+            } else if (journal != null) {
+                LOG.info("Transfer failed, {} bytes kept for resume", journal.getCompletedBytes());
             }
-            LOG.debug("Successfully created file: " + clientFilePath);
         } catch (IOException e) {
             LOG.error("IOException occurred", e);
         } catch (SocketCloseException e) {
             LOG.error("SocketCloseException occurred", e);
+        } catch (InterruptedException e) {
+            LOG.error("InterruptedException occurred", e);
         } finally {
+            if (!status) {
+                stopSwarm();
+            }
+            connectionPool.close();
+            // the first source is the connectionPool
+            for (int i = 1; i < sources.size(); i++) {
+                sources.get(i).getConnectionPool().close();
+            }
+            LOG.debug("Buffer pool {}", BufferPool.getShared());
             try {
+                if (journal != null) {
+                    journal.close();
+                }
                 if (clientFile != null) {
                     clientFile.close();
                 }
-                if (client != null) {
-                    client.close();
+                if (basisFile != null) {
+                    basisFile.close();
+                }
+                if (!status && !targetFilePath.equals(clientFilePath)) {
+                    // the stale copy stays as it was
+                    Files.deleteIfExists(Paths.get(targetFilePath));
                 }
             } catch (IOException e) {
                 LOG.error("IOException occurred", e);
             }
         }
+        return status;
+    }
+
+    /**
+     * Sends the FileRequestMsg over a connection of the pool and returns the FileResponseMsg.
+     */
+    private FileResponseMsg handshake(ConnectionPool connectionPool)
+            throws IOException, InterruptedException, SocketCloseException {
+        ConnectionPool.PooledConnection connection = connectionPool.borrow();
+        boolean status = false;
+        try {
+            SocketChannel client = connection.getChannel();
+
+            // we formulate the request message and send it to the server.
+            FileRequestMsg msg = new FileRequestMsg(serverFilePath,
+                    compress ? Message.COMPRESSION_DEFLATE : Message.COMPRESSION_NONE);
+            Message.sendMessage(client, msg);
+
+            // we then await the servers response.
+            Message response = Message.nextMsgFromSocket(client, connection.getBuffer());
+            FileResponseMsg fileResponseMsg = (FileResponseMsg) response;
+            LOG.info("Response received from {} filesize={} compression={}",
+                    connectionPool.getHostAddress(), fileResponseMsg.getFileSize(),
+                    fileResponseMsg.getCompression());
+            status = true;
+            return fileResponseMsg;
+        } finally {
+            if (status) {
+                connectionPool.release(connection);
+            } else {
+                // the stream may be left mid-frame, never hand it to another request
+                connectionPool.invalidate(connection);
+            }
+        }
+    }
+
+    /**
+     * Adds the replicas that hold the same version of the file as the first server. The others
+     * are left out, the transfer goes on without them.
+     */
+    private void addReplicas(List<Replica> sources, FileResponseMsg expected) {
+        for (String replica : replicas) {
+            int colon = replica.lastIndexOf(':');
+            String host = colon < 0 ? replica : replica.substring(0, colon);
+            int replicaPort = colon < 0 ? port : Integer.parseInt(replica.substring(colon + 1));
+            Replica source = connect(new ConnectionPool(host, replicaPort, connections), expected,
+                    "Replica " + replica);
+            if (source != null) {
+                sources.add(source);
+            }
+        }
+        if (sources.size() > 1) {
+            LOG.info("Fetching from {} servers: {}", sources.size(), sources);
+        }
+    }
+
+    /**
+     * Returns the server of the pool as a {@link Replica} if it holds the same version of the file
+     * as the first server, or closes the pool and returns null otherwise.
+     */
+    private Replica connect(ConnectionPool pool, FileResponseMsg expected, String name) {
+        try {
+            FileResponseMsg response = handshake(pool);
+            if (response.getFileSize() == expected.getFileSize()
+                    && response.getLastModified() == expected.getLastModified()
+                    && response.getCompression() == expected.getCompression()) {
+                return new Replica(pool, response.getFileId());
+            }
+            LOG.warn("{} has another version of {}: size={} lastModified={}", name,
+                    serverFilePath, response.getFileSize(), response.getLastModified());
+        } catch (IOException e) {
+            LOG.warn("{} is not reachable: {}", name, e.toString());
+        } catch (SocketCloseException e) {
+            LOG.warn("{} closed the connection", name);
+        } catch (InterruptedException e) {
+            LOG.error("InterruptedException occurred", e);
+            Thread.currentThread().interrupt();
+        }
+        pool.close();
+        return null;
+    }
+
+    /**
+     * Fetches the missing ranges held by the peers from them. Every piece, made of whole checksum
+     * blocks, goes to the least loaded peer holding all of it, and every peer gets a
+     * {@link ChunkScheduler} and workers of its own for its pieces. The blocks are verified
+     * against the checksums of the origin. The pieces no peer holds, and those of a peer that
+     * fails, are left to the origin.
+     */
+    private void fetchFromPeers(PeerResponseMsg peers, List<long[]> missing,
+            FileResponseMsg expected, FileChannel channel, TransferJournal journal,
+            ConnectionPool origin) throws IOException, InterruptedException, SocketCloseException {
+        if (peers == null || peers.getCount() == 0) {
+            return;
+        }
+        int[] checksums = fetchChecksums(origin, expected);
+        List<Replica> sources = new ArrayList<>();
+        List<RangeSet> holdings = new ArrayList<>();
+        for (int i = 0; i < peers.getCount(); i++) {
+            ConnectionPool pool =
+                    new ConnectionPool(peers.getHost(i), peers.getPort(i), connections);
+            Replica peer = connect(pool, expected, "Peer " + pool.getHostAddress());
+            if (peer != null) {
+                RangeSet held = new RangeSet();
+                long[] ranges = peers.getRanges(i);
+                for (int j = 0; j < ranges.length; j += 2) {
+                    held.add(ranges[j], ranges[j + 1]);
+                }
+                sources.add(peer);
+                holdings.add(held);
+            }
+        }
+        List<List<long[]>> assigned = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            assigned.add(new ArrayList<>());
+        }
+        long[] load = new long[sources.size()];
+        long fileSize = expected.getFileSize();
+        long blockSize = PFTConstants.CHECKSUM_BLOCK_SIZE;
+        long pieceSize = Math.max(blockSize, maxBufferPerThread / blockSize * blockSize);
+        for (long[] range : missing) {
+            // the blocks the range only partly covers cannot be verified, the origin sends them
+            long start = (range[0] + blockSize - 1) / blockSize * blockSize;
+            long end = range[0] + range[1];
+            if (end < fileSize) {
+                end = end / blockSize * blockSize;
+            }
+            for (long offset = start; offset < end; offset += pieceSize) {
+                long length = Math.min(pieceSize, end - offset);
+                int best = -1;
+                for (int i = 0; i < sources.size(); i++) {
+                    if (holdings.get(i).contains(offset, length)
+                            && (best < 0 || load[i] < load[best])) {
+                        best = i;
+                    }
+                }
+                if (best < 0) {
+                    continue;
+                }
+                load[best] += length;
+                List<long[]> pieces = assigned.get(best);
+                long[] last = pieces.isEmpty() ? null : pieces.get(pieces.size() - 1);
+                if (last != null && last[0] + last[1] == offset) {
+                    last[1] += length;
+                } else {
+                    pieces.add(new long[] { offset, length });
+                }
+            }
+        }
+
+        long before = journal.getCompletedBytes();
+        long startTime = System.currentTimeMillis();
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        try {
+            List<CompletableFuture<Void>> transfers = new ArrayList<>();
+            for (int i = 0; i < sources.size(); i++) {
+                if (assigned.get(i).isEmpty()) {
+                    continue;
+                }
+                Replica peer = sources.get(i);
+                ChunkScheduler scheduler =
+                        new ChunkScheduler(assigned.get(i), peer.getConnectionPool().getSize(),
+                                PFTConstants.MIN_PIECE_SIZE, maxBufferPerThread,
+                                PFTConstants.CHECKSUM_BLOCK_SIZE);
+                transfers.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        runWorkers(executorService, scheduler, Collections.singletonList(peer),
+                                fileSize, Message.COMPRESSION_NONE, channel, journal, null,
+                                checksums);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        LOG.warn("Peer {} failed, its pieces are left to the origin: {}", peer,
+                                e.toString());
+                    }
+                }, executorService));
+            }
+            CompletableFuture.allOf(transfers.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            executorService.shutdownNow();
+            for (Replica peer : sources) {
+                peer.getConnectionPool().close();
+            }
+        }
+        LOG.info("Fetched {} bytes from {} peers in {} msecs", journal.getCompletedBytes() - before,
+                sources.size(), System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Fetches the checksums of every block of the file from the server of the pool.
+     */
+    private int[] fetchChecksums(ConnectionPool connectionPool, FileResponseMsg expected)
+            throws IOException, InterruptedException, SocketCloseException {
+        if (expected.getFileSize() == 0) {
+            return new int[0];
+        }
+        ConnectionPool.PooledConnection connection = connectionPool.borrow();
+        boolean status = false;
+        try {
+            int[] checksums = PFTChunkClient.fetchChecksums(connection.getChannel(),
+                    connection.getBuffer(), expected.getFileId(), 0, expected.getFileSize());
+            status = true;
+            return checksums;
+        } finally {
+            if (status) {
+                connectionPool.release(connection);
+            } else {
+                connectionPool.invalidate(connection);
+            }
+        }
+    }
+
+    /**
+     * Runs one {@link ChunkWorker} per pooled connection of every source until the scheduler runs
+     * dry, as many at once as the controller allows if any. With checksums, every piece is
+     * verified against them.
+     */
+    private void runWorkers(ExecutorService executorService, ChunkScheduler scheduler,
+            List<Replica> sources, long fileSize, byte compression, FileChannel channel,
+            TransferJournal journal, StreamController controller, int[] checksums)
+            throws InterruptedException, ExecutionException {
+        CompletionService<Result>
+                completionService =
+                new ExecutorCompletionService<>(executorService);
+        int workers = 0;
+        for (Replica replica : sources) {
+            for (int i = 0; i < replica.getConnectionPool().getSize(); i++) {
+                ChunkWorker worker =
+                        new ChunkWorker(workers++, scheduler, replica.getConnectionPool(),
+                                replica.getFileId(), channel, journal, metrics);
+                if (checksums != null) {
+                    worker.setVerify(fileSize, checksums);
+                } else if (verify) {
+                    worker.setVerify(fileSize);
+                }
+                worker.setMapped(mapped);
+                worker.setCompression(compression);
+                if (sources.size() > 1) {
+                    worker.setReplica(replica);
+                }
+                worker.setController(controller);
+                completionService.submit(worker);
+            }
+        }
+        for (int i = 1; i <= workers; i++) {
+            Result result = completionService.take().get();
+            LOG.info("Completed: {} in {}, {} bytes at {} bytes/sec with {} stalls, "
+                            + "progress {}/{}", result.getId(), result.getTimeTaken(),
+                    result.getBytes(), result.getThroughput(), result.getStalls(), i, workers);
+            if (!result.isStatus()) {
+                // pieces were already retried by the worker
+                throw new RuntimeException(
+                        "Unable to proceed as thread is not successfull-" + result.getId());
+            }
+        }
+    }
+
+    private boolean doTreeWork() {
+        if (!replicas.isEmpty()) {
+            LOG.warn("Tree transfers only fetch from the first server");
+        }
+        if (peerPort > 0) {
+            LOG.warn("Swarm mode does not apply to tree transfers");
+        }
+        ConnectionPool connectionPool = new ConnectionPool(hostName, port, connections);
+        try {
+            return new TreeTransfer(connectionPool, serverFilePath, clientFilePath,
+                    maxBufferPerThread, metrics).transfer();
+        } finally {
+            connectionPool.close();
+            LOG.debug("Buffer pool {}", BufferPool.getShared());
+        }
+    }
+
+    private boolean doUploadWork() {
+        ConnectionPool connectionPool = new ConnectionPool(hostName, port, connections);
+        boolean status = false;
+        try (FileChannel channel = FileChannel.open(Paths.get(clientFilePath),
+                StandardOpenOption.READ)) {
+            // Step-1: Have the server preallocate the file
+            long fileSize = channel.size();
+            UploadResponseMsg response = (UploadResponseMsg) exchange(connectionPool,
+                    new UploadRequestMsg(serverFilePath, fileSize));
+            int uploadId = response.getUploadId();
+            if (uploadId == 0) {
+                LOG.error("Server refused the upload to {}", serverFilePath);
+                return false;
+            }
+
+            // Step-2: Push the pieces over every pooled connection
+            int workers = connectionPool.getSize();
+            ChunkScheduler scheduler = new ChunkScheduler(fileSize, workers,
+                    PFTConstants.MIN_PIECE_SIZE, maxBufferPerThread);
+            ExecutorService executorService = Executors.newFixedThreadPool(workers);
+            boolean uploaded = true;
+            long startTime = System.currentTimeMillis();
+            try {
+                CompletionService<Result> completionService =
+                        new ExecutorCompletionService<>(executorService);
+                for (int i = 0; i < workers; i++) {
+                    completionService.submit(new UploadWorker(i, scheduler, connectionPool,
+                            uploadId, channel, metrics));
+                }
+                for (int i = 1; i <= workers; i++) {
+                    Result result = completionService.take().get();
+                    LOG.info("Completed: {} in {}, {} bytes at {} bytes/sec, progress {}/{}",
+                            result.getId(), result.getTimeTaken(), result.getBytes(),
+                            result.getThroughput(), i, workers);
+                    uploaded &= result.isStatus();
+                }
+            } finally {
+                executorService.shutdownNow();
+            }
+
+            // Step-3: Commit, the server drops the upload instead if a piece is missing
+            response = (UploadResponseMsg) exchange(connectionPool,
+                    new UploadCommitMsg(uploadId));
+            status = uploaded && response.getUploadId() == uploadId;
+            if (status) {
+                LOG.info("Uploaded successfully in {} msecs with {} steals, {} retries",
+                        System.currentTimeMillis() - startTime, scheduler.getSteals(),
+                        scheduler.getRetries());
+            } else {
+                LOG.error("Upload to {} failed", serverFilePath);
+            }
+        } catch (IOException e) {
+            LOG.error("IOException occurred", e);
+        } catch (SocketCloseException e) {
+            LOG.error("SocketCloseException occurred", e);
+        } catch (InterruptedException e) {
+            LOG.error("InterruptedException occurred", e);
+        } catch (ExecutionException e) {
+            LOG.error("ExecutionException occurred", e);
+        } finally {
+            connectionPool.close();
+        }
+        return status;
+    }
+
+    /**
+     * Sends the request over a connection of the pool and returns the response.
+     */
+    private static Message exchange(ConnectionPool connectionPool, Message request)
+            throws IOException, InterruptedException, SocketCloseException {
+        ConnectionPool.PooledConnection connection = connectionPool.borrow();
+        boolean status = false;
+        try {
+            Message.sendMessage(connection.getChannel(), request);
+            Message response =
+                    Message.nextMsgFromSocket(connection.getChannel(), connection.getBuffer());
+            status = true;
+            return response;
+        } finally {
+            if (status) {
+                connectionPool.release(connection);
+            } else {
+                connectionPool.invalidate(connection);
+            }
+        }
     }
 
     private static void printUsage(Options options) {
@@ -163,7 +866,34 @@ public class PFTClient {
         options.addOption("C", "clientFilePath", true,
                 "Client File to be copied, Default=/tmp/<epochTime>/<server-file>");
         options.addOption("O", "offset", true,
-                "Max offset per thread, Default=" + MAX_BUFFER_PER_THREAD);
+                "Max bytes fetched per request, Default=" + MAX_BUFFER_PER_THREAD);
+        options.addOption("N", "connections", true,
+                "Number of pooled connections to the server, Default=" + DEFAULT_CONNECTIONS);
+        options.addOption("R", "resume", false,
+                "Resume an interrupted download of the same clientFilePath");
+        options.addOption("V", "verify", false,
+                "Verify each block against server checksums and fetch corrupted blocks again");
+        options.addOption("D", "delta", false,
+                "Only download the blocks that differ from an existing clientFilePath");
+        options.addOption("M", "mmap", false,
+                "Write through memory-mapped windows of clientFilePath");
+        options.addOption("Z", "compress", false,
+                "Have the server compress chunks if the file compresses well");
+        options.addOption("T", "tree", false,
+                "Download the serverFilePath directory with all files under it");
+        options.addOption("X", "replicas", true,
+                "Comma separated host[:port] of other servers with copies of the file");
+        options.addOption("E", "streams", true,
+                "Number of non-blocking streams driven by a few threads, Default=off");
+        options.addOption("A", "adaptive", false,
+                "Tune the number of connections in use to the link");
+        options.addOption("B", "socketBuffer", true,
+                "In adaptive mode, size socket buffers to the link up to this many bytes, "
+                        + "Default=left to the OS");
+        options.addOption("U", "upload", false,
+                "Upload clientFilePath to serverFilePath instead");
+        options.addOption("W", "peerPort", true,
+                "Serve downloaded pieces to other clients on this port, Default=off");
         options.addOption("h", "help", false, "Help usage");
         return options;
     }
@@ -196,17 +926,50 @@ public class PFTClient {
             if (!parentFile.exists()) {
                 parentFile.mkdirs();
             }
-            if (file.exists()) file.delete();
+            boolean resume = cmd.hasOption("R");
+            boolean delta = cmd.hasOption("D");
+            boolean tree = cmd.hasOption("T");
+            boolean upload = cmd.hasOption("U");
+            if (upload && !file.isFile()) {
+                LOG.error("Nothing to upload at {}", clientFilePath);
+                System.exit(1);
+            }
+            if (file.exists() && !resume && !delta && !tree && !upload) file.delete();
 
             long
                     maxBufferPerThread =
                     Long.parseLong(cmd.getOptionValue("O", MAX_BUFFER_PER_THREAD + ""));
 
+            int connections =
+                    Integer.parseInt(cmd.getOptionValue("N", DEFAULT_CONNECTIONS + ""));
+
             PFTClient
                     pftClient =
                     new PFTClient(hostName, port, serverFilePath, clientFilePath,
-                            maxBufferPerThread);
-            pftClient.doWork();
+                            maxBufferPerThread, connections);
+            pftClient.setResume(resume);
+            pftClient.setVerify(cmd.hasOption("V"));
+            pftClient.setDelta(delta);
+            pftClient.setMapped(cmd.hasOption("M"));
+            pftClient.setCompress(cmd.hasOption("Z"));
+            pftClient.setTree(tree);
+            pftClient.setUpload(upload);
+            pftClient.setAdaptive(cmd.hasOption("A"));
+            if (cmd.hasOption("B")) {
+                pftClient.setSocketBufferCap(Integer.parseInt(cmd.getOptionValue("B")));
+            }
+            if (cmd.hasOption("X")) {
+                pftClient.setReplicas(Arrays.asList(cmd.getOptionValue("X").split(",")));
+            }
+            if (cmd.hasOption("E")) {
+                pftClient.setStreams(Integer.parseInt(cmd.getOptionValue("E")));
+            }
+            if (cmd.hasOption("W")) {
+                pftClient.setPeerPort(Integer.parseInt(cmd.getOptionValue("W")));
+            }
+            if (!pftClient.doWork()) {
+                System.exit(1);
+            }
 
         } catch (ParseException e) {
             LOG.error("Parsing error occurred", e);
@@ -4,4 +4,33 @@ public class PFTConstants {
     public static final int BUFFER_SIZE = 2048;
     public static final int LENGTH_SIZE = 20480;
     public static final int MAX_BUFFER_PER_THREAD = 9998336;
+    public static final int MIN_PIECE_SIZE = 1048576;
+    public static final long TARGET_PIECE_MILLIS = 500;
+    public static final int MAX_OPEN_FILES = 256;
+    public static final int CHECKSUM_BLOCK_SIZE = 1048576;
+    public static final int MAX_BLOCK_RETRIES = 3;
+    public static final int MAX_PIECE_RETRIES = 3;
+    public static final long RETRY_BACKOFF_MILLIS = 100;
+    public static final int DELTA_BLOCK_SIZE = 65536;
+    public static final int WRITE_BUFFER_SIZE = 1048576;
+    public static final long FILE_REVALIDATE_MILLIS = 1000;
+    public static final int COMPRESSION_FRAME_SIZE = 65536;
+    public static final int SMALL_FILE_SIZE = 1048576;
+    public static final int MAX_BATCH_BYTES = 4194304;
+    public static final long STALL_MILLIS = 100;
+    public static final int STREAM_BUFFER_SIZE = 131072;
+    public static final int READ_AHEAD_SIZE = 262144;
+    public static final int READ_QUEUE_SIZE = 1024;
+    public static final int MAX_FILE_READS = 4;
+    public static final long READ_RETRY_MILLIS = 5;
+    public static final int CACHE_BLOCK_SIZE = 262144;
+    public static final int CACHE_READ_AHEAD_BLOCKS = 8;
+    public static final long PEER_ANNOUNCE_MILLIS = 1000;
+    public static final long PEER_TTL_MILLIS = 30000;
+    public static final long STREAM_CONTROL_MILLIS = 500;
+    public static final int INITIAL_STREAMS = 2;
+    public static final double STREAM_DECREASE_FACTOR = 0.75;
+    public static final long UPLOAD_IDLE_MILLIS = 60000;
+    public static final int MAX_REGISTERED_FILES = 262144;
+    public static final long JOURNAL_MAGIC = 0x5046544A524E4C01L;
 }
\ No newline at end of file
@@ -1,10 +1,5 @@
 package com.apidata.pft;
 
-import com.apidata.pft.exception.SocketCloseException;
-import com.apidata.pft.message.FileChunkRequestMsg;
-import com.apidata.pft.message.FileRequestMsg;
-import com.apidata.pft.message.FileResponseMsg;
-import com.apidata.pft.message.Message;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -14,48 +9,194 @@ import org.apache.commons.cli.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.FileInputStream;
+import javax.management.ObjectName;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channel;
-import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * PFTServer creates a SocketChannel. It's uses java non-blocking io way to read from sockets,
- * so that one thread communicates with multiple open connections at once.
+ * so that one thread communicates with multiple open connections at once. A dedicated acceptor
+ * thread hands every new connection to the least loaded of a pool of {@link Reactor}s, each
+ * running its own Selector, so the serving work is spread over several cores. Egress may be
+ * capped in total and per client address, see {@link RateLimiter}. File reads are done by a
+ * bounded pool of threads, see {@link DiskReader}, so the reactors never wait for the disk, and
+ * may be kept in memory by a {@link BlockCache}. It also tracks the clients in swarm mode, see
+ * {@link SwarmTracker}, and may take uploads, see {@link UploadStore}.
  */
 public class PFTServer {
     private static final Logger LOG = LoggerFactory.getLogger(PFTServer.class);
+    public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_IO_THREADS = Math.max(4, DEFAULT_WORKERS);
 
     private String hostName;
     private int port;
+    private int workers;
+    private FileHandleCache fileHandleCache;
+    private FileRegistry fileRegistry;
+    private ChecksumStore checksumStore;
+    private SignatureStore signatureStore;
+    private CompressionSampler compressionSampler;
+    private ManifestStore manifestStore;
+    private SwarmTracker swarmTracker;
+    private PeerShare share;
+    private String uploadDir;
+    private ServerMetrics metrics;
+    private long rateLimit;
+    private long clientRateLimit;
+    private int ioThreads = DEFAULT_IO_THREADS;
+    private long cacheSize;
     private Selector selector;
-    private Set<SocketChannel> channels;
+    private Reactor[] reactors;
+    private int nextReactor;
     private InetSocketAddress listenAddress;
+    private final CountDownLatch running = new CountDownLatch(1);
 
     public PFTServer(String hostname, int port) {
+        this(hostname, port, DEFAULT_WORKERS);
+    }
+
+    public PFTServer(String hostname, int port, int workers) {
+        this(hostname, port, workers, PFTConstants.MAX_OPEN_FILES);
+    }
+
+    public PFTServer(String hostname, int port, int workers, int maxOpenFiles) {
         this.hostName = hostname;
         this.port = port;
+        this.workers = Math.max(1, workers);
+        this.fileHandleCache =
+                new FileHandleCache(maxOpenFiles, PFTConstants.FILE_REVALIDATE_MILLIS);
+        this.fileRegistry = new FileRegistry();
+        this.checksumStore = new ChecksumStore(PFTConstants.CHECKSUM_BLOCK_SIZE);
+        this.signatureStore = new SignatureStore(PFTConstants.DELTA_BLOCK_SIZE);
+        this.compressionSampler = new CompressionSampler();
+        this.manifestStore = new ManifestStore(fileRegistry);
+        this.swarmTracker = new SwarmTracker();
+        this.metrics = new ServerMetrics();
         this.listenAddress = new InetSocketAddress(hostName, port);
-        this.channels = new HashSet<>();
+    }
+
+    /**
+     * Cache of open files shared by all reactors. Its hit and miss counters help to size
+     * maxOpenFiles.
+     */
+    public FileHandleCache getFileHandleCache() {
+        return fileHandleCache;
+    }
+
+    /**
+     * Counters and latency histograms of the server, also published over JMX while it runs.
+     */
+    public ServerMetricsMBean getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Caps the bytes per second sent to all clients together, 0 for no limit.
+     */
+    public void setRateLimit(long rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * Caps the bytes per second sent to each client address over all its connections, 0 for no
+     * limit.
+     */
+    public void setClientRateLimit(long clientRateLimit) {
+        this.clientRateLimit = clientRateLimit;
+    }
+
+    /**
+     * Sets the threads reading files for the reactors. With 0 the reactors send straight from
+     * the files with zero-copy transfers instead, which is faster as long as the files are in the
+     * page cache, but stalls every connection of a reactor on a cold read.
+     */
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Sets the bytes of off-heap memory kept for the block cache, 0 for no cache. The cache
+     * needs the io threads to read into it.
+     */
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Takes uploads of files under uploadDir, see {@link UploadStore}. Uploads are refused if it
+     * is not set.
+     */
+    public void setUploadDir(String uploadDir) {
+        this.uploadDir = uploadDir;
+    }
+
+    /**
+     * Turns this into the server of a peer in swarm mode, which only serves the written ranges of
+     * the shared file.
+     */
+    void setShare(PeerShare share) {
+        this.share = share;
+    }
+
+    /**
+     * Waits until the server listens on its port.
+     *
+     * @return false if it is not listening within the timeout
+     */
+    public boolean awaitRunning(long timeout, TimeUnit unit) throws InterruptedException {
+        return running.await(timeout, unit);
     }
 
     public void doWork() {
-        LOG.info("Server started on hostname={} and port={}", hostName, port);
+        LOG.info("Server started on hostname={} and port={} with {} workers", hostName, port,
+                workers);
+        RateLimiter rateLimiter = null;
+        if (rateLimit > 0 || clientRateLimit > 0) {
+            LOG.info("Rate limited to {} bytes/sec, {} bytes/sec per client", rateLimit,
+                    clientRateLimit);
+            rateLimiter = new RateLimiter(rateLimit, clientRateLimit);
+        }
+        DiskReader diskReader = null;
+        if (ioThreads > 0) {
+            LOG.info("Reading files with {} threads", ioThreads);
+            diskReader = new DiskReader(ioThreads, PFTConstants.READ_QUEUE_SIZE,
+                    PFTConstants.MAX_FILE_READS, metrics);
+        }
+        BlockCache blockCache = null;
+        if (cacheSize > 0 && diskReader == null) {
+            LOG.warn("Block cache disabled, it needs ioThreads > 0");
+        } else if (cacheSize > 0) {
+            LOG.info("Caching {} bytes of file blocks", cacheSize);
+            blockCache = new BlockCache(cacheSize, PFTConstants.CACHE_BLOCK_SIZE);
+            metrics.setBlockCache(blockCache);
+        }
+        if (uploadDir != null) {
+            LOG.info("Taking uploads under {}", uploadDir);
+        }
+        UploadStore uploadStore = new UploadStore(uploadDir);
         ServerSocketChannel serverChannel = null;
+        Thread[] threads = new Thread[workers];
+        ObjectName mbeanName = MBeans.register(metrics, "type=PFTServer,port=" + port);
         try {
+            this.reactors = new Reactor[workers];
+            metrics.setReactors(reactors);
+            for (int i = 0; i < workers; i++) {
+                reactors[i] = new Reactor(i, fileHandleCache, fileRegistry, checksumStore,
+                        signatureStore, compressionSampler, manifestStore, rateLimiter,
+                        diskReader, blockCache, swarmTracker, share, uploadStore, metrics);
+                threads[i] = new Thread(reactors[i], "pft-reactor-" + i);
+                threads[i].start();
+            }
+
             this.selector = Selector.open();
             serverChannel = ServerSocketChannel.open();
             serverChannel.configureBlocking(false);
@@ -64,6 +205,7 @@ public class PFTServer {
             serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 
             LOG.info("Server running...");
+            running.countDown();
 
             while (!Thread.currentThread().isInterrupted()) {
                 // waiting for events
@@ -85,9 +227,6 @@ public class PFTServer {
                         if (key.isAcceptable()) {
                             // Channel ready to accept a new socket connection
                             this.accept(key);
-                        } else if (key.isReadable()) {
-                            // Channel is ready for reading
-                            this.read(key);
                         }
                     } catch (IOException e) {
                         LOG.error("IOException occurred", e);
@@ -104,88 +243,72 @@ public class PFTServer {
                     LOG.error("IOException occurred", e);
                 }
             }
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    LOG.error("IOException occurred", e);
+                }
+            }
+            for (Thread thread : threads) {
+                if (thread != null) {
+                    thread.interrupt();
+                }
+            }
+            checksumStore.close();
+            signatureStore.close();
+            compressionSampler.close();
+            manifestStore.close();
+            uploadStore.close();
+            if (diskReader != null) {
+                diskReader.close();
+            }
+            MBeans.unregister(mbeanName);
+            LOG.info("Metrics {}", metrics);
+            LOG.info("File cache {}", fileHandleCache);
+            if (blockCache != null) {
+                LOG.info("Block cache {}", blockCache);
+            }
+            LOG.info("Buffer pool {}", BufferPool.getShared());
+            try {
+                fileHandleCache.close();
+            } catch (IOException e) {
+                LOG.error("IOException occurred", e);
+            }
         }
     }
 
     private void accept(SelectionKey key) throws IOException {
         ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
         SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
         channel.configureBlocking(false);
+        metrics.accepted();
         Socket socket = channel.socket();
         SocketAddress remoteAddr = socket.getRemoteSocketAddress();
-        LOG.info("Connected to client: " + remoteAddr);
 
-        // register channel with selector for further IO
-        channels.add(channel);
-        channel.register(this.selector, SelectionKey.OP_READ);
-        LOG.info("Total open channels - {}", channels.size());
+        // hand the channel over to a reactor for further IO
+        Reactor reactor = nextReactor();
+        reactor.register(channel);
+        LOG.info("Connected to client: {} on reactor-{}", remoteAddr, reactor.getId());
     }
 
-    private void read(SelectionKey key) throws IOException {
-        SocketChannel channel = (SocketChannel) key.channel();
-        ByteBuffer buffer = ByteBuffer.allocate(PFTConstants.BUFFER_SIZE);
-        FileInputStream fis = null;
-        FileChannel inChannel = null;
-        try {
-            Message msg = Message.nextMsgFromSocket(channel, buffer);
-            if (msg instanceof FileRequestMsg) {
-                // FileRquestMsg gets a filePath and FileResponseMsg send the length of file.
-                LOG.info("Received a FileRequestMsg");
-                String filePath = ((FileRequestMsg) msg).getFilePath();
-
-                File file = new File(filePath);
-                long length = -1;
-                if (file.exists()) {
-                    length = file.length();
-                }
-
-                LOG.info("FilePath received-{}", filePath);
-                FileResponseMsg response = new FileResponseMsg(length);
-                Message.sendMessage(channel, response);
-            } else if (msg instanceof FileChunkRequestMsg) {
-                // Get the FileChunkRequestMsg from client and send the actual payload followed by END_MESSSGE_MARKER
-                LOG.trace("Received a FileChunkRequestMsg");
-                String filePath = ((FileChunkRequestMsg) msg).getFilePath();
-                long offset = ((FileChunkRequestMsg) msg).getOffset();
-                Integer chunkId = ((FileChunkRequestMsg) msg).getChunkId();
-                Integer length = ((FileChunkRequestMsg) msg).getLength();
-                //                channel.socket().setSendBufferSize(length);
-
-                fis = new FileInputStream(filePath);
-                buffer = ByteBuffer.allocate(length);
-                int len;
-                int totalBytes = 0;
-                inChannel = fis.getChannel();
-                if ((len = inChannel.read(buffer, offset)) > 0) {
-                    totalBytes += len;
-                    buffer.flip();
-                    channel.write(buffer);
-                    buffer.clear();
-                }
-                LOG.trace("Total bytes asked {} sent {} chunkId {}", offset, totalBytes, chunkId);
-            } else {
-                LOG.error("Unexpected message " + msg);
-                closeConnection(channel, key);
-            }
-        } catch (SocketCloseException sce) {
-            // SocketClose by client
-            closeConnection(channel, key);
-        } finally {
-            if (fis != null) {
-                fis.close();
-            }
-            if(inChannel != null) {
-                inChannel.close();
+    /**
+     * Picks the reactor with the fewest open channels, walking the pool round-robin so that ties
+     * do not always land on the first reactor.
+     */
+    private Reactor nextReactor() {
+        Reactor selected = null;
+        for (int i = 0; i < reactors.length; i++) {
+            Reactor reactor = reactors[(nextReactor + i) % reactors.length];
+            if (selected == null || reactor.getOpenChannels() < selected.getOpenChannels()) {
+                selected = reactor;
             }
         }
-    }
-
-    private void closeConnection(Channel channel, SelectionKey key) throws IOException {
-        this.channels.remove(channel);
-        SocketAddress remoteAddr = ((SocketChannel) channel).socket().getRemoteSocketAddress();
-        LOG.info("Connection closed by client: " + remoteAddr);
-        channel.close();
-        key.cancel();
+        nextReactor = (nextReactor + 1) % reactors.length;
+        return selected;
     }
 
     private static void printUsage(Options options) {
@@ -199,6 +322,21 @@ public class PFTServer {
         Options options = new Options();
         options.addOption("host", "hostname", true, "HostName of the server, Default=localhost");
         options.addOption("port", "port", true, "Server port number, Default=54321");
+        options.addOption("workers", "workers", true,
+                "Number of selector worker threads, Default=" + DEFAULT_WORKERS);
+        options.addOption("maxOpenFiles", "maxOpenFiles", true,
+                "Max files kept open by the file cache, Default=" + PFTConstants.MAX_OPEN_FILES);
+        options.addOption("rate", "rate", true,
+                "Max bytes per second sent to all clients, Default=unlimited");
+        options.addOption("clientRate", "clientRate", true,
+                "Max bytes per second sent to each client address, Default=unlimited");
+        options.addOption("ioThreads", "ioThreads", true,
+                "Number of threads reading files, 0 to send from the reactors with zero-copy, "
+                        + "Default=" + DEFAULT_IO_THREADS);
+        options.addOption("cacheSize", "cacheSize", true,
+                "Bytes of memory caching file blocks, needs ioThreads, Default=0 (no cache)");
+        options.addOption("uploadDir", "uploadDir", true,
+                "Directory clients may upload files under, Default=none (no uploads)");
         options.addOption("h", "help", false, "Help usage");
 
         try {
@@ -215,7 +353,22 @@ public class PFTServer {
             if (cmd.hasOption("port")) {
                 port = Integer.parseInt(cmd.getOptionValue("port"));
             }
-            PFTServer pftServer = new PFTServer(hostName, port);
+            int workers = DEFAULT_WORKERS;
+            if (cmd.hasOption("workers")) {
+                workers = Integer.parseInt(cmd.getOptionValue("workers"));
+            }
+            int maxOpenFiles = PFTConstants.MAX_OPEN_FILES;
+            if (cmd.hasOption("maxOpenFiles")) {
+                maxOpenFiles = Integer.parseInt(cmd.getOptionValue("maxOpenFiles"));
+            }
+            PFTServer pftServer = new PFTServer(hostName, port, workers, maxOpenFiles);
+            pftServer.setRateLimit(Long.parseLong(cmd.getOptionValue("rate", "0")));
+            pftServer.setClientRateLimit(Long.parseLong(cmd.getOptionValue("clientRate", "0")));
+            if (cmd.hasOption("ioThreads")) {
+                pftServer.setIoThreads(Integer.parseInt(cmd.getOptionValue("ioThreads")));
+            }
+            pftServer.setCacheSize(Long.parseLong(cmd.getOptionValue("cacheSize", "0")));
+            pftServer.setUploadDir(cmd.getOptionValue("uploadDir"));
             pftServer.doWork();
         } catch (ParseException e) {
             LOG.error("Parsing error occurred", e);
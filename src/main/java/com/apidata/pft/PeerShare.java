@@ -0,0 +1,70 @@
+package com.apidata.pft;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * PeerShare is what the embedded {@link PFTServer} of a client in swarm mode serves: the client
+ * file alone, under the path the client fetches it by from the origin, and only the ranges of it
+ * the {@link TransferJournal} has recorded as written. It reports the size and mtime of the
+ * origin file, so the peers of one version of the file recognize each other in the handshake.
+ */
+class PeerShare {
+    private final String path;
+    private final String localPath;
+    private final long size;
+    private final long lastModified;
+    private final TransferJournal journal;
+    private volatile boolean complete;
+
+    PeerShare(String path, String localPath, long size, long lastModified,
+            TransferJournal journal) {
+        this.path = path;
+        this.localPath = localPath;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.journal = journal;
+    }
+
+    /**
+     * Returns the local path of the file asked for, or null if it is not the one shared.
+     */
+    String resolve(String filePath) {
+        return path.equals(filePath) ? localPath : null;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns true if the range, cut at the end of the file, is written.
+     */
+    boolean holds(long offset, long length) {
+        long end = Math.min(size, offset + length);
+        return complete || offset >= end || journal.isCompleted(offset, end - offset);
+    }
+
+    /**
+     * Returns the [offset, length] pairs written, the largest max of them.
+     */
+    List<long[]> getRanges(int max) {
+        if (complete) {
+            return Collections.singletonList(new long[] { 0, size });
+        }
+        List<long[]> ranges = journal.completed();
+        if (ranges.size() > max) {
+            ranges.sort(Comparator.comparingLong((long[] range) -> range[1]).reversed());
+            ranges = ranges.subList(0, max);
+        }
+        return ranges;
+    }
+
+    /**
+     * Shares the whole file once the download is over, its journal is gone then.
+     */
+    void setComplete() {
+        this.complete = true;
+    }
+}
@@ -0,0 +1,85 @@
+package com.apidata.pft;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * RangeSet is a set of byte ranges of a file, kept as disjoint intervals merged on insert.
+ */
+class RangeSet {
+    private final TreeMap<Long, Long> intervals;
+    private long coveredBytes;
+
+    RangeSet() {
+        this.intervals = new TreeMap<>();
+    }
+
+    synchronized void add(long offset, long length) {
+        if (length <= 0) {
+            return;
+        }
+        long start = offset;
+        long end = offset + length;
+        Map.Entry<Long, Long> floor = intervals.floorEntry(start);
+        if (floor != null && floor.getValue() >= start) {
+            start = floor.getKey();
+            end = Math.max(end, floor.getValue());
+            remove(floor.getKey());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = intervals.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            remove(next.getKey());
+        }
+        intervals.put(start, end);
+        coveredBytes += end - start;
+    }
+
+    synchronized boolean contains(long offset, long length) {
+        Map.Entry<Long, Long> floor = intervals.floorEntry(offset);
+        return floor != null && floor.getValue() >= offset + length;
+    }
+
+    synchronized long getCoveredBytes() {
+        return coveredBytes;
+    }
+
+    /**
+     * Returns the [offset, length] pairs of the ranges in the set, in order.
+     */
+    synchronized List<long[]> ranges() {
+        List<long[]> ranges = new ArrayList<>();
+        for (Map.Entry<Long, Long> interval : intervals.entrySet()) {
+            ranges.add(new long[] { interval.getKey(), interval.getValue() - interval.getKey() });
+        }
+        return ranges;
+    }
+
+    /**
+     * Returns the [offset, length] pairs of [0, size) not covered by this set.
+     */
+    synchronized List<long[]> missing(long size) {
+        List<long[]> missing = new ArrayList<>();
+        long position = 0;
+        for (Map.Entry<Long, Long> interval : intervals.entrySet()) {
+            if (interval.getKey() >= size) {
+                break;
+            }
+            if (interval.getKey() > position) {
+                missing.add(new long[] { position, interval.getKey() - position });
+            }
+            position = Math.max(position, interval.getValue());
+        }
+        if (position < size) {
+            missing.add(new long[] { position, size - position });
+        }
+        return missing;
+    }
+
+    private void remove(long start) {
+        Long end = intervals.remove(start);
+        coveredBytes -= end - start;
+    }
+}
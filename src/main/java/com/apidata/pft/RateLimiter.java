@@ -0,0 +1,119 @@
+package com.apidata.pft;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * RateLimiter caps what the server sends: in total, and per client address over all of its
+ * connections, which may be spread over several {@link Reactor}s. Every chunk transfer asks for a
+ * grant of at most {@link #GRANT_SIZE} bytes before writing, so throttled connections take turns
+ * and a single client with many chunks cannot starve the others. Control replies are small and
+ * not limited.
+ */
+class RateLimiter {
+    static final int GRANT_SIZE = 65536;
+    // a throttled connection waits for this many tokens, not to wake up for a few bytes
+    private static final int MIN_GRANT = 8192;
+
+    private final TokenBucket global;
+    private final long clientRate;
+    private final Map<InetAddress, Client> clients;
+
+    /**
+     * @param rate        max bytes per second sent to all clients, 0 for no limit
+     * @param clientRate  max bytes per second sent to each client address, 0 for no limit
+     */
+    RateLimiter(long rate, long clientRate) {
+        this.global = rate > 0 ? new TokenBucket(rate, capacity(rate)) : null;
+        this.clientRate = clientRate;
+        this.clients = new HashMap<>();
+    }
+
+    /**
+     * Returns the bucket shared by the connections of a client, null if clients are not limited.
+     * Every registration must be followed by an {@link #unregister}.
+     */
+    synchronized TokenBucket register(InetAddress address) {
+        if (clientRate <= 0) {
+            return null;
+        }
+        Client client = clients.get(address);
+        if (client == null) {
+            client = new Client(new TokenBucket(clientRate, capacity(clientRate)));
+            clients.put(address, client);
+        }
+        client.connections++;
+        return client.bucket;
+    }
+
+    synchronized void unregister(InetAddress address) {
+        Client client = clients.get(address);
+        if (client != null && --client.connections == 0) {
+            clients.remove(address);
+        }
+    }
+
+    /**
+     * Grants up to max bytes within both the global and the client limit, but nothing until
+     * {@link #MIN_GRANT} bytes or max may be sent, so that a throttled connection does not spin
+     * on grants of a few bytes.
+     *
+     * @param client the bucket of the client, may be null
+     * @return the number of bytes that may be sent, 0 if the connection has to wait
+     */
+    long acquire(TokenBucket client, long max) {
+        long min = Math.min(MIN_GRANT, max);
+        long granted = max;
+        if (client != null) {
+            granted = client.take(min, granted);
+        }
+        if (global != null && granted > 0) {
+            long taken = global.take(min, granted);
+            if (client != null) {
+                client.give(granted - taken);
+            }
+            granted = taken;
+        }
+        return granted;
+    }
+
+    /**
+     * Settles a grant once the bytes actually sent are known.
+     */
+    void settle(TokenBucket client, long granted, long sent) {
+        if (client != null) {
+            client.give(granted - sent);
+        }
+        if (global != null) {
+            global.give(granted - sent);
+        }
+    }
+
+    /**
+     * Returns how long a connection refused a grant should wait before asking again.
+     */
+    long delayNanos(TokenBucket client) {
+        long delay = global != null ? global.nanosUntil(MIN_GRANT) : 0;
+        if (client != null) {
+            delay = Math.max(delay, client.nanosUntil(MIN_GRANT));
+        }
+        return delay;
+    }
+
+    /**
+     * Allows bursts of a tenth of a second worth of bytes, and at least one grant.
+     */
+    private static long capacity(long rate) {
+        return Math.max(GRANT_SIZE, rate / 10);
+    }
+
+    private static class Client {
+        private final TokenBucket bucket;
+        private int connections;
+
+        Client(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+}
@@ -0,0 +1,872 @@
+package com.apidata.pft;
+
+import com.apidata.pft.message.BlockChecksumRequestMsg;
+import com.apidata.pft.message.BlockChecksumResponseMsg;
+import com.apidata.pft.message.BlockSignatureRequestMsg;
+import com.apidata.pft.message.BlockSignatureResponseMsg;
+import com.apidata.pft.message.FileBatchRequestMsg;
+import com.apidata.pft.message.FileBatchResponseMsg;
+import com.apidata.pft.message.FileChunkRequestMsg;
+import com.apidata.pft.message.FileRangeRequestMsg;
+import com.apidata.pft.message.FileRangeResponseMsg;
+import com.apidata.pft.message.FileRequestMsg;
+import com.apidata.pft.message.FileResponseMsg;
+import com.apidata.pft.message.ManifestRequestMsg;
+import com.apidata.pft.message.Message;
+import com.apidata.pft.message.PeerRequestMsg;
+import com.apidata.pft.message.UploadAckMsg;
+import com.apidata.pft.message.UploadChunkMsg;
+import com.apidata.pft.message.UploadCommitMsg;
+import com.apidata.pft.message.UploadRequestMsg;
+import com.apidata.pft.message.UploadResponseMsg;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Reactor owns one Selector and the thread running it. {@link PFTServer} accepts connections and
+ * hands them over to a Reactor, which then decodes the messages and does the disk and socket IO
+ * for every connection registered with it.
+ * <p>
+ * With a {@link RateLimiter}, a chunk is only written as far as the tokens granted to it. A
+ * connection that gets no tokens stops selecting and is put back on OP_WRITE by the select loop
+ * once its bucket has refilled.
+ * <p>
+ * With a {@link DiskReader}, chunks are read ahead on its threads and the reactor only writes
+ * what was read. A connection whose chunk waits for the disk stops selecting until the read is
+ * done, and one whose read was refused, the reader being busy, tries again a little later.
+ * Along with it, a {@link BlockCache} shared by the reactors serves the ranges asked for again
+ * from memory.
+ * <p>
+ * Peers in swarm mode announce themselves to the {@link SwarmTracker} of the server and learn of
+ * the others from it. The embedded server of a peer has a {@link PeerShare} instead, and then
+ * only serves the ranges of the one file it shares.
+ * <p>
+ * Uploads go the other way: after an upload request, a connection reads the payload of each
+ * piece it is sent into the file kept by the {@link UploadStore} before decoding requests again,
+ * see {@link ChunkReceiver}.
+ * <p>
+ * Bytes sent, chunk service times and the time spent per select loop are recorded into the
+ * {@link ServerMetrics} of the server.
+ */
+class Reactor implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(Reactor.class);
+
+    private final int id;
+    private final Selector selector;
+    private final Queue<SocketChannel> pending;
+    private final Queue<Runnable> tasks;
+    private final AtomicInteger openChannels;
+    private final ByteBuffer writeBuffer;
+    private final Message[] decoded;
+    private final FileHandleCache fileHandleCache;
+    private final FileRegistry fileRegistry;
+    private final ChecksumStore checksumStore;
+    private final SignatureStore signatureStore;
+    private final CompressionSampler compressionSampler;
+    private final ManifestStore manifestStore;
+    private final ChunkCompressor compressor;
+    private final RateLimiter rateLimiter;
+    private final DiskReader diskReader;
+    private final BlockCache blockCache;
+    private final SwarmTracker swarmTracker;
+    private final PeerShare share;
+    private final UploadStore uploadStore;
+    private final PriorityQueue<Throttled> throttled;
+    private final ServerMetrics metrics;
+    // written by the reactor thread only, read by the metrics
+    private volatile int throttledCount;
+    private volatile int waitingCount;
+
+    Reactor(int id, FileHandleCache fileHandleCache, FileRegistry fileRegistry,
+            ChecksumStore checksumStore, SignatureStore signatureStore,
+            CompressionSampler compressionSampler, ManifestStore manifestStore,
+            RateLimiter rateLimiter, DiskReader diskReader, BlockCache blockCache,
+            SwarmTracker swarmTracker, PeerShare share, UploadStore uploadStore,
+            ServerMetrics metrics)
+            throws IOException {
+        this.id = id;
+        this.fileHandleCache = fileHandleCache;
+        this.fileRegistry = fileRegistry;
+        this.checksumStore = checksumStore;
+        this.signatureStore = signatureStore;
+        this.compressionSampler = compressionSampler;
+        this.manifestStore = manifestStore;
+        this.compressor = new ChunkCompressor(metrics);
+        this.rateLimiter = rateLimiter;
+        this.diskReader = diskReader;
+        this.blockCache = blockCache;
+        this.swarmTracker = swarmTracker;
+        this.share = share;
+        this.uploadStore = uploadStore;
+        this.throttled = new PriorityQueue<>();
+        this.metrics = metrics;
+        this.selector = Selector.open();
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.openChannels = new AtomicInteger();
+        this.writeBuffer = BufferPool.getShared().acquire(PFTConstants.BUFFER_SIZE);
+        this.decoded = new Message[Message.MESSAGE_TYPES];
+    }
+
+    /**
+     * Queues a freshly accepted channel; it gets registered by the reactor thread itself since
+     * registering from another thread would block on the running select().
+     */
+    void register(SocketChannel channel) {
+        openChannels.incrementAndGet();
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the reactor thread, used to hand results computed elsewhere back to it.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    int getOpenChannels() {
+        return openChannels.get();
+    }
+
+    int getId() {
+        return id;
+    }
+
+    int getThrottled() {
+        return throttledCount;
+    }
+
+    int getWaiting() {
+        return waitingCount;
+    }
+
+    @Override
+    public void run() {
+        LOG.info("Reactor-{} running...", id);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // waiting for events, or for the next throttled connection to get tokens
+                selector.select(selectTimeout());
+                long loopStart = System.nanoTime();
+                registerPending();
+                runTasks();
+                resumeThrottled();
+
+                // work on selected keys
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+
+                    // prevent the same key from coming
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    try {
+                        if (key.isWritable()) {
+                            // Socket drained, resume the pending chunk and buffered requests
+                            this.write(key);
+                            this.process(key);
+                        } else if (key.isReadable()) {
+                            // Channel is ready for reading
+                            this.read(key);
+                        }
+                    } catch (IOException e) {
+                        LOG.error("IOException occurred", e);
+                        closeQuietly(key);
+                    } catch (RuntimeException e) {
+                        // a bug on one connection must not take the others of the reactor along
+                        LOG.error("Unexpected exception, closing the connection", e);
+                        closeQuietly(key);
+                    }
+                }
+                metrics.selectLoop(System.nanoTime() - loopStart);
+            }
+        } catch (IOException e) {
+            LOG.error("IOException occurred", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOG.error("IOException occurred", e);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOG.error("IOException occurred", e);
+            }
+            BufferPool.getShared().release(writeBuffer);
+            if (compressor.getRawBytes() > 0) {
+                LOG.info("Reactor-{} compressed {} bytes to {}", id, compressor.getRawBytes(),
+                        compressor.getCompressedBytes());
+            }
+            compressor.close();
+            LOG.info("Reactor-{} stopped", id);
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            try {
+                Connection connection = new Connection();
+                if (rateLimiter != null) {
+                    InetAddress address =
+                            ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+                    connection.setClient(address, rateLimiter.register(address));
+                }
+                channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                LOG.error("IOException occurred", e);
+                openChannels.decrementAndGet();
+            }
+        }
+        LOG.debug("Reactor-{} open channels - {}", id, openChannels.get());
+    }
+
+    private long selectTimeout() {
+        Throttled next = throttled.peek();
+        if (next == null) {
+            return 0;
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime());
+        // 0 would block for good
+        return Math.max(1, millis);
+    }
+
+    private void resumeThrottled() {
+        long now = System.nanoTime();
+        while (!throttled.isEmpty() && throttled.peek().deadline - now <= 0) {
+            SelectionKey key = throttled.poll().key;
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+        throttledCount = throttled.size();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.error("Unexpected exception in a reactor task", e);
+            }
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        ChunkReceiver receiver = connection.getReceiver();
+        if (receiver != null) {
+            if (!receiver.receive(channel)) {
+                closeConnection(key);
+                return;
+            }
+            if (!receiver.isDone()) {
+                return;
+            }
+            received(key, connection);
+        }
+        int len = channel.read(connection.getReadBuffer());
+        if (len < 0) {
+            // SocketClose by client
+            closeConnection(key);
+            return;
+        }
+        process(key);
+    }
+
+    /**
+     * Handles every complete request buffered for the connection. Decoding stops while a chunk is
+     * being sent, the remaining requests are picked up once it is done.
+     */
+    private void process(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer buffer = connection.getReadBuffer();
+        buffer.flip();
+        try {
+            Message msg;
+            while (key.isValid() && !connection.isBusy()
+                    && (msg = Message.decode(buffer, decoded)) != null) {
+                handle(key, connection, msg);
+                ChunkReceiver receiver = connection.getReceiver();
+                if (receiver != null) {
+                    // the payload of an upload piece follows its request
+                    receiver.drain(buffer);
+                    if (receiver.isDone()) {
+                        received(key, connection);
+                    }
+                }
+            }
+        } finally {
+            // a closed connection has handed its buffers back already
+            if (key.isValid()) {
+                buffer.compact();
+            }
+        }
+    }
+
+    private void handle(SelectionKey key, Connection connection, Message msg)
+            throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (share != null && !(msg instanceof FileRequestMsg || msg instanceof FileChunkRequestMsg
+                || msg instanceof FileRangeRequestMsg)) {
+            // a peer only hands out pieces of its file
+            LOG.error("Unexpected message for a peer " + msg);
+            closeConnection(key);
+            return;
+        }
+        if (msg instanceof FileRequestMsg) {
+            // FileRquestMsg gets a filePath and FileResponseMsg send the length of file.
+            LOG.info("Received a FileRequestMsg");
+            FileRequestMsg request = (FileRequestMsg) msg;
+            String filePath = share == null ? request.getFilePath() :
+                    share.resolve(request.getFilePath());
+
+            long length = -1;
+            long lastModified = 0;
+            int fileId = 0;
+            FileHandleCache.FileHandle handle = null;
+            if (filePath == null) {
+                LOG.warn("File not shared-{}", request.getFilePath());
+            } else {
+                try {
+                    handle = fileHandleCache.acquire(filePath);
+                    length = handle.getSize();
+                    // a peer reports the version of the origin file
+                    lastModified = share == null ? handle.getLastModified() :
+                            share.getLastModified();
+                    fileId = fileRegistry.register(filePath);
+                } catch (NoSuchFileException e) {
+                    LOG.warn("File not found-{}", filePath);
+                }
+            }
+
+            LOG.info("FilePath received-{}, file cache {}", filePath, fileHandleCache);
+            if (handle != null && share == null
+                    && request.getCompression() == Message.COMPRESSION_DEFLATE) {
+                // only agree to compress files that actually shrink
+                FileResponseMsg raw = new FileResponseMsg(length, lastModified, fileId);
+                FileResponseMsg deflated = new FileResponseMsg(length, lastModified, fileId,
+                        Message.COMPRESSION_DEFLATE);
+                sendWhenReady(key, filePath, handle, compressionSampler.get(handle),
+                        compressible -> compressible ? deflated : raw);
+            } else {
+                if (handle != null) {
+                    fileHandleCache.release(handle);
+                }
+                reply(key, new FileResponseMsg(length, lastModified, fileId));
+            }
+        } else if (msg instanceof FileChunkRequestMsg) {
+            // Get the FileChunkRequestMsg from client and stream the payload straight from the file
+            LOG.trace("Received a FileChunkRequestMsg");
+            FileChunkRequestMsg request = (FileChunkRequestMsg) msg;
+            String filePath = getPath(key, request.getFileId());
+            if (filePath != null && isShared(key, request.getOffset(), request.getLength())) {
+                ChunkTransfer transfer =
+                        new ChunkTransfer(fileHandleCache, filePath, request.getOffset(),
+                                request.getLength(), request.getChunkId());
+                setReader(key, transfer, connection.isSequential(filePath,
+                        request.getOffset(), request.getLength()));
+                connection.addTransfer(transfer);
+                send(key);
+            }
+        } else if (msg instanceof FileRangeRequestMsg) {
+            // Stream the whole range, framed by a FileRangeResponseMsg carrying its length
+            FileRangeRequestMsg request = (FileRangeRequestMsg) msg;
+            LOG.debug("Received a FileRangeRequestMsg {}", request);
+            String filePath = getPath(key, request.getFileId());
+            if (filePath != null && isShared(key, request.getOffset(), request.getLength())) {
+                ChunkTransfer transfer =
+                        new ChunkTransfer(fileHandleCache, filePath, request.getOffset(),
+                                request.getLength(), request.getChunkId());
+                ByteBuffer header = connection.getHeaderBuffer();
+                header.clear();
+                Message.encode(
+                        new FileRangeResponseMsg(request.getChunkId(), transfer.getRemaining()),
+                        header);
+                header.flip();
+                transfer.setHeader(header);
+                if (request.getCompression() == Message.COMPRESSION_DEFLATE) {
+                    transfer.setCompressor(compressor);
+                } else if (request.getCompression() != Message.COMPRESSION_NONE) {
+                    LOG.error("Unsupported compression {}", request.getCompression());
+                    transfer.close();
+                    closeConnection(key);
+                    return;
+                }
+                setReader(key, transfer, connection.isSequential(filePath,
+                        request.getOffset(), request.getLength()));
+                connection.addTransfer(transfer);
+                send(key);
+            }
+        } else if (msg instanceof BlockChecksumRequestMsg) {
+            BlockChecksumRequestMsg request = (BlockChecksumRequestMsg) msg;
+            LOG.debug("Received a BlockChecksumRequestMsg {}", request);
+            String filePath = getPath(key, request.getFileId());
+            if (filePath != null) {
+                sendChecksums(key, filePath, request.getFirstBlock(), request.getCount());
+            }
+        } else if (msg instanceof BlockSignatureRequestMsg) {
+            BlockSignatureRequestMsg request = (BlockSignatureRequestMsg) msg;
+            LOG.debug("Received a BlockSignatureRequestMsg {}", request);
+            String filePath = getPath(key, request.getFileId());
+            if (filePath != null) {
+                sendSignatures(key, filePath, request.getFirstBlock(), request.getCount());
+            }
+        } else if (msg instanceof ManifestRequestMsg) {
+            ManifestRequestMsg request = (ManifestRequestMsg) msg;
+            LOG.debug("Received a ManifestRequestMsg {}", request);
+            if (request.getManifestId() == 0) {
+                sendWhenReady(key, request.getDirPath(), null,
+                        manifestStore.walk(request.getDirPath()), manifest -> manifest.page(0));
+            } else {
+                ManifestStore.Manifest manifest = manifestStore.get(request.getManifestId());
+                reply(key, manifest == null ?
+                        ManifestStore.Manifest.expired(request.getManifestId(),
+                                request.getPage()) :
+                        manifest.page(request.getPage()));
+            }
+        } else if (msg instanceof FileBatchRequestMsg) {
+            FileBatchRequestMsg request = (FileBatchRequestMsg) msg;
+            LOG.debug("Received a FileBatchRequestMsg {}", request);
+            sendBatch(key, connection, request);
+        } else if (msg instanceof PeerRequestMsg) {
+            PeerRequestMsg request = (PeerRequestMsg) msg;
+            LOG.debug("Received a PeerRequestMsg {}", request);
+            InetSocketAddress peer = null;
+            if (request.getPeerPort() > 0) {
+                InetAddress host = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+                peer = new InetSocketAddress(host, request.getPeerPort());
+            }
+            reply(key, swarmTracker.exchange(request, peer));
+        } else if (msg instanceof UploadRequestMsg) {
+            UploadRequestMsg request = (UploadRequestMsg) msg;
+            LOG.info("Received an UploadRequestMsg {}", request);
+            int uploadId = 0;
+            try {
+                UploadStore.Upload upload =
+                        uploadStore.open(request.getFilePath(), request.getFileSize());
+                if (upload == null) {
+                    LOG.warn("Upload refused-{}", request.getFilePath());
+                } else {
+                    uploadId = upload.getId();
+                }
+            } catch (IOException e) {
+                LOG.error("IOException occurred", e);
+            }
+            reply(key, new UploadResponseMsg(uploadId));
+        } else if (msg instanceof UploadChunkMsg) {
+            UploadChunkMsg request = (UploadChunkMsg) msg;
+            LOG.trace("Received an UploadChunkMsg {}", request);
+            UploadStore.Upload upload = uploadStore.get(request.getUploadId());
+            if (upload == null || request.getOffset() < 0 || request.getLength() < 0
+                    || request.getLength() > upload.getSize() - request.getOffset()) {
+                LOG.error("Unexpected upload piece {}", request);
+                closeConnection(key);
+                return;
+            }
+            connection.setReceiver(new ChunkReceiver(upload, request.getOffset(),
+                    request.getLength(), request.getChunkId()));
+        } else if (msg instanceof UploadCommitMsg) {
+            UploadCommitMsg request = (UploadCommitMsg) msg;
+            LOG.info("Received an UploadCommitMsg {}", request);
+            int uploadId = request.getUploadId();
+            sendWhenReady(key, String.valueOf(uploadId), null, uploadStore.commit(uploadId),
+                    committed -> new UploadResponseMsg(committed ? uploadId : 0));
+        } else {
+            LOG.error("Unexpected message " + msg);
+            closeConnection(key);
+        }
+    }
+
+    /**
+     * Confirms the upload piece received in full, and goes back to reading requests.
+     */
+    private void received(SelectionKey key, Connection connection) throws IOException {
+        ChunkReceiver receiver = connection.getReceiver();
+        connection.setReceiver(null);
+        receiver.close();
+        receiver.getUpload().received(receiver.getOffset(), receiver.getLength());
+        metrics.uploaded(receiver.getLength());
+        reply(key, new UploadAckMsg(receiver.getChunkId(), receiver.getLength()));
+    }
+
+    /**
+     * Queues the whole of every file of the batch, behind a header giving their lengths. The
+     * files are only looked up here, each one is opened once the one before it is sent, so a
+     * batch holds one file handle at a time.
+     */
+    private void sendBatch(SelectionKey key, Connection connection, FileBatchRequestMsg request)
+            throws IOException {
+        long[] lengths = new long[request.getCount()];
+        for (int i = 0; i < request.getCount(); i++) {
+            String filePath = getPath(key, request.getFileId(i));
+            if (filePath == null) {
+                return;
+            }
+            try {
+                BasicFileAttributes attrs =
+                        Files.readAttributes(Paths.get(filePath), BasicFileAttributes.class);
+                if (!attrs.isRegularFile()) {
+                    throw new NoSuchFileException(filePath);
+                }
+                lengths[i] = attrs.size();
+                connection.addBatchFile(new Connection.BatchFile(filePath, lengths[i],
+                        request.getChunkId()));
+            } catch (NoSuchFileException e) {
+                LOG.warn("File not found-{}", filePath);
+                lengths[i] = -1;
+            }
+        }
+        FileBatchResponseMsg response =
+                new FileBatchResponseMsg(request.getChunkId(), lengths, lengths.length);
+        ChunkTransfer first = openBatchFile(key, connection);
+        if (!key.isValid()) {
+            return;
+        }
+        if (first == null) {
+            reply(key, response);
+            return;
+        }
+        ByteBuffer header = connection.getHeaderBuffer();
+        header.clear();
+        Message.encode(response, header);
+        header.flip();
+        first.setHeader(header);
+        send(key);
+    }
+
+    /**
+     * Opens the next file of the batch being sent, if any, and queues the whole of it. The file
+     * may not be shorter than announced in the batch header, the connection is closed if it is.
+     *
+     * @return the transfer of the file, or null if the batch is done or the connection closed
+     */
+    private ChunkTransfer openBatchFile(SelectionKey key, Connection connection)
+            throws IOException {
+        Connection.BatchFile file = connection.nextBatchFile();
+        if (file == null) {
+            return null;
+        }
+        FileHandleCache.FileHandle handle = null;
+        try {
+            handle = fileHandleCache.acquire(file.getPath());
+        } catch (NoSuchFileException e) {
+            // handled below
+        }
+        if (handle == null || handle.getSize() < file.getLength()) {
+            LOG.error("File {} changed since the batch was announced", file.getPath());
+            if (handle != null) {
+                fileHandleCache.release(handle);
+            }
+            closeConnection(key);
+            return null;
+        }
+        ChunkTransfer transfer = new ChunkTransfer(fileHandleCache, handle, 0, file.getLength(),
+                file.getChunkId());
+        // whole files are read in order
+        setReader(key, transfer, true);
+        connection.addTransfer(transfer);
+        return transfer;
+    }
+
+    private void sendChecksums(SelectionKey key, String filePath, int firstBlock, int count)
+            throws IOException {
+        FileHandleCache.FileHandle handle = fileHandleCache.acquire(filePath);
+        sendWhenReady(key, filePath, handle, checksumStore.get(handle), checksums -> {
+            int from = Math.max(0, Math.min(firstBlock, checksums.length));
+            int to = Math.min(checksums.length,
+                    from + Math.min(count, BlockChecksumResponseMsg.MAX_CHECKSUMS));
+            return new BlockChecksumResponseMsg(checksumStore.getBlockSize(), from, checksums,
+                    from, to - from);
+        });
+    }
+
+    private void sendSignatures(SelectionKey key, String filePath, int firstBlock, int count)
+            throws IOException {
+        FileHandleCache.FileHandle handle = fileHandleCache.acquire(filePath);
+        sendWhenReady(key, filePath, handle, signatureStore.get(handle), signatures -> {
+            int from = Math.max(0, Math.min(firstBlock, signatures.getCount()));
+            int to = Math.min(signatures.getCount(),
+                    from + Math.min(count, BlockSignatureResponseMsg.MAX_SIGNATURES));
+            return new BlockSignatureResponseMsg(signatures.getBlockSize(), from,
+                    signatures.getRolling(), signatures.getStrong(), from, to - from);
+        });
+    }
+
+    /**
+     * Checksums, signatures, compression samples and manifests may take a while to compute the
+     * first time they are asked for, and an upload commit syncs the whole file. The connection
+     * stops reading meanwhile and the reply is sent from the reactor thread once they are ready.
+     * The handle, if any, is released then.
+     */
+    private <T> void sendWhenReady(SelectionKey key, String path,
+            FileHandleCache.FileHandle handle, CompletableFuture<T> future,
+            Function<T, Message> reply) {
+        Connection connection = (Connection) key.attachment();
+        connection.setWaiting(true);
+        waitingCount++;
+        key.interestOps(0);
+        future.whenComplete((value, error) -> execute(() -> {
+            waitingCount--;
+            try {
+                if (handle != null) {
+                    fileHandleCache.release(handle);
+                }
+                if (!key.isValid()) {
+                    return;
+                }
+                if (error != null) {
+                    LOG.error("Unable to read {}", path, error);
+                    closeConnection(key);
+                    return;
+                }
+                connection.setWaiting(false);
+                if (reply(key, reply.apply(value))) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    process(key);
+                }
+            } catch (IOException e) {
+                LOG.error("IOException occurred", e);
+                closeQuietly(key);
+            }
+        }));
+    }
+
+    /**
+     * Has the transfer read ahead by the disk reader, if any, and sent on once a read it was
+     * starved for is done. With a block cache it is sent from the cache, reading ahead further
+     * if sequential.
+     */
+    private void setReader(SelectionKey key, ChunkTransfer transfer, boolean sequential) {
+        if (diskReader != null) {
+            transfer.setReader(diskReader, this::execute, () -> resume(key));
+            if (blockCache != null) {
+                transfer.setCache(blockCache, sequential);
+            }
+        }
+    }
+
+    /**
+     * Sends on a connection whose chunk was waiting for the disk, and handles the requests
+     * buffered meanwhile once it is done.
+     */
+    private void resume(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            send(key);
+            process(key);
+        } catch (IOException e) {
+            LOG.error("IOException occurred", e);
+            closeQuietly(key);
+        }
+    }
+
+    private String getPath(SelectionKey key, int fileId) throws IOException {
+        String filePath = fileRegistry.getPath(fileId);
+        if (filePath == null) {
+            LOG.error("Unknown fileId {}", fileId);
+            closeConnection(key);
+        }
+        return filePath;
+    }
+
+    /**
+     * Returns false, closing the connection, if this is the server of a peer and the range is not
+     * written yet. Peers are only asked for the ranges they announced, so this is not expected.
+     */
+    private boolean isShared(SelectionKey key, long offset, long length) throws IOException {
+        if (share == null || share.holds(offset, length)) {
+            return true;
+        }
+        LOG.error("Range {}+{} is not held by this peer", offset, length);
+        closeConnection(key);
+        return false;
+    }
+
+    /**
+     * Sends a control reply without blocking. Whatever the socket does not take is kept by the
+     * connection, which then waits for OP_WRITE and takes no further requests until it is out.
+     *
+     * @return true if the whole reply was written
+     */
+    private boolean reply(SelectionKey key, Message msg) throws IOException {
+        writeBuffer.clear();
+        Message.encode(msg, writeBuffer);
+        writeBuffer.flip();
+        ((SocketChannel) key.channel()).write(writeBuffer);
+        if (!writeBuffer.hasRemaining()) {
+            return true;
+        }
+        ((Connection) key.attachment()).setReply(writeBuffer);
+        key.interestOps(SelectionKey.OP_WRITE);
+        return false;
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer reply = connection.getReply();
+        if (reply != null) {
+            ((SocketChannel) key.channel()).write(reply);
+            if (reply.hasRemaining()) {
+                return;
+            }
+            connection.replied();
+        }
+        if (connection.getTransfer() == null) {
+            key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+        send(key);
+    }
+
+    /**
+     * Pushes the pending chunks of this connection. If the socket buffer fills up, or the rate
+     * limit is reached, the connection waits for OP_WRITE instead of reading further requests,
+     * and resumes from where it stopped.
+     */
+    private void send(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        ChunkTransfer transfer = connection.getTransfer();
+        while (transfer != null) {
+            boolean done;
+            long written = transfer.getWritten();
+            if (rateLimiter == null) {
+                done = transfer.transferTo(channel);
+            } else {
+                TokenBucket bucket = connection.getClientBucket();
+                long granted = rateLimiter.acquire(bucket, RateLimiter.GRANT_SIZE);
+                if (granted == 0) {
+                    metrics.rateLimitWait();
+                    key.interestOps(0);
+                    throttled.add(new Throttled(
+                            System.nanoTime() + rateLimiter.delayNanos(bucket), key));
+                    throttledCount = throttled.size();
+                    return;
+                }
+                try {
+                    done = transfer.transferTo(channel, granted);
+                } finally {
+                    rateLimiter.settle(bucket, granted, transfer.getWritten() - written);
+                }
+            }
+            metrics.sent(transfer.getWritten() - written);
+            if (!done) {
+                if (!transfer.isStarved()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                } else if (transfer.isDeferred()) {
+                    key.interestOps(0);
+                    throttled.add(new Throttled(System.nanoTime()
+                            + TimeUnit.MILLISECONDS.toNanos(PFTConstants.READ_RETRY_MILLIS), key));
+                    throttledCount = throttled.size();
+                } else {
+                    // resumed once the read is done
+                    key.interestOps(0);
+                }
+                return;
+            }
+            LOG.trace("Chunk {} sent up to position {}", transfer.getChunkId(),
+                    transfer.getPosition());
+            metrics.chunkSent(System.nanoTime() - transfer.getStartNanos());
+            transfer.close();
+            transfer = connection.nextTransfer();
+            if (transfer == null) {
+                transfer = openBatchFile(key, connection);
+                if (!key.isValid()) {
+                    return;
+                }
+            }
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void closeConnection(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        if (connection != null) {
+            if (rateLimiter != null && connection.getClientAddress() != null) {
+                rateLimiter.unregister(connection.getClientAddress());
+                connection.setClient(null, null);
+            }
+            connection.release();
+            if (connection.getReceiver() != null) {
+                connection.getReceiver().close();
+                connection.setReceiver(null);
+            }
+            for (ChunkTransfer transfer = connection.getTransfer(); transfer != null;
+                    transfer = connection.nextTransfer()) {
+                transfer.close();
+            }
+        }
+        SocketAddress remoteAddr = channel.socket().getRemoteSocketAddress();
+        LOG.info("Connection closed by client: " + remoteAddr);
+        openChannels.decrementAndGet();
+        channel.close();
+        key.cancel();
+    }
+
+    private void closeQuietly(SelectionKey key) {
+        try {
+            closeConnection(key);
+        } catch (IOException e) {
+            LOG.error("IOException occurred", e);
+        }
+    }
+
+    /**
+     * A connection waiting for tokens, or to try a refused read again, until the deadline, in
+     * System.nanoTime.
+     */
+    private static class Throttled implements Comparable<Throttled> {
+        private final long deadline;
+        private final SelectionKey key;
+
+        Throttled(long deadline, SelectionKey key) {
+            this.deadline = deadline;
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(Throttled other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.apidata.pft;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replica is one of the servers holding a copy of the file in a multi-source download: its pool
+ * of connections and the fileId it gave the file in the handshake. Once a piece fails on it
+ * after all retries the replica is down, and the {@link ChunkWorker}s fetching from it retire
+ * so the others take their work over.
+ */
+class Replica {
+    private final ConnectionPool connectionPool;
+    private final int fileId;
+    private final LongAdder bytes;
+    private volatile boolean down;
+
+    Replica(ConnectionPool connectionPool, int fileId) {
+        this.connectionPool = connectionPool;
+        this.fileId = fileId;
+        this.bytes = new LongAdder();
+    }
+
+    ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    int getFileId() {
+        return fileId;
+    }
+
+    boolean isDown() {
+        return down;
+    }
+
+    void setDown() {
+        this.down = true;
+    }
+
+    /**
+     * Adds to the bytes fetched from this replica.
+     */
+    void fetched(long bytes) {
+        this.bytes.add(bytes);
+    }
+
+    long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public String toString() {
+        return connectionPool.getHostAddress() + (down ? " (down)" : "");
+    }
+}
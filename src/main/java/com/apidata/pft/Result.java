@@ -1,15 +1,32 @@
 package com.apidata.pft;
 
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of a chunk, or of all chunks of a worker: the bytes fetched, the nanoseconds spent
+ * fetching them and how many socket reads stalled for over {@link PFTConstants#STALL_MILLIS}.
+ */
 public class Result {
     private int id;
     private long timeTaken;
     private boolean status;
+    private long bytes;
+    private long nanos;
+    private int stalls;
 
     public Result(int id, long timeTaken, boolean status) {
+        this(id, timeTaken, status, 0, TimeUnit.MILLISECONDS.toNanos(timeTaken), 0);
+    }
+
+    public Result(int id, long timeTaken, boolean status, long bytes, long nanos, int stalls) {
         this.id = id;
         this.timeTaken = timeTaken;
         this.status = status;
+        this.bytes = bytes;
+        this.nanos = nanos;
+        this.stalls = stalls;
     }
+
     public int getId() {
         return id;
     }
@@ -21,4 +38,23 @@ public class Result {
     public boolean isStatus() {
         return status;
     }
-}
\ No newline at end of file
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    public int getStalls() {
+        return stalls;
+    }
+
+    /**
+     * Returns the bytes per second while fetching.
+     */
+    public long getThroughput() {
+        return nanos == 0 ? 0 : (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / nanos);
+    }
+}
@@ -0,0 +1,61 @@
+package com.apidata.pft;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * RollingChecksum is the weak checksum of rsync over a window of bytes: two 16 bit sums that can
+ * be moved along by one byte in constant time. A match of the weak checksum is confirmed with
+ * {@link #strong}, the first 64 bits of the MD5 of the window.
+ */
+class RollingChecksum {
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private int a;
+    private int b;
+    private int length;
+
+    /**
+     * Starts over with the window of length bytes at the absolute index of the buffer.
+     */
+    void reset(ByteBuffer buffer, int index, int length) {
+        this.a = 0;
+        this.b = 0;
+        this.length = length;
+        for (int i = 0; i < length; i++) {
+            int x = buffer.get(index + i) & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+    }
+
+    /**
+     * Slides the window by one byte, dropping out and taking in.
+     */
+    void roll(byte out, byte in) {
+        a += (in & 0xff) - (out & 0xff);
+        b += a - length * (out & 0xff);
+    }
+
+    int getValue() {
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * Returns the strong checksum of the length bytes at the absolute index of the buffer.
+     */
+    static long strong(ByteBuffer buffer, int index, int length) {
+        ByteBuffer window = buffer.duplicate();
+        window.limit(index + length).position(index);
+        MessageDigest md5 = MD5.get();
+        md5.update(window);
+        return ByteBuffer.wrap(md5.digest()).getLong();
+    }
+}
@@ -0,0 +1,261 @@
+package com.apidata.pft;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ServerMetrics gathers the counters and histograms of a {@link PFTServer}. The {@link Reactor}s
+ * record into it from their own threads without locking; gauges such as the open connections are
+ * read from the reactors when asked for.
+ */
+class ServerMetrics implements ServerMetricsMBean {
+    private final Meter bytesSent;
+    private final LongAdder accepted;
+    private final LongAdder bytesUploaded;
+    private final Histogram chunkService;
+    private final Histogram selectLoop;
+    private final Histogram diskRead;
+    private final LongAdder readsDeferred;
+    private final LongAdder rateLimitWaits;
+    private final LongAdder compressionRawBytes;
+    private final LongAdder compressionBytes;
+    private volatile Reactor[] reactors;
+    private volatile BlockCache blockCache;
+
+    ServerMetrics() {
+        this.bytesSent = new Meter();
+        this.accepted = new LongAdder();
+        this.bytesUploaded = new LongAdder();
+        this.chunkService = new Histogram();
+        this.selectLoop = new Histogram();
+        this.diskRead = new Histogram();
+        this.readsDeferred = new LongAdder();
+        this.rateLimitWaits = new LongAdder();
+        this.compressionRawBytes = new LongAdder();
+        this.compressionBytes = new LongAdder();
+        this.reactors = new Reactor[0];
+    }
+
+    void setReactors(Reactor[] reactors) {
+        this.reactors = reactors;
+    }
+
+    void setBlockCache(BlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+
+    void accepted() {
+        accepted.increment();
+    }
+
+    void sent(long bytes) {
+        bytesSent.mark(bytes);
+    }
+
+    void uploaded(long bytes) {
+        bytesUploaded.add(bytes);
+    }
+
+    void chunkSent(long nanos) {
+        chunkService.record(nanos);
+    }
+
+    void selectLoop(long nanos) {
+        selectLoop.record(nanos);
+    }
+
+    void diskRead(long nanos) {
+        diskRead.record(nanos);
+    }
+
+    void readDeferred() {
+        readsDeferred.increment();
+    }
+
+    void rateLimitWait() {
+        rateLimitWaits.increment();
+    }
+
+    void compressed(long rawBytes, long bytes) {
+        compressionRawBytes.add(rawBytes);
+        compressionBytes.add(bytes);
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.getTotal();
+    }
+
+    @Override
+    public long getBytesPerSecond() {
+        return bytesSent.getRate();
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        return bytesUploaded.sum();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        int connections = 0;
+        for (Reactor reactor : reactors) {
+            if (reactor != null) {
+                connections += reactor.getOpenChannels();
+            }
+        }
+        return connections;
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getChunksSent() {
+        return chunkService.getCount();
+    }
+
+    @Override
+    public long getChunkServiceMicrosMean() {
+        return micros(chunkService.getMean());
+    }
+
+    @Override
+    public long getChunkServiceMicrosP50() {
+        return micros(chunkService.quantile(0.5));
+    }
+
+    @Override
+    public long getChunkServiceMicrosP99() {
+        return micros(chunkService.quantile(0.99));
+    }
+
+    @Override
+    public long getChunkServiceMicrosMax() {
+        return micros(chunkService.getMax());
+    }
+
+    @Override
+    public long getSelectLoopMicrosP50() {
+        return micros(selectLoop.quantile(0.5));
+    }
+
+    @Override
+    public long getSelectLoopMicrosP99() {
+        return micros(selectLoop.quantile(0.99));
+    }
+
+    @Override
+    public long getSelectLoopMicrosMax() {
+        return micros(selectLoop.getMax());
+    }
+
+    @Override
+    public long getDiskReads() {
+        return diskRead.getCount();
+    }
+
+    @Override
+    public long getDiskReadMicrosP50() {
+        return micros(diskRead.quantile(0.5));
+    }
+
+    @Override
+    public long getDiskReadMicrosP99() {
+        return micros(diskRead.quantile(0.99));
+    }
+
+    @Override
+    public long getDiskReadMicrosMax() {
+        return micros(diskRead.getMax());
+    }
+
+    @Override
+    public long getDeferredReads() {
+        return readsDeferred.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        BlockCache cache = blockCache;
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        BlockCache cache = blockCache;
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = getCacheHits();
+        long reads = hits + getCacheMisses();
+        return reads == 0 ? 0 : (double) hits / reads;
+    }
+
+    @Override
+    public long getCacheBytesServed() {
+        BlockCache cache = blockCache;
+        return cache == null ? 0 : cache.getBytesServed();
+    }
+
+    @Override
+    public long getCacheBytesUsed() {
+        BlockCache cache = blockCache;
+        return cache == null ? 0 : cache.getBytesCached();
+    }
+
+    @Override
+    public long getRateLimitWaits() {
+        return rateLimitWaits.sum();
+    }
+
+    @Override
+    public long getCompressionRawBytes() {
+        return compressionRawBytes.sum();
+    }
+
+    @Override
+    public long getCompressionBytes() {
+        return compressionBytes.sum();
+    }
+
+    @Override
+    public int getThrottledConnections() {
+        int throttled = 0;
+        for (Reactor reactor : reactors) {
+            if (reactor != null) {
+                throttled += reactor.getThrottled();
+            }
+        }
+        return throttled;
+    }
+
+    @Override
+    public int getWaitingConnections() {
+        int waiting = 0;
+        for (Reactor reactor : reactors) {
+            if (reactor != null) {
+                waiting += reactor.getWaiting();
+            }
+        }
+        return waiting;
+    }
+
+    @Override
+    public String toString() {
+        return "sent " + getBytesSent() + " bytes in " + getChunksSent()
+                + " chunks, service p50/p99/max " + getChunkServiceMicrosP50() + "/"
+                + getChunkServiceMicrosP99() + "/" + getChunkServiceMicrosMax()
+                + " us, select loop p99 " + getSelectLoopMicrosP99() + " us, disk read p99 "
+                + getDiskReadMicrosP99() + " us, cache hit ratio "
+                + String.format("%.2f", getCacheHitRatio());
+    }
+
+    static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
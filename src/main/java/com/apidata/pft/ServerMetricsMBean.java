@@ -0,0 +1,102 @@
+package com.apidata.pft;
+
+/**
+ * What a {@link PFTServer} publishes over JMX, as com.apidata.pft:type=PFTServer,port=&lt;port&gt;.
+ * Latencies are in microseconds.
+ */
+public interface ServerMetricsMBean {
+    long getBytesSent();
+
+    /**
+     * Bytes per second sent since the previous reading.
+     */
+    long getBytesPerSecond();
+
+    /**
+     * Bytes of upload pieces received and confirmed.
+     */
+    long getBytesUploaded();
+
+    int getActiveConnections();
+
+    long getAcceptedConnections();
+
+    long getChunksSent();
+
+    /**
+     * Time from decoding a chunk request to writing its last byte.
+     */
+    long getChunkServiceMicrosMean();
+
+    long getChunkServiceMicrosP50();
+
+    long getChunkServiceMicrosP99();
+
+    long getChunkServiceMicrosMax();
+
+    /**
+     * Time a reactor spends handling what one select returned.
+     */
+    long getSelectLoopMicrosP50();
+
+    long getSelectLoopMicrosP99();
+
+    long getSelectLoopMicrosMax();
+
+    /**
+     * Reads done by the disk reader, if any, and the time from queuing one to its end.
+     */
+    long getDiskReads();
+
+    long getDiskReadMicrosP50();
+
+    long getDiskReadMicrosP99();
+
+    long getDiskReadMicrosMax();
+
+    /**
+     * Reads refused because the reader queue was full or the file had enough reads under way.
+     */
+    long getDeferredReads();
+
+    /**
+     * Chunk reads served by the block cache, if any, and those that had to load their block.
+     */
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    /**
+     * Share of the reads served by the block cache, 0 without one.
+     */
+    double getCacheHitRatio();
+
+    long getCacheBytesServed();
+
+    /**
+     * Bytes of file blocks held by the block cache.
+     */
+    long getCacheBytesUsed();
+
+    /**
+     * Times a connection was refused rate limit tokens and had to wait for them.
+     */
+    long getRateLimitWaits();
+
+    /**
+     * Payload bytes sent in compressed frames, before and after compression.
+     */
+    long getCompressionRawBytes();
+
+    long getCompressionBytes();
+
+    /**
+     * Connections waiting for rate limit tokens, or to try a refused read again.
+     */
+    int getThrottledConnections();
+
+    /**
+     * Connections waiting for checksums, signatures, samples or manifests to be computed.
+     */
+    int getWaitingConnections();
+}
@@ -0,0 +1,70 @@
+package com.apidata.pft;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.stream.IntStream;
+
+/**
+ * SignatureStore provides the {@link BlockSignatures} that delta clients match their stale copy
+ * against. Like {@link ChecksumStore} it computes them once per version of a file, reading groups
+ * of blocks in parallel off the reactor threads, and keeps them in memory for the most recent
+ * files. Nightly snapshots are fetched by many clients, so the server does this work once rather
+ * than matching every client's copy itself.
+ */
+class SignatureStore extends FileVersionCache<BlockSignatures> {
+    private static final Logger LOG = LoggerFactory.getLogger(SignatureStore.class);
+    private static final int BLOCKS_PER_TASK = 64;
+
+    private final int blockSize;
+
+    SignatureStore(int blockSize) {
+        super("pft-signature");
+        this.blockSize = blockSize;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    BlockSignatures compute(FileHandleCache.FileHandle handle) {
+        long startTime = System.currentTimeMillis();
+        FileChannel channel = handle.getChannel();
+        long size = handle.getSize();
+        int blocks = (int) ((size + blockSize - 1) / blockSize);
+        BlockSignatures signatures = new BlockSignatures(blockSize, blocks);
+        int tasks = (blocks + BLOCKS_PER_TASK - 1) / BLOCKS_PER_TASK;
+        IntStream.range(0, tasks).parallel().forEach(task -> {
+            ByteBuffer buffer = BufferPool.getShared().acquire(blockSize);
+            RollingChecksum rolling = new RollingChecksum();
+            int last = Math.min(blocks, (task + 1) * BLOCKS_PER_TASK);
+            try {
+                for (int block = task * BLOCKS_PER_TASK; block < last; block++) {
+                    long position = (long) block * blockSize;
+                    buffer.clear();
+                    buffer.limit((int) Math.min(blockSize, size - position));
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, position + buffer.position()) < 0) {
+                            throw new IOException("File shrunk while computing signatures");
+                        }
+                    }
+                    rolling.reset(buffer, 0, buffer.position());
+                    signatures.set(block, rolling.getValue(),
+                            RollingChecksum.strong(buffer, 0, buffer.position()));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                BufferPool.getShared().release(buffer);
+            }
+        });
+        LOG.info("Computed {} block signatures of {} in {} msecs", blocks, handle.getPath(),
+                System.currentTimeMillis() - startTime);
+        return signatures;
+    }
+}
@@ -0,0 +1,163 @@
+package com.apidata.pft;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StreamController decides how many {@link ChunkWorker}s of an adaptive transfer fetch at once,
+ * up to one per pooled connection, from the goodput and round-trip times measured as pieces
+ * complete. Every {@link PFTConstants#STREAM_CONTROL_MILLIS} it compares the goodput with the
+ * previous interval: the limit doubles while the goodput keeps growing, then grows by one stream
+ * at a time (additive increase) and is cut to {@link PFTConstants#STREAM_DECREASE_FACTOR} of
+ * itself (multiplicative decrease) once the goodput drops or the round trip grows well past the
+ * lowest seen, i.e. queues build up. It holds while the goodput is flat. The workers over the
+ * limit wait for a slot, their shares are taken over by the others meanwhile.
+ * <p>
+ * Given a cap, each interval also sizes the socket buffers of the pools to the bandwidth-delay
+ * product of a stream, with room for bursts, up to the cap. Without one the buffers are left to
+ * the OS: on Linux setting a socket buffer turns off its autotuning, which would otherwise grow
+ * the buffer as far as net.ipv4.tcp_rmem allows. Every decision is logged and counted in the
+ * {@link ClientMetrics}.
+ */
+class StreamController {
+    private static final Logger LOG = LoggerFactory.getLogger(StreamController.class);
+    private static final double GROWTH = 1.05;
+    private static final double DROP = 0.9;
+    private static final double RTT_INFLATION = 2;
+    // round trips within a millisecond of the lowest do not count as queuing
+    private static final long RTT_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int maxStreams;
+    private final List<ConnectionPool> pools;
+    private final int socketBufferCap;
+    private final ClientMetrics metrics;
+    private final long intervalNanos;
+    private int limit;
+    private int active;
+    private boolean slowStart;
+    private long intervalStart;
+    private long intervalBytes;
+    private long intervalRtt;
+    private long baseRtt;
+    private double lastGoodput;
+    private int socketBufferSize;
+
+    /**
+     * @param socketBufferCap the most bytes the socket buffers are sized to, 0 to leave them to
+     *                        the OS
+     */
+    StreamController(int maxStreams, List<ConnectionPool> pools, int socketBufferCap,
+            ClientMetrics metrics) {
+        this.maxStreams = Math.max(1, maxStreams);
+        this.pools = pools;
+        this.socketBufferCap = socketBufferCap;
+        this.metrics = metrics;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(PFTConstants.STREAM_CONTROL_MILLIS);
+        this.limit = Math.min(this.maxStreams, PFTConstants.INITIAL_STREAMS);
+        this.slowStart = true;
+        this.intervalStart = System.nanoTime();
+        this.intervalRtt = Long.MAX_VALUE;
+        this.baseRtt = Long.MAX_VALUE;
+        LOG.info("Adaptive streams starting at {} of {}", limit, this.maxStreams);
+    }
+
+    /**
+     * Waits until the worker may fetch a piece. Its share is up for grabs while it waits.
+     */
+    synchronized void acquire(int worker, ChunkScheduler scheduler) throws InterruptedException {
+        if (active >= limit) {
+            metrics.workerParked();
+            scheduler.setParked(worker, true);
+            try {
+                while (active >= limit) {
+                    wait();
+                }
+            } finally {
+                scheduler.setParked(worker, false);
+            }
+        }
+        active++;
+    }
+
+    synchronized void release() {
+        active--;
+        notifyAll();
+    }
+
+    /**
+     * Records a completed piece: its bytes and the time the server took to answer its request.
+     */
+    synchronized void sample(long bytes, long rttNanos) {
+        intervalBytes += bytes;
+        if (rttNanos > 0) {
+            intervalRtt = Math.min(intervalRtt, rttNanos);
+            baseRtt = Math.min(baseRtt, rttNanos);
+        }
+        long now = System.nanoTime();
+        if (now - intervalStart >= intervalNanos) {
+            decide(intervalBytes * (double) TimeUnit.SECONDS.toNanos(1) / (now - intervalStart));
+            intervalStart = now;
+            intervalBytes = 0;
+            intervalRtt = Long.MAX_VALUE;
+        }
+    }
+
+    private void decide(double goodput) {
+        int previous = limit;
+        String reason;
+        if (intervalRtt != Long.MAX_VALUE
+                && intervalRtt > baseRtt * RTT_INFLATION + RTT_SLACK_NANOS) {
+            limit = Math.max(1, (int) (limit * PFTConstants.STREAM_DECREASE_FACTOR));
+            slowStart = false;
+            reason = "rtt inflated";
+        } else if (goodput < lastGoodput * DROP) {
+            limit = Math.max(1, (int) (limit * PFTConstants.STREAM_DECREASE_FACTOR));
+            slowStart = false;
+            reason = "goodput dropped";
+        } else if (goodput > lastGoodput * GROWTH) {
+            limit = Math.min(maxStreams, slowStart ? 2 * limit : limit + 1);
+            reason = slowStart ? "goodput grew, slow start" : "goodput grew";
+        } else {
+            slowStart = false;
+            reason = "goodput flat";
+        }
+        LOG.info("Streams {} -> {} ({}): goodput {} bytes/sec, was {}, rtt {} us, base {} us",
+                previous, limit, reason, (long) goodput, (long) lastGoodput,
+                micros(intervalRtt), micros(baseRtt));
+        if (limit != previous) {
+            metrics.streamLimitChanged();
+        }
+        lastGoodput = goodput;
+        sizeSocketBuffers(goodput);
+        notifyAll();
+    }
+
+    /**
+     * Sizes the socket buffers to twice the bandwidth-delay product of a stream, up to the cap,
+     * once it changes by more than a quarter.
+     */
+    private void sizeSocketBuffers(double goodput) {
+        if (socketBufferCap <= 0 || intervalRtt == Long.MAX_VALUE || active == 0) {
+            return;
+        }
+        double bdp = goodput / active * intervalRtt / TimeUnit.SECONDS.toNanos(1);
+        int size = (int) Math.min(socketBufferCap,
+                Math.max(PFTConstants.STREAM_BUFFER_SIZE, 2 * bdp));
+        if (Math.abs(size - socketBufferSize) * 4 <= socketBufferSize) {
+            return;
+        }
+        LOG.info("Socket buffers {} -> {} bytes: {} bytes/sec over {} streams, rtt {} us",
+                socketBufferSize, size, (long) goodput, active, micros(intervalRtt));
+        socketBufferSize = size;
+        for (ConnectionPool pool : pools) {
+            pool.setSocketBufferSize(size);
+        }
+    }
+
+    private static long micros(long nanos) {
+        return nanos == Long.MAX_VALUE ? -1 : TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
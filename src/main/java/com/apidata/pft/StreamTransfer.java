@@ -0,0 +1,497 @@
+package com.apidata.pft;
+
+import com.apidata.pft.message.FileRangeRequestMsg;
+import com.apidata.pft.message.FileRangeResponseMsg;
+import com.apidata.pft.message.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * StreamTransfer fetches the pieces a {@link ChunkScheduler} hands out over many non-blocking
+ * streams driven by a {@link ClientEngine}. Each stream is a connection of its own which asks for
+ * one piece at a time with a FileRangeRequestMsg, like a {@link PFTChunkClient}, and gathers the
+ * payload into buffers of {@link PFTConstants#STREAM_BUFFER_SIZE}. A filled buffer goes to the
+ * disk threads while the next one fills. A stream has at most one write in flight, so it stops
+ * reading when the disk falls behind, and the bytes it reports as fetched are contiguous.
+ * <p>
+ * As with a {@link ChunkWorker}, a failed piece is retried from where it stopped after an
+ * exponential backoff, idle streams hedge stragglers and finished pieces are journaled if any.
+ */
+class StreamTransfer {
+    private static final Logger LOG = LoggerFactory.getLogger(StreamTransfer.class);
+
+    private final ClientEngine engine;
+    private final InetSocketAddress address;
+    private final int fileId;
+    private final FileChannel channel;
+    private final ChunkScheduler scheduler;
+    private final TransferJournal journal;
+    private final ClientMetrics metrics;
+    private final List<Stream> streams;
+    private final AtomicInteger running;
+    private final CompletableFuture<Boolean> result;
+    private volatile boolean failed;
+
+    StreamTransfer(ClientEngine engine, InetSocketAddress address, int fileId,
+            FileChannel channel, ChunkScheduler scheduler, TransferJournal journal,
+            ClientMetrics metrics, int streams) {
+        this.engine = engine;
+        this.address = address;
+        this.fileId = fileId;
+        this.channel = channel;
+        this.scheduler = scheduler;
+        this.journal = journal;
+        this.metrics = metrics;
+        this.streams = new ArrayList<>();
+        for (int i = 0; i < streams; i++) {
+            this.streams.add(new Stream(i, engine.nextLoop()));
+        }
+        this.running = new AtomicInteger(streams);
+        this.result = new CompletableFuture<>();
+    }
+
+    /**
+     * Starts the streams.
+     *
+     * @return completes with true once every piece is on disk, false if one could not be fetched
+     */
+    CompletableFuture<Boolean> start() {
+        for (Stream stream : streams) {
+            stream.loop.execute(stream::connect);
+        }
+        return result;
+    }
+
+    /**
+     * Stops every stream, the transfer has failed.
+     */
+    void cancel() {
+        failed = true;
+        for (Stream stream : streams) {
+            stream.loop.execute(stream::stop);
+        }
+    }
+
+    /**
+     * One connection and the piece it is fetching. Only touched from the thread of its loop,
+     * except for the fields read by the scheduler.
+     */
+    private class Stream implements EventLoop.Handler, ChunkScheduler.Fetch {
+        private final int id;
+        private final EventLoop loop;
+        private final ByteBuffer readBuffer;
+        private final ByteBuffer request;
+        private SocketChannel socket;
+        private SelectionKey key;
+        private ByteBuffer filling;
+        private ChunkScheduler.Range range;
+        private boolean hedge;
+        private boolean fetching;
+        private boolean writing;
+        private boolean finished;
+        private int failures;
+        private long start;
+        private long end;
+        private long expected;
+        private long received;
+        private long queued;
+        private long startMillis;
+        private long startNanos;
+        // bumped whenever an attempt ends, so late disk writes can tell they are stale
+        private volatile int attempt;
+        private volatile long fetched;
+
+        Stream(int id, EventLoop loop) {
+            this.id = id;
+            this.loop = loop;
+            this.readBuffer = BufferPool.getShared().acquire(PFTConstants.BUFFER_SIZE);
+            this.request = BufferPool.getShared().acquire(PFTConstants.BUFFER_SIZE);
+        }
+
+        @Override
+        public long getFetched() {
+            return fetched;
+        }
+
+        /**
+         * Gives up the attempt, if still the current one, and goes on with another piece.
+         */
+        @Override
+        public void cancel() {
+            int cancelled = attempt;
+            loop.execute(() -> {
+                if (cancelled == attempt && fetching && !finished) {
+                    LOG.debug("Stream-{} cancelled on chunk {}", id, range.getChunkId());
+                    close();
+                    endAttempt(false);
+                    connect();
+                }
+            });
+        }
+
+        void connect() {
+            if (finished) {
+                return;
+            }
+            if (failed) {
+                stop();
+                return;
+            }
+            try {
+                socket = SocketChannel.open();
+                socket.configureBlocking(false);
+                readBuffer.clear();
+                if (socket.connect(address)) {
+                    key = loop.register(socket, 0, this);
+                    next();
+                } else {
+                    key = loop.register(socket, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                if (socket.finishConnect()) {
+                    key.interestOps(0);
+                    next();
+                }
+                return;
+            }
+            if (key.isWritable()) {
+                flushRequest();
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+        }
+
+        @Override
+        public void failed(IOException e) {
+            if (finished) {
+                return;
+            }
+            LOG.error("IOException occurred", e);
+            close();
+            if (fetching) {
+                endAttempt(false);
+            }
+            if (++failures > PFTConstants.MAX_PIECE_RETRIES) {
+                LOG.error("Stream-{} failed on chunk {}", id,
+                        range == null ? -1 : range.getChunkId());
+                if (range != null) {
+                    scheduler.abandon(range);
+                }
+                fail();
+                return;
+            }
+            long backoff = PFTConstants.RETRY_BACKOFF_MILLIS << (failures - 1);
+            backoff += ThreadLocalRandom.current().nextLong(backoff);
+            LOG.warn("Stream-{} reconnecting in {} msecs ({}/{})", id, backoff, failures,
+                    PFTConstants.MAX_PIECE_RETRIES);
+            scheduler.retried();
+            metrics.retried();
+            loop.schedule(this::connect, TimeUnit.MILLISECONDS.toNanos(backoff));
+        }
+
+        /**
+         * Starts an attempt at the current piece or the next one, hedges a straggler once out of
+         * pieces, and finishes once no piece is left in flight.
+         */
+        private void next() {
+            while (!finished) {
+                if (failed) {
+                    stop();
+                    return;
+                }
+                if (range == null) {
+                    range = scheduler.next(id);
+                    hedge = false;
+                    if (range == null) {
+                        range = scheduler.pollHedge();
+                        hedge = range != null;
+                        if (hedge) {
+                            metrics.hedged();
+                        }
+                    }
+                    if (range == null) {
+                        if (scheduler.isDrained()) {
+                            finish();
+                        } else {
+                            loop.schedule(this::next, TimeUnit.MILLISECONDS.toNanos(
+                                    ChunkScheduler.HEDGE_POLL_MILLIS));
+                        }
+                        return;
+                    }
+                }
+                long from = scheduler.resumeFrom(range);
+                if (from >= 0 && scheduler.start(range, from, this)) {
+                    try {
+                        request(from);
+                    } catch (IOException e) {
+                        failed(e);
+                    }
+                    return;
+                }
+                range = null;
+            }
+        }
+
+        private void request(long from) throws IOException {
+            start = from;
+            end = range.getOffset() + range.getLength();
+            expected = -1;
+            received = 0;
+            queued = 0;
+            fetched = 0;
+            fetching = true;
+            startMillis = System.currentTimeMillis();
+            startNanos = System.nanoTime();
+            metrics.streamStarted();
+            request.clear();
+            Message.encode(new FileRangeRequestMsg(fileId, from, end - from, range.getChunkId()),
+                    request);
+            request.flip();
+            flushRequest();
+        }
+
+        private void flushRequest() throws IOException {
+            socket.write(request);
+            key.interestOps(request.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void read() throws IOException {
+            if (!fetching) {
+                // nothing was asked for, only a close can be read
+                if (socket.read(readBuffer) < 0) {
+                    throw new IOException("Connection closed by the server");
+                }
+                return;
+            }
+            if (expected < 0) {
+                if (socket.read(readBuffer) < 0) {
+                    throw new IOException("Connection closed by the server");
+                }
+                readBuffer.flip();
+                Message msg = Message.decode(readBuffer, null);
+                if (msg == null) {
+                    readBuffer.compact();
+                    return;
+                }
+                if (!(msg instanceof FileRangeResponseMsg)) {
+                    throw new IOException("Unexpected message " + msg);
+                }
+                expected = ((FileRangeResponseMsg) msg).getLength();
+                if (start + expected > end) {
+                    throw new IOException("Chunk " + range.getChunkId() + " is too long");
+                }
+                // the first payload bytes may have come along with the header
+                if (readBuffer.hasRemaining() && expected > 0) {
+                    ByteBuffer buffer = filling();
+                    ByteBuffer leftover = readBuffer.duplicate();
+                    leftover.limit(leftover.position()
+                            + Math.min(leftover.remaining(), buffer.remaining()));
+                    buffer.put(leftover);
+                    received += leftover.position() - readBuffer.position();
+                }
+                readBuffer.clear();
+            } else {
+                int len = socket.read(filling());
+                if (len < 0) {
+                    throw new IOException("Connection closed by the server");
+                }
+                received += len;
+            }
+            if (filling != null && !filling.hasRemaining()) {
+                if (writing) {
+                    // wait for the disk before reading any further
+                    key.interestOps(0);
+                    return;
+                }
+                write();
+            }
+            if (received == expected && !writing && filling == null) {
+                complete();
+            }
+        }
+
+        /**
+         * Returns the buffer being filled, limited to the rest of the payload.
+         */
+        private ByteBuffer filling() {
+            if (filling == null) {
+                filling = BufferPool.getShared().acquire(PFTConstants.STREAM_BUFFER_SIZE);
+            }
+            filling.limit((int) Math.min(filling.capacity(),
+                    filling.position() + expected - received));
+            return filling;
+        }
+
+        /**
+         * Hands the filled buffer to the disk threads.
+         */
+        private void write() {
+            ByteBuffer buffer = filling;
+            filling = null;
+            buffer.flip();
+            long position = start + queued;
+            queued += buffer.remaining();
+            writing = true;
+            int current = attempt;
+            engine.getDisk().execute(() -> {
+                IOException error = null;
+                long written = 0;
+                try {
+                    while (buffer.hasRemaining()) {
+                        written += channel.write(buffer, position + written);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+                BufferPool.getShared().release(buffer);
+                long bytes = written;
+                IOException cause = error;
+                loop.execute(() -> written(current, bytes, cause));
+            });
+        }
+
+        private void written(int current, long bytes, IOException error) {
+            if (current != attempt || finished) {
+                return;
+            }
+            writing = false;
+            if (error != null) {
+                LOG.error("IOException occurred", error);
+                fail();
+                return;
+            }
+            fetched += bytes;
+            if (filling != null && !filling.hasRemaining()) {
+                write();
+            }
+            if (received < expected) {
+                key.interestOps(SelectionKey.OP_READ);
+            } else if (!writing && filling == null) {
+                complete();
+            }
+        }
+
+        /**
+         * The whole payload is on disk.
+         */
+        private void complete() {
+            key.interestOps(0);
+            boolean status = start + received == end;
+            ChunkScheduler.Range done = range;
+            if (endAttempt(status)) {
+                failures = 0;
+                if (journal != null) {
+                    // the journal syncs the file, keep it off the loop
+                    engine.getDisk().execute(() -> {
+                        try {
+                            journal.complete(done.getOffset(), done.getLength());
+                            loop.execute(this::next);
+                        } catch (IOException e) {
+                            LOG.error("IOException occurred", e);
+                            loop.execute(StreamTransfer.this::fail);
+                        }
+                    });
+                    return;
+                }
+            } else if (range != null) {
+                // a short payload, the server file has shrunk
+                failed(new IOException("Chunk " + range.getChunkId() + " is short"));
+                return;
+            }
+            next();
+        }
+
+        /**
+         * Reports the end of the attempt to the scheduler and the metrics.
+         *
+         * @return true if the attempt completed the piece
+         */
+        private boolean endAttempt(boolean status) {
+            fetching = false;
+            attempt++;
+            metrics.streamFinished(id, new Result(range.getChunkId(),
+                    System.currentTimeMillis() - startMillis, status, fetched,
+                    System.nanoTime() - startNanos, 0));
+            boolean completed = scheduler.finish(id, range, this, status);
+            if (completed || scheduler.isDone(range) || hedge) {
+                range = null;
+            }
+            return completed;
+        }
+
+        void stop() {
+            if (finished) {
+                return;
+            }
+            close();
+            if (fetching) {
+                endAttempt(false);
+            }
+            finish();
+        }
+
+        private void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            close();
+            BufferPool.getShared().release(readBuffer);
+            BufferPool.getShared().release(request);
+            if (running.decrementAndGet() == 0) {
+                result.complete(!failed);
+            }
+        }
+
+        /**
+         * Closes the connection and drops what was read but not handed to the disk.
+         */
+        private void close() {
+            attempt++;
+            writing = false;
+            if (filling != null) {
+                BufferPool.getShared().release(filling);
+                filling = null;
+            }
+            if (key != null) {
+                key.cancel();
+                key = null;
+            }
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    LOG.error("IOException occurred", e);
+                }
+                socket = null;
+            }
+        }
+    }
+
+    private void fail() {
+        if (!failed) {
+            cancel();
+        }
+    }
+}
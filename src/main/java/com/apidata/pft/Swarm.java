@@ -0,0 +1,100 @@
+package com.apidata.pft;
+
+import com.apidata.pft.exception.SocketCloseException;
+import com.apidata.pft.message.Message;
+import com.apidata.pft.message.PeerRequestMsg;
+import com.apidata.pft.message.PeerResponseMsg;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Swarm is the part of a client in swarm mode that makes it a peer: an embedded
+ * {@link PFTServer} serving the {@link PeerShare} on peerPort, and an announcer telling the origin
+ * server every {@link PFTConstants#PEER_ANNOUNCE_MILLIS} which ranges it holds. The server thread
+ * is not a daemon, so a client run from the command line goes on seeding once its download is
+ * over, until it is stopped.
+ */
+class Swarm {
+    private static final Logger LOG = LoggerFactory.getLogger(Swarm.class);
+
+    private final ConnectionPool connectionPool;
+    private final int fileId;
+    private final int peerPort;
+    private final PeerShare share;
+    private ScheduledExecutorService announcer;
+    private Thread serverThread;
+
+    Swarm(String originHost, int originPort, int fileId, int peerPort, PeerShare share) {
+        this.connectionPool = new ConnectionPool(originHost, originPort, 1);
+        this.fileId = fileId;
+        this.peerPort = peerPort;
+        this.share = share;
+    }
+
+    void start() {
+        PFTServer server = new PFTServer("0.0.0.0", peerPort, 1);
+        server.setShare(share);
+        serverThread = new Thread(server::doWork, "pft-peer-" + peerPort);
+        serverThread.start();
+        announcer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pft-announcer-" + peerPort);
+            thread.setDaemon(true);
+            return thread;
+        });
+        announcer.scheduleWithFixedDelay(this::announce, PFTConstants.PEER_ANNOUNCE_MILLIS,
+                PFTConstants.PEER_ANNOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Announces the ranges held to the origin and returns the other peers of the file, or null if
+     * the origin could not be reached.
+     */
+    synchronized PeerResponseMsg announce() {
+        List<long[]> held = share.getRanges(PeerRequestMsg.MAX_RANGES);
+        long[] ranges = new long[2 * held.size()];
+        for (int i = 0; i < held.size(); i++) {
+            ranges[2 * i] = held.get(i)[0];
+            ranges[2 * i + 1] = held.get(i)[1];
+        }
+        PeerRequestMsg request =
+                new PeerRequestMsg(fileId, share.getLastModified(), peerPort, ranges,
+                        held.size());
+        ConnectionPool.PooledConnection connection = null;
+        try {
+            connection = connectionPool.borrow();
+            Message.sendMessage(connection.getChannel(), request);
+            PeerResponseMsg response = (PeerResponseMsg) Message
+                    .nextMsgFromSocket(connection.getChannel(), connection.getBuffer());
+            connectionPool.release(connection);
+            return response;
+        } catch (IOException | SocketCloseException e) {
+            LOG.warn("Announce to {} failed: {}", connectionPool.getHostAddress(), e.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (connection != null) {
+            connectionPool.invalidate(connection);
+        }
+        return null;
+    }
+
+    /**
+     * Stops serving the file and announcing it, the origin forgets this peer after
+     * {@link PFTConstants#PEER_TTL_MILLIS}.
+     */
+    void stop() {
+        if (announcer != null) {
+            announcer.shutdownNow();
+        }
+        if (serverThread != null) {
+            serverThread.interrupt();
+        }
+        connectionPool.close();
+    }
+}
@@ -0,0 +1,90 @@
+package com.apidata.pft;
+
+import com.apidata.pft.message.PeerRequestMsg;
+import com.apidata.pft.message.PeerResponseMsg;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SwarmTracker keeps, per file, the clients in swarm mode that serve pieces of it and which
+ * ranges each one holds, as they announced them with a {@link PeerRequestMsg}. Every announce is
+ * answered with a random few of the other peers of the same version of the file, so the load
+ * spreads over the swarm. A peer that stopped announcing for {@link PFTConstants#PEER_TTL_MILLIS}
+ * is forgotten. Only the lists are kept here, the pieces never go through the tracker.
+ */
+class SwarmTracker {
+    private final Map<Integer, Map<InetSocketAddress, Peer>> files;
+
+    SwarmTracker() {
+        this.files = new HashMap<>();
+    }
+
+    /**
+     * Records the ranges announced by the peer serving on address, if any, and returns the other
+     * peers of the file.
+     */
+    synchronized PeerResponseMsg exchange(PeerRequestMsg request, InetSocketAddress address) {
+        long now = System.currentTimeMillis();
+        Map<InetSocketAddress, Peer> peers =
+                files.computeIfAbsent(request.getFileId(), id -> new HashMap<>());
+        if (address != null) {
+            long[] ranges = new long[2 * request.getCount()];
+            for (int i = 0; i < request.getCount(); i++) {
+                ranges[2 * i] = request.getOffset(i);
+                ranges[2 * i + 1] = request.getLength(i);
+            }
+            peers.put(address, new Peer(address, request.getLastModified(), ranges, now));
+        }
+        List<Peer> others = new ArrayList<>();
+        Iterator<Peer> it = peers.values().iterator();
+        while (it.hasNext()) {
+            Peer peer = it.next();
+            if (now - peer.seenAt > PFTConstants.PEER_TTL_MILLIS) {
+                it.remove();
+            } else if (!peer.address.equals(address)
+                    && peer.lastModified == request.getLastModified() && peer.ranges.length > 0) {
+                others.add(peer);
+            }
+        }
+        Collections.shuffle(others);
+        int count = Math.min(others.size(), PeerResponseMsg.MAX_PEERS);
+        String[] hosts = new String[count];
+        int[] ports = new int[count];
+        long[][] ranges = new long[count][];
+        for (int i = 0; i < count; i++) {
+            Peer peer = others.get(i);
+            hosts[i] = peer.address.getAddress().getHostAddress();
+            ports[i] = peer.address.getPort();
+            ranges[i] = peer.ranges;
+        }
+        return new PeerResponseMsg(hosts, ports, ranges, count);
+    }
+
+    synchronized int getPeers() {
+        int count = 0;
+        for (Map<InetSocketAddress, Peer> peers : files.values()) {
+            count += peers.size();
+        }
+        return count;
+    }
+
+    private static class Peer {
+        private final InetSocketAddress address;
+        private final long lastModified;
+        private final long[] ranges;
+        private final long seenAt;
+
+        Peer(InetSocketAddress address, long lastModified, long[] ranges, long seenAt) {
+            this.address = address;
+            this.lastModified = lastModified;
+            this.ranges = ranges;
+            this.seenAt = seenAt;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.apidata.pft;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TokenBucket lets rate bytes per second through on average, with bursts of up to capacity bytes.
+ * Tokens may be handed back once a grant is not used up, or go below zero when more was sent than
+ * granted, in which case the next grants wait for the debt to be paid.
+ */
+class TokenBucket {
+    private final long rate;
+    private final long capacity;
+    private double tokens;
+    private long lastNanos;
+
+    TokenBucket(long rate, long capacity) {
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes up to max tokens, as many as are available, or none if fewer than min are.
+     */
+    synchronized long take(long min, long max) {
+        refill();
+        if (tokens < min) {
+            return 0;
+        }
+        long granted = (long) Math.min(max, Math.max(0, tokens));
+        tokens -= granted;
+        return granted;
+    }
+
+    /**
+     * Hands back tokens that were not used, or takes the ones used above a grant if negative.
+     */
+    synchronized void give(long count) {
+        refill();
+        tokens = Math.min(capacity, tokens + count);
+    }
+
+    /**
+     * Returns how long until count tokens are available.
+     */
+    synchronized long nanosUntil(long count) {
+        refill();
+        if (tokens >= count) {
+            return 0;
+        }
+        return (long) Math.ceil((count - tokens) * TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity,
+                tokens + (now - lastNanos) * rate / (double) TimeUnit.SECONDS.toNanos(1));
+        lastNanos = now;
+    }
+}
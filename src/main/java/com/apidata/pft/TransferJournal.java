@@ -0,0 +1,167 @@
+package com.apidata.pft;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TransferJournal records the ranges of a download that are written and synced to disk, so an
+ * interrupted transfer can be resumed by fetching only what is missing. It is an append-only file
+ * next to the target: a header with the size and mtime of the server file, followed by one
+ * (offset, length) record per completed piece. A journal whose header does not match the file
+ * the server reports now is discarded.
+ * <p>
+ * Pieces completed while a sync is in progress are recorded together by the next one, so the
+ * workers share one fsync of the target and the journal instead of one each.
+ */
+class TransferJournal {
+    private static final Logger LOG = LoggerFactory.getLogger(TransferJournal.class);
+    private static final int HEADER_SIZE = 24;
+    private static final int RECORD_SIZE = 16;
+    static final String SUFFIX = ".pft-journal";
+
+    private final File file;
+    private final FileChannel journal;
+    private final FileChannel target;
+    private final RangeSet completed;
+    private final Object syncLock;
+    private List<long[]> pending;
+    private long queued;
+    private long synced;
+
+    private TransferJournal(File file, FileChannel journal, FileChannel target,
+            RangeSet completed) {
+        this.file = file;
+        this.journal = journal;
+        this.target = target;
+        this.completed = completed;
+        this.syncLock = new Object();
+        this.pending = new ArrayList<>();
+    }
+
+    /**
+     * Opens the journal of the target file, replaying it if it belongs to the same server file,
+     * or starting a new one otherwise.
+     */
+    static TransferJournal open(String clientFilePath, FileChannel target, long fileSize,
+            long lastModified) throws IOException {
+        File file = new File(clientFilePath + SUFFIX);
+        FileChannel journal = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        RangeSet completed = new RangeSet();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        journal.read(header, 0);
+        header.flip();
+        if (header.remaining() == HEADER_SIZE && header.getLong() == PFTConstants.JOURNAL_MAGIC
+                && header.getLong() == fileSize && header.getLong() == lastModified) {
+            ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * 1024);
+            long position = HEADER_SIZE;
+            while (journal.read(records, position) >= RECORD_SIZE) {
+                records.flip();
+                while (records.remaining() >= RECORD_SIZE) {
+                    completed.add(records.getLong(), records.getLong());
+                    position += RECORD_SIZE;
+                }
+                records.clear();
+            }
+            // drop a record torn by a crash
+            journal.truncate(position);
+            LOG.info("Resuming from journal {}, {} of {} bytes already done", file,
+                    completed.getCoveredBytes(), fileSize);
+        } else {
+            if (journal.size() > 0) {
+                LOG.info("Journal {} belongs to another version of the file, starting over",
+                        file);
+            }
+            journal.truncate(0);
+            header.clear();
+            header.putLong(PFTConstants.JOURNAL_MAGIC).putLong(fileSize).putLong(lastModified);
+            header.flip();
+            journal.write(header, 0);
+            journal.force(true);
+        }
+        journal.position(journal.size());
+        return new TransferJournal(file, journal, target, completed);
+    }
+
+    /**
+     * Returns the [offset, length] pairs of the file still to be fetched.
+     */
+    List<long[]> missing(long fileSize) {
+        return completed.missing(fileSize);
+    }
+
+    /**
+     * Returns the [offset, length] pairs of the file already done.
+     */
+    List<long[]> completed() {
+        return completed.ranges();
+    }
+
+    boolean isCompleted(long offset, long length) {
+        return completed.contains(offset, length);
+    }
+
+    long getCompletedBytes() {
+        return completed.getCoveredBytes();
+    }
+
+    /**
+     * Records a piece as done once its bytes are synced to the target file. Returns once a sync
+     * that started after the call covered the piece, either its own or that of another worker.
+     */
+    void complete(long offset, long length) throws IOException {
+        long ticket;
+        synchronized (this) {
+            pending.add(new long[] {offset, length});
+            ticket = ++queued;
+        }
+        synchronized (syncLock) {
+            if (synced >= ticket) {
+                return;
+            }
+            List<long[]> batch;
+            long upTo;
+            synchronized (this) {
+                batch = pending;
+                pending = new ArrayList<>();
+                upTo = queued;
+            }
+            target.force(false);
+            ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * batch.size());
+            for (long[] range : batch) {
+                records.putLong(range[0]).putLong(range[1]);
+            }
+            records.flip();
+            while (records.hasRemaining()) {
+                journal.write(records);
+            }
+            journal.force(false);
+            for (long[] range : batch) {
+                completed.add(range[0], range[1]);
+            }
+            synced = upTo;
+        }
+    }
+
+    void close() throws IOException {
+        journal.close();
+    }
+
+    /**
+     * Removes the journal once the transfer is complete.
+     */
+    void delete() throws IOException {
+        journal.close();
+        if (!file.delete()) {
+            LOG.warn("Unable to delete journal {}", file);
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package com.apidata.pft;
+
+import com.apidata.pft.exception.SocketCloseException;
+import com.apidata.pft.message.FileBatchRequestMsg;
+import com.apidata.pft.message.FileBatchResponseMsg;
+import com.apidata.pft.message.ManifestRequestMsg;
+import com.apidata.pft.message.ManifestResponseMsg;
+import com.apidata.pft.message.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TreeTransfer downloads every regular file under a server directory into a client directory.
+ * The manifest of the tree is paged in first, pipelined over one connection. Files of at least
+ * {@link PFTConstants#SMALL_FILE_SIZE} are split into pieces fetched with a
+ * {@link PFTChunkClient} each, smaller ones are packed into batches of up to
+ * {@link PFTConstants#MAX_BATCH_BYTES} that the server streams back to back after a single
+ * request. Pieces and batches go into one queue, largest first, drained by one worker per pooled
+ * connection, so thousands of small files cost a round trip per batch rather than per file.
+ * Every piece and batch is recorded into the {@link ClientMetrics} under its worker.
+ */
+class TreeTransfer {
+    private static final Logger LOG = LoggerFactory.getLogger(TreeTransfer.class);
+    // manifest pages kept in flight
+    private static final int WINDOW = 8;
+
+    private final ConnectionPool connectionPool;
+    private final String serverDirPath;
+    private final Path clientDir;
+    private final long maxPieceSize;
+    private final AtomicInteger nextChunkId;
+    private final AtomicInteger retries;
+    private final ClientMetrics metrics;
+
+    TreeTransfer(ConnectionPool connectionPool, String serverDirPath, String clientDirPath,
+            long maxPieceSize, ClientMetrics metrics) {
+        this.connectionPool = connectionPool;
+        this.serverDirPath = serverDirPath;
+        this.clientDir = Paths.get(clientDirPath).toAbsolutePath().normalize();
+        this.maxPieceSize = Math.max(PFTConstants.SMALL_FILE_SIZE, maxPieceSize);
+        this.nextChunkId = new AtomicInteger();
+        this.retries = new AtomicInteger();
+        this.metrics = metrics;
+    }
+
+    /**
+     * Downloads the tree.
+     *
+     * @return true if every file of the manifest was copied
+     */
+    boolean transfer() {
+        long startTime = System.currentTimeMillis();
+        List<TreeFile> files = null;
+        try {
+            files = fetchManifest();
+            if (files == null) {
+                return false;
+            }
+            List<Job> jobs = plan(files);
+            long bytes = files.stream().mapToLong(file -> file.size).sum();
+            LOG.info("Manifest of {} lists {} files, {} bytes, fetched as {} jobs",
+                    serverDirPath, files.size(), bytes, jobs.size());
+            if (!run(jobs)) {
+                return false;
+            }
+            LOG.info("Completed tree of {} files in {} msecs with {} retries", files.size(),
+                    System.currentTimeMillis() - startTime, retries.get());
+            return true;
+        } catch (IOException e) {
+            LOG.error("IOException occurred", e);
+        } catch (SocketCloseException e) {
+            LOG.error("SocketCloseException occurred", e);
+        } catch (InterruptedException e) {
+            LOG.error("InterruptedException occurred", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            if (files != null) {
+                for (TreeFile file : files) {
+                    file.close();
+                }
+            }
+        }
+        return false;
+    }
+
+    private List<TreeFile> fetchManifest()
+            throws IOException, InterruptedException, SocketCloseException {
+        ConnectionPool.PooledConnection connection = connectionPool.borrow();
+        boolean status = false;
+        try {
+            SocketChannel client = connection.getChannel();
+            ByteBuffer buffer = connection.getBuffer();
+            Message.sendMessage(client, new ManifestRequestMsg(serverDirPath, 0, 0));
+            ManifestResponseMsg response =
+                    (ManifestResponseMsg) Message.nextMsgFromSocket(client, buffer);
+            status = true;
+            if (response.getPages() < 0) {
+                LOG.error("Directory {} does not exist on the server", serverDirPath);
+                return null;
+            }
+            status = false;
+            List<TreeFile> files = new ArrayList<>();
+            add(files, response);
+            int manifestId = response.getManifestId();
+            int pages = response.getPages();
+            int requested = 1;
+            int received = 1;
+            while (received < pages) {
+                while (requested < pages && requested - received < WINDOW) {
+                    Message.sendMessage(client,
+                            new ManifestRequestMsg(serverDirPath, manifestId, requested++));
+                }
+                response = (ManifestResponseMsg) Message.nextMsgFromSocket(client, buffer);
+                if (response.getPages() != pages || response.getPage() != received) {
+                    throw new IOException("Unexpected manifest page " + response);
+                }
+                add(files, response);
+                received++;
+            }
+            status = true;
+            return files;
+        } finally {
+            if (status) {
+                connectionPool.release(connection);
+            } else {
+                connectionPool.invalidate(connection);
+            }
+        }
+    }
+
+    private void add(List<TreeFile> files, ManifestResponseMsg response) throws IOException {
+        for (int i = 0; i < response.getCount(); i++) {
+            // never write outside the client directory, whatever the server sends
+            Path target = clientDir.resolve(response.getPath(i)).normalize();
+            if (!target.startsWith(clientDir) || target.equals(clientDir)) {
+                throw new IOException("Unsafe path in manifest " + response.getPath(i));
+            }
+            files.add(new TreeFile(target, response.getSize(i), response.getLastModified(i),
+                    response.getFileId(i)));
+        }
+    }
+
+    /**
+     * Splits large files into pieces and packs small ones into batches, largest jobs first so
+     * the tail of the transfer is made of small ones.
+     */
+    private List<Job> plan(List<TreeFile> files) {
+        List<Job> jobs = new ArrayList<>();
+        List<TreeFile> batch = new ArrayList<>();
+        long batchBytes = 0;
+        for (TreeFile file : files) {
+            if (file.size >= PFTConstants.SMALL_FILE_SIZE) {
+                int pieces = (int) ((file.size + maxPieceSize - 1) / maxPieceSize);
+                file.pending.set(pieces);
+                for (int i = 0; i < pieces; i++) {
+                    long offset = i * maxPieceSize;
+                    jobs.add(new Job(file, offset, Math.min(maxPieceSize, file.size - offset)));
+                }
+                continue;
+            }
+            if (batch.size() == FileBatchRequestMsg.MAX_FILES
+                    || !batch.isEmpty() && batchBytes + file.size > PFTConstants.MAX_BATCH_BYTES) {
+                jobs.add(new Job(batch, batchBytes));
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+            batch.add(file);
+            batchBytes += file.size;
+        }
+        if (!batch.isEmpty()) {
+            jobs.add(new Job(batch, batchBytes));
+        }
+        jobs.sort(Comparator.comparingLong((Job job) -> job.length).reversed());
+        return jobs;
+    }
+
+    private boolean run(List<Job> jobs) throws InterruptedException {
+        Queue<Job> queue = new ConcurrentLinkedQueue<>(jobs);
+        AtomicLong queuedBytes = new AtomicLong(jobs.stream().mapToLong(job -> job.length).sum());
+        metrics.setQueuedBytes(queuedBytes::get);
+        AtomicBoolean failed = new AtomicBoolean();
+        int workers = Math.max(1, Math.min(connectionPool.getSize(), jobs.size()));
+        ExecutorService executorService = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                int stream = i;
+                futures.add(executorService.submit(() -> {
+                    Job job;
+                    while (!failed.get() && (job = queue.poll()) != null) {
+                        queuedBytes.addAndGet(-job.length);
+                        if (!fetch(job, stream)) {
+                            failed.set(true);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            LOG.error("Exception occurred", e.getCause());
+            return false;
+        } finally {
+            executorService.shutdownNow();
+        }
+        return !failed.get();
+    }
+
+    /**
+     * Fetches the job, retrying after an exponential backoff like {@link ChunkWorker}.
+     */
+    private boolean fetch(Job job, int stream) throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            if (job.batch != null ? fetchBatch(job, stream) : fetchPiece(job, stream)) {
+                return true;
+            }
+            if (attempt == PFTConstants.MAX_PIECE_RETRIES) {
+                LOG.error("Giving up on {}", job);
+                return false;
+            }
+            long backoff = PFTConstants.RETRY_BACKOFF_MILLIS << attempt;
+            backoff += ThreadLocalRandom.current().nextLong(backoff);
+            LOG.warn("Retrying {} in {} msecs ({}/{})", job, backoff, attempt + 1,
+                    PFTConstants.MAX_PIECE_RETRIES);
+            retries.incrementAndGet();
+            metrics.retried();
+            Thread.sleep(backoff);
+        }
+    }
+
+    /**
+     * Fetches what is left of a piece of a large file.
+     */
+    private boolean fetchPiece(Job job, int stream) {
+        TreeFile file = job.file;
+        PFTChunkClient pftChunkClient;
+        try {
+            long start = job.offset + job.fetched;
+            pftChunkClient = new PFTChunkClient(nextChunkId.incrementAndGet(), connectionPool,
+                    file.fileId, job.length - job.fetched, start, file.open());
+        } catch (IOException e) {
+            LOG.error("IOException occurred", e);
+            return false;
+        }
+        metrics.streamStarted();
+        Result result = pftChunkClient.call();
+        metrics.streamFinished(stream, result);
+        job.fetched += pftChunkClient.getFetched();
+        if (!result.isStatus()) {
+            return false;
+        }
+        if (file.pending.decrementAndGet() == 0) {
+            file.close();
+        }
+        return true;
+    }
+
+    /**
+     * Asks for all files of the batch at once and writes each as its bytes come in.
+     */
+    private boolean fetchBatch(Job job, int stream) throws InterruptedException {
+        int count = job.batch.size();
+        int[] fileIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            fileIds[i] = job.batch.get(i).fileId;
+        }
+        int chunkId = nextChunkId.incrementAndGet();
+        ConnectionPool.PooledConnection connection = null;
+        ByteBuffer writeBuffer = null;
+        boolean status = false;
+        long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        long received = 0;
+        metrics.streamStarted();
+        try {
+            connection = connectionPool.borrow();
+            SocketChannel client = connection.getChannel();
+            ByteBuffer buffer = connection.getBuffer();
+            Message.sendMessage(client, new FileBatchRequestMsg(chunkId, fileIds, count));
+            FileBatchResponseMsg response =
+                    (FileBatchResponseMsg) Message.nextMsgFromSocket(client, buffer);
+            if (response.getChunkId() != chunkId || response.getCount() != count) {
+                throw new IOException("Unexpected batch response " + response);
+            }
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                total += Math.max(0, response.getLength(i));
+            }
+            // the payload may start in the read buffer, and nothing follows it on the socket
+            writeBuffer = BufferPool.getShared().acquire(PFTConstants.WRITE_BUFFER_SIZE);
+            ByteBuffer leftover = buffer.duplicate();
+            leftover.limit(leftover.position() + (int) Math.min(leftover.remaining(), total));
+            writeBuffer.put(leftover);
+            buffer.position(leftover.position());
+            writeBuffer.flip();
+            received = writeBuffer.remaining();
+            for (int i = 0; i < count; i++) {
+                TreeFile file = job.batch.get(i);
+                if (response.getLength(i) < 0) {
+                    LOG.warn("File {} is gone from the server", file.target);
+                    continue;
+                }
+                received += receive(client, writeBuffer, file, response.getLength(i),
+                        total - received);
+            }
+            status = true;
+        } catch (IOException e) {
+            LOG.error("IOException occurred", e);
+        } catch (SocketCloseException e) {
+            LOG.error("SocketCloseException occurred", e);
+        } finally {
+            if (writeBuffer != null) {
+                BufferPool.getShared().release(writeBuffer);
+            }
+            if (connection != null) {
+                if (status) {
+                    connectionPool.release(connection);
+                } else {
+                    connectionPool.invalidate(connection);
+                }
+            }
+            metrics.streamFinished(stream, new Result(chunkId,
+                    System.currentTimeMillis() - startTime, status, received,
+                    System.nanoTime() - startNanos, 0));
+        }
+        return status;
+    }
+
+    /**
+     * Writes the next length bytes of the batch to the file, reading the socket as the buffer
+     * runs dry but never past the end of the batch.
+     *
+     * @return the number of bytes read from the socket
+     */
+    private long receive(SocketChannel client, ByteBuffer buffer, TreeFile file, long length,
+            long unread) throws IOException, SocketCloseException {
+        Files.createDirectories(file.target.getParent());
+        long read = 0;
+        try (FileChannel channel = FileChannel.open(file.target, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            while (position < length) {
+                if (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), unread - read));
+                    int len = client.read(buffer);
+                    if (len < 0) {
+                        throw new SocketCloseException("Socket closed while reading");
+                    }
+                    read += len;
+                    buffer.flip();
+                }
+                ByteBuffer slice = buffer.duplicate();
+                slice.limit(slice.position() + (int) Math.min(slice.remaining(),
+                        length - position));
+                while (slice.hasRemaining()) {
+                    position += channel.write(slice, position);
+                }
+                buffer.position(slice.position());
+            }
+        }
+        file.target.toFile().setLastModified(file.lastModified);
+        return read;
+    }
+
+    /**
+     * A file of the manifest. Large files are opened by the first of their pieces and closed by
+     * the last.
+     */
+    private static class TreeFile {
+        private final Path target;
+        private final long size;
+        private final long lastModified;
+        private final int fileId;
+        private final AtomicInteger pending = new AtomicInteger();
+        private RandomAccessFile randomAccessFile;
+        private boolean closed;
+
+        TreeFile(Path target, long size, long lastModified, int fileId) {
+            this.target = target;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileId = fileId;
+        }
+
+        synchronized FileChannel open() throws IOException {
+            if (randomAccessFile == null) {
+                Files.createDirectories(target.getParent());
+                randomAccessFile = new RandomAccessFile(target.toFile(), "rw");
+                if (randomAccessFile.length() != size) {
+                    randomAccessFile.setLength(size);
+                }
+            }
+            return randomAccessFile.getChannel();
+        }
+
+        synchronized void close() {
+            if (randomAccessFile == null || closed) {
+                return;
+            }
+            closed = true;
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                LOG.error("IOException occurred", e);
+            }
+            if (pending.get() == 0) {
+                target.toFile().setLastModified(lastModified);
+            }
+        }
+    }
+
+    /**
+     * Either a piece of a large file or a batch of small files.
+     */
+    private static class Job {
+        private final TreeFile file;
+        private final long offset;
+        private final long length;
+        private final List<TreeFile> batch;
+        private long fetched;
+
+        Job(TreeFile file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.batch = null;
+        }
+
+        Job(List<TreeFile> batch, long length) {
+            this.file = null;
+            this.offset = 0;
+            this.length = length;
+            this.batch = batch;
+        }
+
+        @Override
+        public String toString() {
+            return batch != null ?
+                    "batch of " + batch.size() + " files" :
+                    "piece [" + offset + ", " + (offset + length) + ") of " + file.target;
+        }
+    }
+}
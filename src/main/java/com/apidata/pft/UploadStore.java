@@ -0,0 +1,223 @@
+package com.apidata.pft;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * UploadStore keeps the uploads clients push to the server. Uploads are only taken under the
+ * upload directory of the server, and only if the file system there has room for them on top of
+ * the uploads already going. Each one is written to a preallocated file of its own next to its
+ * target, suffixed {@link #SUFFIX} and the upload id, by positional writes from any number of
+ * connections, and records the ranges confirmed to the client. On commit, which runs off the
+ * reactor threads, the file is synced and moved over the target in one step if the ranges cover
+ * all of it, and dropped otherwise, so the target never shows a partial upload. Two uploads to
+ * the same target do not share a file, the last one committed wins. An upload nothing was written
+ * to for {@link PFTConstants#UPLOAD_IDLE_MILLIS}, its client gone, is dropped.
+ */
+class UploadStore {
+    private static final Logger LOG = LoggerFactory.getLogger(UploadStore.class);
+    static final String SUFFIX = ".pft-upload";
+
+    private final Path uploadDir;
+    private final ScheduledExecutorService executor;
+    private final ConcurrentHashMap<Integer, Upload> uploads;
+    private final AtomicInteger nextId;
+
+    /**
+     * @param uploadDir the directory uploads are taken under, null to refuse them all
+     */
+    UploadStore(String uploadDir) {
+        this.uploadDir = uploadDir == null ? null : Paths.get(uploadDir).toAbsolutePath()
+                .normalize();
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pft-upload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.uploads = new ConcurrentHashMap<>();
+        this.nextId = new AtomicInteger();
+        executor.scheduleWithFixedDelay(this::expire, PFTConstants.UPLOAD_IDLE_MILLIS,
+                PFTConstants.UPLOAD_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts an upload of fileSize bytes to filePath.
+     *
+     * @return the upload, or null if filePath is not under the upload directory or there is no
+     * room for fileSize bytes there
+     */
+    synchronized Upload open(String filePath, long fileSize) throws IOException {
+        Path target = Paths.get(filePath).toAbsolutePath().normalize();
+        if (uploadDir == null || !target.startsWith(uploadDir) || target.equals(uploadDir)
+                || fileSize < 0) {
+            return null;
+        }
+        Files.createDirectories(target.getParent());
+        long reserved = 0;
+        for (Upload upload : uploads.values()) {
+            reserved += upload.size;
+        }
+        long usable = Files.getFileStore(target.getParent()).getUsableSpace();
+        if (fileSize > usable - reserved) {
+            LOG.warn("Upload of {} bytes to {} refused, {} bytes usable and {} taken by uploads",
+                    fileSize, target, usable, reserved);
+            return null;
+        }
+        int id = nextId.incrementAndGet();
+        Path temp = Paths.get(target + SUFFIX + "." + id);
+        RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw");
+        try {
+            file.setLength(fileSize);
+        } catch (IOException e) {
+            file.close();
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Upload upload = new Upload(id, target, temp, file.getChannel(), fileSize);
+        uploads.put(upload.id, upload);
+        return upload;
+    }
+
+    /**
+     * @return the upload with the id, or null if it is unknown or over
+     */
+    Upload get(int uploadId) {
+        return uploads.get(uploadId);
+    }
+
+    /**
+     * Ends the upload: puts the file in place if every range of it was confirmed, drops it
+     * otherwise.
+     *
+     * @return a future of true if the file is in place
+     */
+    CompletableFuture<Boolean> commit(int uploadId) {
+        Upload upload = uploads.remove(uploadId);
+        if (upload == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return CompletableFuture.supplyAsync(upload::commit, executor);
+    }
+
+    /**
+     * Drops the uploads nothing was written to for {@link PFTConstants#UPLOAD_IDLE_MILLIS}.
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Upload upload : uploads.values()) {
+            if (now - upload.lastActive > PFTConstants.UPLOAD_IDLE_MILLIS
+                    && uploads.remove(upload.id, upload)) {
+                LOG.warn("Upload to {} idle for {} ms, dropping it", upload.target,
+                        now - upload.lastActive);
+                upload.abort();
+            }
+        }
+    }
+
+    /**
+     * Drops the uploads not committed yet.
+     */
+    void close() {
+        executor.shutdown();
+        for (Upload upload : uploads.values()) {
+            upload.abort();
+        }
+        uploads.clear();
+    }
+
+    static class Upload {
+        private final int id;
+        private final Path target;
+        private final Path temp;
+        private final FileChannel channel;
+        private final long size;
+        private final RangeSet received;
+        private volatile long lastActive;
+
+        Upload(int id, Path target, Path temp, FileChannel channel, long size) {
+            this.id = id;
+            this.target = target;
+            this.temp = temp;
+            this.channel = channel;
+            this.size = size;
+            this.received = new RangeSet();
+            this.lastActive = System.currentTimeMillis();
+        }
+
+        int getId() {
+            return id;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * Writes the bytes of the buffer at position.
+         */
+        void write(ByteBuffer buffer, long position) throws IOException {
+            lastActive = System.currentTimeMillis();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        /**
+         * Records a range as written, to be confirmed to the client.
+         */
+        void received(long offset, long length) {
+            lastActive = System.currentTimeMillis();
+            received.add(offset, length);
+        }
+
+        private boolean commit() {
+            if (!received.contains(0, size) && size > 0) {
+                LOG.warn("Upload to {} is missing {} bytes, dropping it", target,
+                        size - received.getCoveredBytes());
+                abort();
+                return false;
+            }
+            try {
+                channel.force(true);
+                channel.close();
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                LOG.info("Upload of {} bytes to {} committed", size, target);
+                return true;
+            } catch (IOException e) {
+                LOG.error("IOException occurred", e);
+                abort();
+                return false;
+            }
+        }
+
+        private void abort() {
+            try {
+                channel.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                LOG.error("IOException occurred", e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return id + "," + target + "," + size;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.apidata.pft;
+
+import com.apidata.pft.exception.SocketCloseException;
+import com.apidata.pft.message.Message;
+import com.apidata.pft.message.UploadAckMsg;
+import com.apidata.pft.message.UploadChunkMsg;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * UploadWorker keeps asking the {@link ChunkScheduler} for pieces of the local file and pushes
+ * each of them to the server over a pooled connection, with an {@link UploadChunkMsg} followed
+ * by the bytes sent straight from the file, until the scheduler runs dry. A piece is done once
+ * the server confirms it with an {@link UploadAckMsg}; a failed piece is pushed again whole,
+ * after an exponential backoff. Pieces are not hedged, the server writes every copy to the same
+ * place anyway.
+ */
+class UploadWorker implements Callable<Result> {
+    private static final Logger LOG = LoggerFactory.getLogger(UploadWorker.class);
+
+    private final int workerId;
+    private final ChunkScheduler scheduler;
+    private final ConnectionPool connectionPool;
+    private final int uploadId;
+    private final FileChannel channel;
+    private final ClientMetrics metrics;
+    private int pieces;
+    private long bytes;
+    private long nanos;
+
+    UploadWorker(int workerId, ChunkScheduler scheduler, ConnectionPool connectionPool,
+            int uploadId, FileChannel channel, ClientMetrics metrics) {
+        this.workerId = workerId;
+        this.scheduler = scheduler;
+        this.connectionPool = connectionPool;
+        this.uploadId = uploadId;
+        this.channel = channel;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Result call() {
+        long startTime = System.currentTimeMillis();
+        try {
+            ChunkScheduler.Range range;
+            while ((range = scheduler.next(workerId)) != null) {
+                if (!upload(range)) {
+                    scheduler.abandon(range);
+                    return result(startTime, false);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.error("InterruptedException occurred", e);
+            Thread.currentThread().interrupt();
+            return result(startTime, false);
+        }
+        LOG.info("Worker-{} uploaded {} bytes in {} pieces", workerId, bytes, pieces);
+        return result(startTime, true);
+    }
+
+    private Result result(long startTime, boolean status) {
+        return new Result(workerId, System.currentTimeMillis() - startTime, status, bytes, nanos,
+                0);
+    }
+
+    /**
+     * Pushes the piece until the server confirms it.
+     *
+     * @return false if the piece could not be pushed
+     */
+    private boolean upload(ChunkScheduler.Range range) throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            Attempt push = new Attempt();
+            scheduler.start(range, range.getOffset(), push);
+            long startNanos = System.nanoTime();
+            boolean status = push(range);
+            if (status) {
+                push.confirmed = range.getLength();
+                bytes += range.getLength();
+                nanos += System.nanoTime() - startNanos;
+            }
+            if (scheduler.finish(workerId, range, push, status)) {
+                pieces++;
+                return true;
+            }
+            if (attempt == PFTConstants.MAX_PIECE_RETRIES) {
+                LOG.error("Worker-{} failed on chunk {}", workerId, range.getChunkId());
+                return false;
+            }
+            long backoff = PFTConstants.RETRY_BACKOFF_MILLIS << attempt;
+            backoff += ThreadLocalRandom.current().nextLong(backoff);
+            LOG.warn("Worker-{} retrying chunk {} in {} msecs ({}/{})", workerId,
+                    range.getChunkId(), backoff, attempt + 1, PFTConstants.MAX_PIECE_RETRIES);
+            scheduler.retried();
+            metrics.retried();
+            Thread.sleep(backoff);
+        }
+    }
+
+    private boolean push(ChunkScheduler.Range range) throws InterruptedException {
+        ConnectionPool.PooledConnection connection = null;
+        boolean status = false;
+        try {
+            connection = connectionPool.borrow();
+            SocketChannel client = connection.getChannel();
+            Message.sendMessage(client, new UploadChunkMsg(uploadId, range.getOffset(),
+                    range.getLength(), range.getChunkId()));
+            long position = range.getOffset();
+            long end = range.getOffset() + range.getLength();
+            while (position < end) {
+                long sent = channel.transferTo(position, end - position, client);
+                if (sent == 0 && position >= channel.size()) {
+                    throw new IOException("File shrunk while uploading at " + position);
+                }
+                position += sent;
+            }
+            UploadAckMsg ack =
+                    (UploadAckMsg) Message.nextMsgFromSocket(client, connection.getBuffer());
+            status = ack.getChunkId() == range.getChunkId()
+                    && ack.getLength() == range.getLength();
+            if (!status) {
+                LOG.error("Unexpected ack {} for chunk {}", ack, range.getChunkId());
+            }
+        } catch (IOException e) {
+            LOG.error("IOException occurred", e);
+        } catch (SocketCloseException e) {
+            LOG.error("SocketCloseException occurred", e);
+        } finally {
+            if (connection != null) {
+                if (status) {
+                    connectionPool.release(connection);
+                } else {
+                    // the connection may be left in the middle of a piece
+                    connectionPool.invalidate(connection);
+                }
+            }
+        }
+        return status;
+    }
+
+    /**
+     * An attempt at a piece as the scheduler sees it: nothing is kept of it until the server
+     * confirms the whole piece.
+     */
+    private static class Attempt implements ChunkScheduler.Fetch {
+        private volatile long confirmed;
+
+        @Override
+        public long getFetched() {
+            return confirmed;
+        }
+
+        @Override
+        public void cancel() {
+        }
+    }
+}
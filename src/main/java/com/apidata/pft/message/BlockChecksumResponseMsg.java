@@ -0,0 +1,78 @@
+package com.apidata.pft.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Carries the CRC32 of consecutive blocks of blockSize bytes, the last block of a file being
+ * shorter. At most {@link #MAX_CHECKSUMS} fit in one message.
+ */
+public class BlockChecksumResponseMsg extends Message {
+    public static final int MAX_CHECKSUMS = 256;
+
+    private int blockSize;
+    private int firstBlock;
+    private int count;
+    private int[] checksums;
+    private int from;
+
+    public BlockChecksumResponseMsg() {
+        this.checksums = new int[MAX_CHECKSUMS];
+    }
+
+    /**
+     * Wraps count checksums of the array starting at index from, without copying them.
+     */
+    public BlockChecksumResponseMsg(int blockSize, int firstBlock, int[] checksums, int from,
+            int count) {
+        this.blockSize = blockSize;
+        this.firstBlock = firstBlock;
+        this.checksums = checksums;
+        this.from = from;
+        this.count = count;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getFirstBlock() {
+        return firstBlock;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getChecksum(int i) {
+        return checksums[from + i];
+    }
+
+    @Override
+    public byte getType() {
+        return BLOCK_CHECKSUM_RESPONSE;
+    }
+
+    public void fromBytes(ByteBuffer buffer) {
+        blockSize = buffer.getInt();
+        firstBlock = buffer.getInt();
+        count = Math.min(buffer.getInt(), MAX_CHECKSUMS);
+        from = 0;
+        for (int i = 0; i < count; i++) {
+            checksums[i] = buffer.getInt();
+        }
+    }
+
+    public void toBytes(ByteBuffer buffer) {
+        buffer.putInt(blockSize);
+        buffer.putInt(firstBlock);
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(checksums[from + i]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return blockSize + "," + firstBlock + "," + count;
+    }
+}
@@ -0,0 +1,56 @@
+package com.apidata.pft.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Asks for the delta signatures of count blocks of a file starting at block firstBlock. The
+ * server answers with a {@link BlockSignatureResponseMsg}.
+ */
+public class BlockSignatureRequestMsg extends Message {
+    private int fileId;
+    private int firstBlock;
+    private int count;
+
+    public BlockSignatureRequestMsg() {
+    }
+
+    public BlockSignatureRequestMsg(int fileId, int firstBlock, int count) {
+        this.fileId = fileId;
+        this.firstBlock = firstBlock;
+        this.count = count;
+    }
+
+    public int getFileId() {
+        return fileId;
+    }
+
+    public int getFirstBlock() {
+        return firstBlock;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public byte getType() {
+        return BLOCK_SIGNATURE_REQUEST;
+    }
+
+    public void fromBytes(ByteBuffer buffer) {
+        fileId = buffer.getInt();
+        firstBlock = buffer.getInt();
+        count = buffer.getInt();
+    }
+
+    public void toBytes(ByteBuffer buffer) {
+        buffer.putInt(fileId);
+        buffer.putInt(firstBlock);
+        buffer.putInt(count);
+    }
+
+    @Override
+    public String toString() {
+        return fileId + "," + firstBlock + "," + count;
+    }
+}
@@ -0,0 +1,87 @@
+package com.apidata.pft.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Carries the rolling and strong checksums of consecutive blocks of blockSize bytes, the last
+ * block of a file being shorter. At most {@link #MAX_SIGNATURES} fit in one message.
+ */
+public class BlockSignatureResponseMsg extends Message {
+    public static final int MAX_SIGNATURES = 128;
+
+    private int blockSize;
+    private int firstBlock;
+    private int count;
+    private int[] rolling;
+    private long[] strong;
+    private int from;
+
+    public BlockSignatureResponseMsg() {
+        this.rolling = new int[MAX_SIGNATURES];
+        this.strong = new long[MAX_SIGNATURES];
+    }
+
+    /**
+     * Wraps count signatures of the arrays starting at index from, without copying them.
+     */
+    public BlockSignatureResponseMsg(int blockSize, int firstBlock, int[] rolling, long[] strong,
+            int from, int count) {
+        this.blockSize = blockSize;
+        this.firstBlock = firstBlock;
+        this.rolling = rolling;
+        this.strong = strong;
+        this.from = from;
+        this.count = count;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getFirstBlock() {
+        return firstBlock;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getRolling(int i) {
+        return rolling[from + i];
+    }
+
+    public long getStrong(int i) {
+        return strong[from + i];
+    }
+
+    @Override
+    public byte getType() {
+        return BLOCK_SIGNATURE_RESPONSE;
+    }
+
+    public void fromBytes(ByteBuffer buffer) {
+        blockSize = buffer.getInt();
+        firstBlock = buffer.getInt();
+        count = Math.min(buffer.getInt(), MAX_SIGNATURES);
+        from = 0;
+        for (int i = 0; i < count; i++) {
+            rolling[i] = buffer.getInt();
+            strong[i] = buffer.getLong();
+        }
+    }
+
+    public void toBytes(ByteBuffer buffer) {
+        buffer.putInt(blockSize);
+        buffer.putInt(firstBlock);
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(rolling[from + i]);
+            buffer.putLong(strong[from + i]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return blockSize + "," + firstBlock + "," + count;
+    }
+}
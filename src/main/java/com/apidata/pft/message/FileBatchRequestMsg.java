@@ -0,0 +1,72 @@
+package com.apidata.pft.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Asks for several whole files in one go, so that small files do not cost a round trip each. The
+ * server answers with a {@link FileBatchResponseMsg} followed by the contents of the files, one
+ * after the other. At most {@link #MAX_FILES} fit in one request.
+ */
+public class FileBatchRequestMsg extends Message {
+    public static final int MAX_FILES = 128;
+
+    private int chunkId;
+    private int count;
+    private int[] fileIds;
+
+    public FileBatchRequestMsg() {
+        this.fileIds = new int[MAX_FILES];
+    }
+
+    public FileBatchRequestMsg(int chunkId, int[] fileIds, int count) {
+        this.chunkId = chunkId;
+        this.fileIds = fileIds;
+        this.count = count;
+    }
+
+    public int getChunkId() {
+        return chunkId;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getFileId(int i) {
+        return fileIds[i];
+    }
+
+    @Override
+    public byte getType() {
+        return FILE_BATCH_REQUEST;
+    }
+
+    public void fromBytes(ByteBuffer buffer) throws IOException {
+        chunkId = buffer.getInt();
+        count = buffer.getInt();
+        if (count < 0 || count > MAX_FILES) {
+            throw new IOException("Invalid batch count: " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            fileIds[i] = buffer.getInt();
+            // 0 is never handed out
+            if (fileIds[i] == 0) {
+                throw new IOException("Invalid file id in batch: " + fileIds[i]);
+            }
+        }
+    }
+
+    public void toBytes(ByteBuffer buffer) {
+        buffer.putInt(chunkId);
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(fileIds[i]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return chunkId + "," + count;
+    }
+}
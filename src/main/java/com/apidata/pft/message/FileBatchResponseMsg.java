@@ -0,0 +1,70 @@
+package com.apidata.pft.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Frames the payload of a {@link FileBatchRequestMsg}: the files follow this message on the
+ * socket, each exactly as long as its length here. A length of -1 means the file no longer
+ * exists and nothing is sent for it.
+ */
+public class FileBatchResponseMsg extends Message {
+    private int chunkId;
+    private int count;
+    private long[] lengths;
+
+    public FileBatchResponseMsg() {
+        this.lengths = new long[FileBatchRequestMsg.MAX_FILES];
+    }
+
+    public FileBatchResponseMsg(int chunkId, long[] lengths, int count) {
+        this.chunkId = chunkId;
+        this.lengths = lengths;
+        this.count = count;
+    }
+
+    public int getChunkId() {
+        return chunkId;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getLength(int i) {
+        return lengths[i];
+    }
+
+    @Override
+    public byte getType() {
+        return FILE_BATCH_RESPONSE;
+    }
+
+    public void fromBytes(ByteBuffer buffer) throws IOException {
+        chunkId = buffer.getInt();
+        count = buffer.getInt();
+        if (count < 0 || count > FileBatchRequestMsg.MAX_FILES) {
+            throw new IOException("Invalid batch count: " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            lengths[i] = buffer.getLong();
+            // -1 for a file not found
+            if (lengths[i] < -1) {
+                throw new IOException("Invalid file length in batch: " + lengths[i]);
+            }
+        }
+    }
+
+    public void toBytes(ByteBuffer buffer) {
+        buffer.putInt(chunkId);
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            buffer.putLong(lengths[i]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return chunkId + "," + count;
+    }
+}
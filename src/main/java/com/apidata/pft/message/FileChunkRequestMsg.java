@@ -3,58 +3,58 @@ package com.apidata.pft.message;
 import java.nio.ByteBuffer;
 
 public class FileChunkRequestMsg extends Message {
-    private String filePath;
-    private Long offset;
-    private Integer chunkId;
-    private Integer length;
+    private int fileId;
+    private long offset;
+    private int chunkId;
+    private int length;
 
     public FileChunkRequestMsg() {
     }
 
-    public FileChunkRequestMsg(String filePath, Long offset, Integer chunkId, Integer length) {
-        this.filePath = filePath;
+    public FileChunkRequestMsg(int fileId, long offset, int chunkId, int length) {
+        this.fileId = fileId;
         this.offset = offset;
         this.chunkId = chunkId;
         this.length = length;
     }
 
-    public Integer getLength() {
+    public int getLength() {
         return length;
     }
 
-    public String getFilePath() {
-        return filePath;
+    public int getFileId() {
+        return fileId;
     }
 
-    public Long getOffset() {
+    public long getOffset() {
         return offset;
     }
 
-    public Integer getChunkId() {
+    public int getChunkId() {
         return chunkId;
     }
 
+    @Override
+    public byte getType() {
+        return FILE_CHUNK_REQUEST;
+    }
+
     public void fromBytes(ByteBuffer buffer) {
-        int len = buffer.getShort();
-        byte[] bytes = new byte[len];
-        buffer.get(bytes);
-        String val = new String(bytes);
-        String[] arr = val.split(",");
-        filePath = arr[0];
-        offset = Long.parseLong(arr[1]);
-        chunkId = Integer.parseInt(arr[2]);
-        length = Integer.parseInt(arr[3]);
+        fileId = buffer.getInt();
+        offset = buffer.getLong();
+        chunkId = buffer.getInt();
+        length = buffer.getInt();
     }
 
     public void toBytes(ByteBuffer buffer) {
-        byte[] bytes = (filePath + "," + offset + "," + chunkId + "," + length).getBytes();
-        int len = bytes.length;
-        buffer.putShort((short) len);
-        buffer.put(bytes);
+        buffer.putInt(fileId);
+        buffer.putLong(offset);
+        buffer.putInt(chunkId);
+        buffer.putInt(length);
     }
 
     @Override
     public String toString() {
-        return filePath + "," + offset + "," + chunkId + "," + length;
+        return fileId + "," + offset + "," + chunkId + "," + length;
     }
-}
\ No newline at end of file
+}
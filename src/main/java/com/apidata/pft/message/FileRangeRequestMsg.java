@@ -0,0 +1,82 @@
+package com.apidata.pft.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Asks the server to stream the whole range [offset, offset + length) of a file in one go. The
+ * server answers with a {@link FileRangeResponseMsg} followed by the raw bytes of the range or,
+ * with {@link #COMPRESSION_DEFLATE}, by frames of
+ * <pre>
+ * int rawLength | int compressedLength | data
+ * </pre>
+ * each deflated on its own, or stored as is when compressedLength equals rawLength.
+ */
+public class FileRangeRequestMsg extends Message {
+    private int fileId;
+    private long offset;
+    private long length;
+    private int chunkId;
+    private byte compression;
+
+    public FileRangeRequestMsg() {
+    }
+
+    public FileRangeRequestMsg(int fileId, long offset, long length, int chunkId) {
+        this(fileId, offset, length, chunkId, COMPRESSION_NONE);
+    }
+
+    public FileRangeRequestMsg(int fileId, long offset, long length, int chunkId,
+            byte compression) {
+        this.fileId = fileId;
+        this.offset = offset;
+        this.length = length;
+        this.chunkId = chunkId;
+        this.compression = compression;
+    }
+
+    public int getFileId() {
+        return fileId;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getChunkId() {
+        return chunkId;
+    }
+
+    public byte getCompression() {
+        return compression;
+    }
+
+    @Override
+    public byte getType() {
+        return FILE_RANGE_REQUEST;
+    }
+
+    public void fromBytes(ByteBuffer buffer) {
+        fileId = buffer.getInt();
+        offset = buffer.getLong();
+        length = buffer.getLong();
+        chunkId = buffer.getInt();
+        compression = buffer.get();
+    }
+
+    public void toBytes(ByteBuffer buffer) {
+        buffer.putInt(fileId);
+        buffer.putLong(offset);
+        buffer.putLong(length);
+        buffer.putInt(chunkId);
+        buffer.put(compression);
+    }
+
+    @Override
+    public String toString() {
+        return fileId + "," + offset + "," + length + "," + chunkId + "," + compression;
+    }
+}
@@ -0,0 +1,52 @@
+package com.apidata.pft.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frames the payload of a {@link FileRangeRequestMsg}: exactly length bytes of the file follow
+ * this message on the socket, or compressed frames adding up to length bytes once inflated. The
+ * length is smaller than requested if the file is shorter.
+ */
+public class FileRangeResponseMsg extends Message {
+    // rawLength and compressedLength ahead of every compressed frame
+    public static final int FRAME_HEADER_SIZE = 8;
+
+    private int chunkId;
+    private long length;
+
+    public FileRangeResponseMsg() {
+    }
+
+    public FileRangeResponseMsg(int chunkId, long length) {
+        this.chunkId = chunkId;
+        this.length = length;
+    }
+
+    public int getChunkId() {
+        return chunkId;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public byte getType() {
+        return FILE_RANGE_RESPONSE;
+    }
+
+    public void fromBytes(ByteBuffer buffer) {
+        chunkId = buffer.getInt();
+        length = buffer.getLong();
+    }
+
+    public void toBytes(ByteBuffer buffer) {
+        buffer.putInt(chunkId);
+        buffer.putLong(length);
+    }
+
+    @Override
+    public String toString() {
+        return chunkId + "," + length;
+    }
+}
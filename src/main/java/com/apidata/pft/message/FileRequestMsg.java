@@ -1,32 +1,53 @@
 package com.apidata.pft.message;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
 public class FileRequestMsg extends Message {
     private String filePath;
+    private byte compression;
 
     public FileRequestMsg() {
 
     }
 
     public FileRequestMsg(String filePath) {
+        this(filePath, COMPRESSION_NONE);
+    }
+
+    /**
+     * @param compression the compression the client can decode, used if the file is worth it
+     */
+    public FileRequestMsg(String filePath, byte compression) {
         this.filePath = filePath;
+        this.compression = compression;
     }
 
     public String getFilePath() {
         return filePath;
     }
 
-    public void fromBytes(ByteBuffer buffer) {
+    public byte getCompression() {
+        return compression;
+    }
+
+    @Override
+    public byte getType() {
+        return FILE_REQUEST;
+    }
+
+    public void fromBytes(ByteBuffer buffer) throws IOException {
         filePath = stringFromMsg(buffer);
+        compression = buffer.get();
     }
 
     public void toBytes(ByteBuffer buffer) {
         stringToMsg(buffer, filePath);
+        buffer.put(compression);
     }
 
     @Override
     public String toString() {
         return filePath;
     }
-}
\ No newline at end of file
+}
@@ -2,38 +2,71 @@ package com.apidata.pft.message;
 
 import java.nio.ByteBuffer;
 
+/**
+ * Answers a {@link FileRequestMsg} with the size of the file, -1 if it does not exist, its mtime
+ * and the id the client uses to refer to the file in its chunk requests. Size and mtime together
+ * identify the version of the file, e.g. to tell whether a partial download can be resumed.
+ * The compression is the one offered by the client if the file is worth compressing, none
+ * otherwise.
+ */
 public class FileResponseMsg extends Message {
-    private Long fileSize;
+    private long fileSize;
+    private long lastModified;
+    private int fileId;
+    private byte compression;
 
     public FileResponseMsg() {
 
     }
 
-    public FileResponseMsg(Long fileSize) {
+    public FileResponseMsg(long fileSize, long lastModified, int fileId) {
+        this(fileSize, lastModified, fileId, COMPRESSION_NONE);
+    }
+
+    public FileResponseMsg(long fileSize, long lastModified, int fileId, byte compression) {
         this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.fileId = fileId;
+        this.compression = compression;
     }
 
-    public Long getFileSize() {
+    public long getFileSize() {
         return fileSize;
     }
 
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public int getFileId() {
+        return fileId;
+    }
+
+    public byte getCompression() {
+        return compression;
+    }
+
+    @Override
+    public byte getType() {
+        return FILE_RESPONSE;
+    }
+
     public void fromBytes(ByteBuffer buffer) {
-        int len = buffer.getShort();
-        byte[] bytes = new byte[len];
-        buffer.get(bytes);
-        String val = new String(bytes);
-        fileSize = Long.parseLong(val);
+        fileSize = buffer.getLong();
+        lastModified = buffer.getLong();
+        fileId = buffer.getInt();
+        compression = buffer.get();
     }
 
     public void toBytes(ByteBuffer buffer) {
-        byte[] bytes = fileSize.toString().getBytes();
-        int len = bytes.length;
-        buffer.putShort((short) len);
-        buffer.put(bytes);
+        buffer.putLong(fileSize);
+        buffer.putLong(lastModified);
+        buffer.putInt(fileId);
+        buffer.put(compression);
     }
 
     @Override
     public String toString() {
-        return fileSize.toString();
+        return fileSize + "," + lastModified + "," + fileId + "," + compression;
     }
-}
\ No newline at end of file
+}
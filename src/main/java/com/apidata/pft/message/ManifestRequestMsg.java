@@ -0,0 +1,59 @@
+package com.apidata.pft.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Asks for one page of the manifest of a directory tree. With manifestId 0 the server walks the
+ * tree and answers with the first page of a new manifest; the other pages are then asked for with
+ * the id it returned, so that every page comes from the same walk. The server answers with a
+ * {@link ManifestResponseMsg}.
+ */
+public class ManifestRequestMsg extends Message {
+    private String dirPath;
+    private int manifestId;
+    private int page;
+
+    public ManifestRequestMsg() {
+    }
+
+    public ManifestRequestMsg(String dirPath, int manifestId, int page) {
+        this.dirPath = dirPath;
+        this.manifestId = manifestId;
+        this.page = page;
+    }
+
+    public String getDirPath() {
+        return dirPath;
+    }
+
+    public int getManifestId() {
+        return manifestId;
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    @Override
+    public byte getType() {
+        return MANIFEST_REQUEST;
+    }
+
+    public void fromBytes(ByteBuffer buffer) throws IOException {
+        dirPath = stringFromMsg(buffer);
+        manifestId = buffer.getInt();
+        page = buffer.getInt();
+    }
+
+    public void toBytes(ByteBuffer buffer) {
+        stringToMsg(buffer, dirPath);
+        buffer.putInt(manifestId);
+        buffer.putInt(page);
+    }
+
+    @Override
+    public String toString() {
+        return dirPath + "," + manifestId + "," + page;
+    }
+}
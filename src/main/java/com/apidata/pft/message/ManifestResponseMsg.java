@@ -0,0 +1,128 @@
+package com.apidata.pft.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries one page of the manifest of a directory tree: the path relative to the directory, size,
+ * mtime and fileId of consecutive regular files. Pages are cut so that an encoded page stays
+ * within {@link #MAX_PAGE_BYTES}. A count of pages of -1 means the directory does not exist, or
+ * the manifest asked for has expired.
+ */
+public class ManifestResponseMsg extends Message {
+    public static final int MAX_PAGE_BYTES = 1536;
+    // path length, size, mtime and fileId besides the path bytes
+    public static final int ENTRY_OVERHEAD = 22;
+
+    private int manifestId;
+    private int page;
+    private int pages;
+    private int count;
+    private String[] paths;
+    private long[] sizes;
+    private long[] lastModified;
+    private int[] fileIds;
+    private int from;
+
+    public ManifestResponseMsg() {
+    }
+
+    /**
+     * Wraps count entries of the arrays starting at index from, without copying them.
+     */
+    public ManifestResponseMsg(int manifestId, int page, int pages, String[] paths, long[] sizes,
+            long[] lastModified, int[] fileIds, int from, int count) {
+        this.manifestId = manifestId;
+        this.page = page;
+        this.pages = pages;
+        this.paths = paths;
+        this.sizes = sizes;
+        this.lastModified = lastModified;
+        this.fileIds = fileIds;
+        this.from = from;
+        this.count = count;
+    }
+
+    public int getManifestId() {
+        return manifestId;
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    public int getPages() {
+        return pages;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public String getPath(int i) {
+        return paths[from + i];
+    }
+
+    public long getSize(int i) {
+        return sizes[from + i];
+    }
+
+    public long getLastModified(int i) {
+        return lastModified[from + i];
+    }
+
+    public int getFileId(int i) {
+        return fileIds[from + i];
+    }
+
+    @Override
+    public byte getType() {
+        return MANIFEST_RESPONSE;
+    }
+
+    public void fromBytes(ByteBuffer buffer) throws IOException {
+        manifestId = buffer.getInt();
+        page = buffer.getInt();
+        pages = buffer.getInt();
+        count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / ENTRY_OVERHEAD) {
+            throw new IOException("Invalid manifest count: " + count);
+        }
+        from = 0;
+        paths = new String[count];
+        sizes = new long[count];
+        lastModified = new long[count];
+        fileIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            paths[i] = stringFromMsg(buffer);
+            int pathBytes = paths[i].getBytes().length;
+            if (pathBytes > MAX_PAGE_BYTES - ENTRY_OVERHEAD) {
+                throw new IOException("Invalid manifest path length: " + pathBytes);
+            }
+            sizes[i] = buffer.getLong();
+            lastModified[i] = buffer.getLong();
+            fileIds[i] = buffer.getInt();
+            if (sizes[i] < 0 || fileIds[i] == 0) {
+                throw new IOException("Invalid manifest entry: " + paths[i]);
+            }
+        }
+    }
+
+    public void toBytes(ByteBuffer buffer) {
+        buffer.putInt(manifestId);
+        buffer.putInt(page);
+        buffer.putInt(pages);
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            stringToMsg(buffer, paths[from + i]);
+            buffer.putLong(sizes[from + i]);
+            buffer.putLong(lastModified[from + i]);
+            buffer.putInt(fileIds[from + i]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return manifestId + "," + page + "/" + pages + "," + count;
+    }
+}
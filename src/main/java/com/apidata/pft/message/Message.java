@@ -6,18 +6,109 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
+/**
+ * Base class of everything sent over the socket. A message goes on the wire as a frame of
+ * <pre>
+ * int length | byte version | byte type | payload
+ * </pre>
+ * where length counts every byte after itself. Payload fields are fixed width, so encoding and
+ * decoding only touch the caller's buffers; files are referred to by the id handed out in the
+ * {@link FileResponseMsg} rather than by path.
+ */
 public abstract class Message {
     private static final Logger LOG = LoggerFactory.getLogger(Message.class);
 
-    public abstract void fromBytes(ByteBuffer buffer);
+    public static final byte VERSION = 2;
+    public static final int LENGTH_FIELD_SIZE = 4;
+
+    public static final byte FILE_REQUEST = 1;
+    public static final byte FILE_RESPONSE = 2;
+    public static final byte FILE_CHUNK_REQUEST = 3;
+    public static final byte FILE_RANGE_REQUEST = 4;
+    public static final byte FILE_RANGE_RESPONSE = 5;
+    public static final byte BLOCK_CHECKSUM_REQUEST = 6;
+    public static final byte BLOCK_CHECKSUM_RESPONSE = 7;
+    public static final byte BLOCK_SIGNATURE_REQUEST = 8;
+    public static final byte BLOCK_SIGNATURE_RESPONSE = 9;
+    public static final byte MANIFEST_REQUEST = 10;
+    public static final byte MANIFEST_RESPONSE = 11;
+    public static final byte FILE_BATCH_REQUEST = 12;
+    public static final byte FILE_BATCH_RESPONSE = 13;
+    public static final byte PEER_REQUEST = 14;
+    public static final byte PEER_RESPONSE = 15;
+    public static final byte UPLOAD_REQUEST = 16;
+    public static final byte UPLOAD_RESPONSE = 17;
+    public static final byte UPLOAD_CHUNK = 18;
+    public static final byte UPLOAD_ACK = 19;
+    public static final byte UPLOAD_COMMIT = 20;
+    public static final int MESSAGE_TYPES = 21;
+
+    public static final byte COMPRESSION_NONE = 0;
+    public static final byte COMPRESSION_DEFLATE = 1;
+
+    private static final ThreadLocal<ByteBuffer> SEND_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(PFTConstants.BUFFER_SIZE));
+
+    public abstract byte getType();
+
+    /**
+     * Reads the payload from a buffer limited to it.
+     *
+     * @throws IOException if the payload is malformed
+     */
+    public abstract void fromBytes(ByteBuffer buffer) throws IOException;
 
     public abstract void toBytes(ByteBuffer buffer);
 
-    private String messageType() {
-        return getClass().getSimpleName();
+    public static Message newMessage(byte type) throws IOException {
+        switch (type) {
+        case FILE_REQUEST:
+            return new FileRequestMsg();
+        case FILE_RESPONSE:
+            return new FileResponseMsg();
+        case FILE_CHUNK_REQUEST:
+            return new FileChunkRequestMsg();
+        case FILE_RANGE_REQUEST:
+            return new FileRangeRequestMsg();
+        case FILE_RANGE_RESPONSE:
+            return new FileRangeResponseMsg();
+        case BLOCK_CHECKSUM_REQUEST:
+            return new BlockChecksumRequestMsg();
+        case BLOCK_CHECKSUM_RESPONSE:
+            return new BlockChecksumResponseMsg();
+        case BLOCK_SIGNATURE_REQUEST:
+            return new BlockSignatureRequestMsg();
+        case BLOCK_SIGNATURE_RESPONSE:
+            return new BlockSignatureResponseMsg();
+        case MANIFEST_REQUEST:
+            return new ManifestRequestMsg();
+        case MANIFEST_RESPONSE:
+            return new ManifestResponseMsg();
+        case FILE_BATCH_REQUEST:
+            return new FileBatchRequestMsg();
+        case FILE_BATCH_RESPONSE:
+            return new FileBatchResponseMsg();
+        case PEER_REQUEST:
+            return new PeerRequestMsg();
+        case PEER_RESPONSE:
+            return new PeerResponseMsg();
+        case UPLOAD_REQUEST:
+            return new UploadRequestMsg();
+        case UPLOAD_RESPONSE:
+            return new UploadResponseMsg();
+        case UPLOAD_CHUNK:
+            return new UploadChunkMsg();
+        case UPLOAD_ACK:
+            return new UploadAckMsg();
+        case UPLOAD_COMMIT:
+            return new UploadCommitMsg();
+        default:
+            throw new IOException("Unknown message type: " + type);
+        }
     }
 
     public static void stringToMsg(ByteBuffer buffer, String str) {
@@ -27,86 +118,123 @@ public abstract class Message {
         buffer.put(bytes);
     }
 
-    public static String stringFromMsg(ByteBuffer buffer) {
+    public static String stringFromMsg(ByteBuffer buffer) throws IOException {
         int len = buffer.getShort();
+        if (len < 0 || len > buffer.remaining()) {
+            throw new IOException("Invalid string length: " + len);
+        }
         byte[] bytes = new byte[len];
         buffer.get(bytes);
         return new String(bytes);
     }
 
-    public static Message nextMsgFromSocket(SocketChannel socket, ByteBuffer dataBuffer)
-            throws SocketCloseException, IOException {
+    /**
+     * Appends the frame of a message to the buffer.
+     */
+    public static void encode(Message msg, ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.putInt(0);
+        buffer.put(VERSION);
+        buffer.put(msg.getType());
+        msg.toBytes(buffer);
+        buffer.putInt(start, buffer.position() - start - LENGTH_FIELD_SIZE);
+    }
 
-        // read first 4 bytes for header
-        checkBytesAvailable(socket, dataBuffer, 4);
-        int length = dataBuffer.getInt();
-
-        // Read rest of the msg
-        checkBytesAvailable(socket, dataBuffer, length);
-
-        String type = stringFromMsg(dataBuffer);
-        Message msg = null;
-        if (type.equals(FileRequestMsg.class.getSimpleName())) {
-            msg = new FileRequestMsg();
-        } else if (type.equals(FileResponseMsg.class.getSimpleName())) {
-            msg = new FileResponseMsg();
-        } else if (type.equals(FileChunkRequestMsg.class.getSimpleName())) {
-            msg = new FileChunkRequestMsg();
+    /**
+     * Decodes the next frame from a buffer ready for reading. Returns null, leaving the buffer
+     * untouched, if the frame is not complete yet. When reuse is given, the message instance of
+     * the decoded type is taken from it (and stored there on first use) instead of allocating a
+     * new one, so the result is only valid until the next call. The payload is read from a slice
+     * limited to the frame, so a malformed one fails with an IOException instead of reading into
+     * the next frame.
+     */
+    public static Message decode(ByteBuffer buffer, Message[] reuse) throws IOException {
+        if (buffer.remaining() < LENGTH_FIELD_SIZE) {
+            return null;
         }
-
-        if (msg == null) {
-            throw new IOException("Unknown message type: " + type);
+        int start = buffer.position();
+        int length = buffer.getInt(start);
+        if (length < 2 || length > buffer.capacity() - LENGTH_FIELD_SIZE) {
+            throw new IOException("Invalid message length: " + length);
+        }
+        if (buffer.remaining() < LENGTH_FIELD_SIZE + length) {
+            return null;
+        }
+        buffer.position(start + LENGTH_FIELD_SIZE);
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported protocol version: " + version);
+        }
+        byte type = buffer.get();
+        Message msg;
+        if (reuse != null && type > 0 && type < reuse.length) {
+            msg = reuse[type];
+            if (msg == null) {
+                msg = newMessage(type);
+                reuse[type] = msg;
+            }
+        } else {
+            msg = newMessage(type);
         }
 
         // payload data
-        msg.fromBytes(dataBuffer);
-
-        LOG.trace("Message read from socket: " + msg);
+        ByteBuffer payload = buffer.slice();
+        payload.limit(length - 2);
+        try {
+            msg.fromBytes(payload);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | NegativeArraySizeException e) {
+            throw new IOException("Malformed message of type " + type + ", length " + length, e);
+        }
+        buffer.position(start + LENGTH_FIELD_SIZE + length);
 
+        LOG.trace("Message read from socket: {}", msg);
         return msg;
     }
 
-    public static void sendMessage(SocketChannel channel, Message toSend) throws IOException {
-
-        // need to put the message type into the buffer first.
-        ByteBuffer msg = ByteBuffer.allocate(PFTConstants.BUFFER_SIZE);
-        stringToMsg(msg, toSend.messageType());
-
-        // and then any extra fields for this type of message
-        toSend.toBytes(msg);
-        msg.flip();
-
-        // need to encode the length into a different buffer.
-        ByteBuffer overall = ByteBuffer.allocate(10);
-        overall.putInt(msg.remaining());
-        overall.flip();
-
-        // and lastly write the length, followed by the message.
-        long written = channel.write(new ByteBuffer[] { overall, msg });
-
-        LOG.trace("Message written to socket: " + toSend + ", length was: " + written);
-    }
-
-    private static void checkBytesAvailable(SocketChannel socket, ByteBuffer buffer, int required)
+    public static Message nextMsgFromSocket(SocketChannel socket, ByteBuffer dataBuffer)
             throws SocketCloseException, IOException {
         // if there's already something in the buffer, then compact it and prepare it for writing again.
-        if (buffer.position() != 0) {
-            buffer.compact();
+        if (dataBuffer.position() != 0) {
+            dataBuffer.compact();
+        } else {
+            dataBuffer.clear();
         }
+        dataBuffer.flip();
 
         // loop until we have enough data to decode the message
-        while (buffer.position() < required) {
-
-            // read from buffer
-            int len = socket.read(buffer);
+        Message msg;
+        while ((msg = decode(dataBuffer, null)) == null) {
+            dataBuffer.compact();
+            int len = socket.read(dataBuffer);
+            dataBuffer.flip();
             if (!socket.isOpen() || len <= 0) {
                 throw new SocketCloseException("Socket closed while reading");
             }
-
-            LOG.trace("Bytes now in buffer: " + buffer.remaining() + " read from socket: " + len);
+            LOG.trace("Bytes now in buffer: {} read from socket: {}", dataBuffer.remaining(), len);
         }
+        return msg;
+    }
+
+    public static void sendMessage(SocketChannel channel, Message toSend) throws IOException {
+        sendMessage(channel, toSend, SEND_BUFFER.get());
+    }
 
-        // flip to prepare the buffer for reading.
+    /**
+     * Encodes the message into the given buffer and writes it fully to the channel, which has to
+     * be in blocking mode; a non-blocking one would spin while the peer is not reading.
+     */
+    public static void sendMessage(SocketChannel channel, Message toSend, ByteBuffer buffer)
+            throws IOException {
+        buffer.clear();
+        encode(toSend, buffer);
         buffer.flip();
+
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+
+        LOG.trace("Message written to socket: {}, length was: {}", toSend, written);
     }
-}
\ No newline at end of file
+}
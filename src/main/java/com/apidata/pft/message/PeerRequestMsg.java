@@ -0,0 +1,88 @@
+package com.apidata.pft.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Announces the sender as a peer of a file in swarm mode and asks the server for the other peers
+ * of it, answered with a {@link PeerResponseMsg}. The sender serves the ranges listed, as
+ * (offset, length) pairs, on peerPort for the version of the file with that mtime; a peerPort of
+ * 0 only asks. At most {@link #MAX_RANGES} ranges fit in one request.
+ */
+public class PeerRequestMsg extends Message {
+    public static final int MAX_RANGES = 16;
+
+    private int fileId;
+    private long lastModified;
+    private int peerPort;
+    private int count;
+    private long[] ranges;
+
+    public PeerRequestMsg() {
+        this.ranges = new long[2 * MAX_RANGES];
+    }
+
+    /**
+     * @param ranges the offset and length of each range, one after the other
+     */
+    public PeerRequestMsg(int fileId, long lastModified, int peerPort, long[] ranges, int count) {
+        this.fileId = fileId;
+        this.lastModified = lastModified;
+        this.peerPort = peerPort;
+        this.ranges = ranges;
+        this.count = count;
+    }
+
+    public int getFileId() {
+        return fileId;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public int getPeerPort() {
+        return peerPort;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getOffset(int i) {
+        return ranges[2 * i];
+    }
+
+    public long getLength(int i) {
+        return ranges[2 * i + 1];
+    }
+
+    @Override
+    public byte getType() {
+        return PEER_REQUEST;
+    }
+
+    public void fromBytes(ByteBuffer buffer) {
+        fileId = buffer.getInt();
+        lastModified = buffer.getLong();
+        peerPort = buffer.getInt();
+        count = Math.min(buffer.getInt(), MAX_RANGES);
+        for (int i = 0; i < 2 * count; i++) {
+            ranges[i] = buffer.getLong();
+        }
+    }
+
+    public void toBytes(ByteBuffer buffer) {
+        buffer.putInt(fileId);
+        buffer.putLong(lastModified);
+        buffer.putInt(peerPort);
+        buffer.putInt(count);
+        for (int i = 0; i < 2 * count; i++) {
+            buffer.putLong(ranges[i]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return fileId + "," + lastModified + "," + peerPort + "," + count;
+    }
+}
@@ -0,0 +1,87 @@
+package com.apidata.pft.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Answers a {@link PeerRequestMsg} with up to {@link #MAX_PEERS} other peers of the same version
+ * of the file: the host and port each one serves on and the ranges it holds, at most
+ * {@link PeerRequestMsg#MAX_RANGES} of them as (offset, length) pairs.
+ */
+public class PeerResponseMsg extends Message {
+    public static final int MAX_PEERS = 6;
+
+    private int count;
+    private String[] hosts;
+    private int[] ports;
+    private long[][] ranges;
+
+    public PeerResponseMsg() {
+    }
+
+    /**
+     * @param ranges the offset and length of each range held by a peer, one after the other
+     */
+    public PeerResponseMsg(String[] hosts, int[] ports, long[][] ranges, int count) {
+        this.hosts = hosts;
+        this.ports = ports;
+        this.ranges = ranges;
+        this.count = count;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public String getHost(int i) {
+        return hosts[i];
+    }
+
+    public int getPort(int i) {
+        return ports[i];
+    }
+
+    /**
+     * Returns the offset and length of each range held by the peer, one after the other.
+     */
+    public long[] getRanges(int i) {
+        return ranges[i];
+    }
+
+    @Override
+    public byte getType() {
+        return PEER_RESPONSE;
+    }
+
+    public void fromBytes(ByteBuffer buffer) throws IOException {
+        count = Math.min(buffer.getInt(), MAX_PEERS);
+        hosts = new String[count];
+        ports = new int[count];
+        ranges = new long[count][];
+        for (int i = 0; i < count; i++) {
+            hosts[i] = stringFromMsg(buffer);
+            ports[i] = buffer.getInt();
+            ranges[i] = new long[2 * Math.min(buffer.getInt(), PeerRequestMsg.MAX_RANGES)];
+            for (int j = 0; j < ranges[i].length; j++) {
+                ranges[i][j] = buffer.getLong();
+            }
+        }
+    }
+
+    public void toBytes(ByteBuffer buffer) {
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            stringToMsg(buffer, hosts[i]);
+            buffer.putInt(ports[i]);
+            buffer.putInt(ranges[i].length / 2);
+            for (long value : ranges[i]) {
+                buffer.putLong(value);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(count);
+    }
+}
@@ -0,0 +1,47 @@
+package com.apidata.pft.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Confirms that the length bytes of an {@link UploadChunkMsg} are written to the target file.
+ */
+public class UploadAckMsg extends Message {
+    private int chunkId;
+    private long length;
+
+    public UploadAckMsg() {
+    }
+
+    public UploadAckMsg(int chunkId, long length) {
+        this.chunkId = chunkId;
+        this.length = length;
+    }
+
+    public int getChunkId() {
+        return chunkId;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public byte getType() {
+        return UPLOAD_ACK;
+    }
+
+    public void fromBytes(ByteBuffer buffer) {
+        chunkId = buffer.getInt();
+        length = buffer.getLong();
+    }
+
+    public void toBytes(ByteBuffer buffer) {
+        buffer.putInt(chunkId);
+        buffer.putLong(length);
+    }
+
+    @Override
+    public String toString() {
+        return chunkId + "," + length;
+    }
+}
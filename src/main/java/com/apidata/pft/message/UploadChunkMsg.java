@@ -0,0 +1,65 @@
+package com.apidata.pft.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frames a piece of an upload: exactly length bytes of the file, to be written at offset, follow
+ * this message on the socket. The server confirms them with an {@link UploadAckMsg} once they are
+ * written.
+ */
+public class UploadChunkMsg extends Message {
+    private int uploadId;
+    private long offset;
+    private long length;
+    private int chunkId;
+
+    public UploadChunkMsg() {
+    }
+
+    public UploadChunkMsg(int uploadId, long offset, long length, int chunkId) {
+        this.uploadId = uploadId;
+        this.offset = offset;
+        this.length = length;
+        this.chunkId = chunkId;
+    }
+
+    public int getUploadId() {
+        return uploadId;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getChunkId() {
+        return chunkId;
+    }
+
+    @Override
+    public byte getType() {
+        return UPLOAD_CHUNK;
+    }
+
+    public void fromBytes(ByteBuffer buffer) {
+        uploadId = buffer.getInt();
+        offset = buffer.getLong();
+        length = buffer.getLong();
+        chunkId = buffer.getInt();
+    }
+
+    public void toBytes(ByteBuffer buffer) {
+        buffer.putInt(uploadId);
+        buffer.putLong(offset);
+        buffer.putLong(length);
+        buffer.putInt(chunkId);
+    }
+
+    @Override
+    public String toString() {
+        return uploadId + "," + offset + "," + length + "," + chunkId;
+    }
+}
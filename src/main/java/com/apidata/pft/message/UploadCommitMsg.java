@@ -0,0 +1,41 @@
+package com.apidata.pft.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Asks the server to give an upload its final name once every piece is confirmed, answered with
+ * an {@link UploadResponseMsg}. The server checks that the pieces cover the whole file and syncs
+ * it first; otherwise the upload is dropped and the target is left as it was.
+ */
+public class UploadCommitMsg extends Message {
+    private int uploadId;
+
+    public UploadCommitMsg() {
+    }
+
+    public UploadCommitMsg(int uploadId) {
+        this.uploadId = uploadId;
+    }
+
+    public int getUploadId() {
+        return uploadId;
+    }
+
+    @Override
+    public byte getType() {
+        return UPLOAD_COMMIT;
+    }
+
+    public void fromBytes(ByteBuffer buffer) {
+        uploadId = buffer.getInt();
+    }
+
+    public void toBytes(ByteBuffer buffer) {
+        buffer.putInt(uploadId);
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(uploadId);
+    }
+}
@@ -0,0 +1,51 @@
+package com.apidata.pft.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Asks the server to take an upload of fileSize bytes to filePath, answered with an
+ * {@link UploadResponseMsg}. The server preallocates the target next to filePath; the pieces
+ * then come in {@link UploadChunkMsg}s, over any number of connections, and the file only takes
+ * its name on an {@link UploadCommitMsg}.
+ */
+public class UploadRequestMsg extends Message {
+    private String filePath;
+    private long fileSize;
+
+    public UploadRequestMsg() {
+    }
+
+    public UploadRequestMsg(String filePath, long fileSize) {
+        this.filePath = filePath;
+        this.fileSize = fileSize;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    @Override
+    public byte getType() {
+        return UPLOAD_REQUEST;
+    }
+
+    public void fromBytes(ByteBuffer buffer) throws IOException {
+        filePath = stringFromMsg(buffer);
+        fileSize = buffer.getLong();
+    }
+
+    public void toBytes(ByteBuffer buffer) {
+        stringToMsg(buffer, filePath);
+        buffer.putLong(fileSize);
+    }
+
+    @Override
+    public String toString() {
+        return filePath + "," + fileSize;
+    }
+}
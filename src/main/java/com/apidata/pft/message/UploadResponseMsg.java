@@ -0,0 +1,41 @@
+package com.apidata.pft.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Answers an {@link UploadRequestMsg} with the id the client refers to the upload by, and an
+ * {@link UploadCommitMsg} with the same id once the file is in place. An id of 0 means the
+ * upload was refused or could not be committed.
+ */
+public class UploadResponseMsg extends Message {
+    private int uploadId;
+
+    public UploadResponseMsg() {
+    }
+
+    public UploadResponseMsg(int uploadId) {
+        this.uploadId = uploadId;
+    }
+
+    public int getUploadId() {
+        return uploadId;
+    }
+
+    @Override
+    public byte getType() {
+        return UPLOAD_RESPONSE;
+    }
+
+    public void fromBytes(ByteBuffer buffer) {
+        uploadId = buffer.getInt();
+    }
+
+    public void toBytes(ByteBuffer buffer) {
+        buffer.putInt(uploadId);
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(uploadId);
+    }
+}
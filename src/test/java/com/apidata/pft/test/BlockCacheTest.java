@@ -0,0 +1,82 @@
+package com.apidata.pft.test;
+
+import com.apidata.pft.BlockCache;
+import com.apidata.pft.FileHandleCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertTrue;
+
+public class BlockCacheTest {
+    private static final int BLOCK_SIZE = 4096;
+    private static final int CACHE_BLOCKS = 16;
+    private static final int HOT_BLOCKS = 4;
+    private static final int SCAN_BLOCKS = 64;
+
+    private File hotFile;
+    private File scanFile;
+    private FileHandleCache handles;
+    private BlockCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        hotFile = createFile(HOT_BLOCKS * BLOCK_SIZE);
+        scanFile = createFile(SCAN_BLOCKS * BLOCK_SIZE);
+        handles = new FileHandleCache(2, 0);
+        cache = new BlockCache(CACHE_BLOCKS * BLOCK_SIZE, BLOCK_SIZE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        handles.close();
+        hotFile.delete();
+        scanFile.delete();
+    }
+
+    @Test
+    public void scanKeepsProtectedBlocks() throws IOException {
+        FileHandleCache.FileHandle hot = handles.acquire(hotFile.getAbsolutePath());
+        for (int i = 0; i < HOT_BLOCKS; i++) {
+            // loaded on a miss, then asked for again by another client
+            load(hot, i, false);
+            cache.release(cache.acquire(hot, i, BLOCK_SIZE));
+        }
+
+        // one sequential pass, every block read ahead and then sent by the same transfer
+        FileHandleCache.FileHandle scan = handles.acquire(scanFile.getAbsolutePath());
+        for (int i = 0; i < SCAN_BLOCKS; i++) {
+            load(scan, i, true);
+            BlockCache.Block block = cache.acquire(scan, i, BLOCK_SIZE);
+            if (block != null) {
+                cache.release(block);
+            }
+        }
+
+        assertTrue(cache.getEvictions() > 0);
+        for (int i = 0; i < HOT_BLOCKS; i++) {
+            assertTrue("block " + i, cache.contains(hot, i));
+        }
+        handles.release(hot);
+        handles.release(scan);
+    }
+
+    private void load(FileHandleCache.FileHandle handle, long index, boolean readAhead) {
+        BlockCache.Block block = cache.allocate(handle, index, readAhead);
+        cache.loaded(block, null);
+        cache.release(block);
+    }
+
+    private static File createFile(int size) throws IOException {
+        File file = File.createTempFile("pft-block", ".bin");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,48 @@
+package com.apidata.pft.test;
+
+import com.apidata.pft.BufferPool;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+
+    @Test
+    public void reusesReleasedBuffers() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer buffer = pool.acquire(20480);
+        assertTrue(buffer.isDirect());
+        assertEquals(32768, buffer.capacity());
+        buffer.put((byte) 1);
+        pool.release(buffer);
+
+        ByteBuffer again = pool.acquire(20000);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+        assertEquals(1, pool.getAllocated());
+        pool.release(again);
+    }
+
+    @Test
+    public void countsBuffersInUse() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer small = pool.acquire(100);
+        ByteBuffer large = pool.acquire(4 * 1024 * 1024);
+        assertEquals(2048, small.capacity());
+        assertEquals(4 * 1024 * 1024, large.capacity());
+        assertEquals(2, pool.getInUse());
+
+        pool.release(small);
+        pool.release(large);
+        assertEquals(0, pool.getInUse());
+        // buffers above the largest class are not pooled
+        assertNotSame(large, pool.acquire(4 * 1024 * 1024));
+        assertEquals(3, pool.getAllocated());
+    }
+}
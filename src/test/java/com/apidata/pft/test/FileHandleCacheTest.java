@@ -0,0 +1,81 @@
+package com.apidata.pft.test;
+
+import com.apidata.pft.FileHandleCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.NoSuchFileException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FileHandleCacheTest {
+    private File file1;
+    private File file2;
+    private FileHandleCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        file1 = createFile(10);
+        file2 = createFile(20);
+        cache = new FileHandleCache(1, 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cache.close();
+        file1.delete();
+        file2.delete();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        FileHandleCache.FileHandle handle = cache.acquire(file1.getAbsolutePath());
+        assertEquals(10, handle.getSize());
+        cache.release(handle);
+        assertSame(handle, cache.acquire(file1.getAbsolutePath()));
+        cache.release(handle);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        FileHandleCache.FileHandle other = cache.acquire(file2.getAbsolutePath());
+        assertEquals(20, other.getSize());
+        cache.release(other);
+        assertEquals(1, cache.getEvictions());
+        assertEquals(1, cache.getOpenFiles());
+        assertTrue("evicted handle must be closed", !handle.getChannel().isOpen());
+    }
+
+    @Test
+    public void invalidatesChangedFile() throws IOException {
+        FileHandleCache.FileHandle handle = cache.acquire(file1.getAbsolutePath());
+        try (RandomAccessFile raf = new RandomAccessFile(file1, "rw")) {
+            raf.setLength(15);
+        }
+        FileHandleCache.FileHandle changed = cache.acquire(file1.getAbsolutePath());
+        assertEquals(15, changed.getSize());
+        assertEquals(1, cache.getInvalidations());
+        assertTrue("handle in use must stay open", handle.getChannel().isOpen());
+        cache.release(handle);
+        assertTrue(!handle.getChannel().isOpen());
+        cache.release(changed);
+    }
+
+    @Test(expected = NoSuchFileException.class)
+    public void missingFile() throws IOException {
+        cache.acquire(file1.getAbsolutePath() + ".missing");
+    }
+
+    private static File createFile(int size) throws IOException {
+        File file = File.createTempFile("pft-cache", ".bin");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+        }
+        return file;
+    }
+}
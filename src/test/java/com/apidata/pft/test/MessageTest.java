@@ -0,0 +1,80 @@
+package com.apidata.pft.test;
+
+import com.apidata.pft.message.FileBatchRequestMsg;
+import com.apidata.pft.message.FileRangeRequestMsg;
+import com.apidata.pft.message.FileRequestMsg;
+import com.apidata.pft.message.Message;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class MessageTest {
+
+    @Test
+    public void roundTrip() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        Message.encode(new FileRequestMsg("/tmp/file", Message.COMPRESSION_DEFLATE), buffer);
+        Message.encode(new FileRangeRequestMsg(7, 1L << 40, 123456789L, 3), buffer);
+        buffer.flip();
+
+        Message[] reuse = new Message[Message.MESSAGE_TYPES];
+        FileRequestMsg request = (FileRequestMsg) Message.decode(buffer, reuse);
+        assertEquals("/tmp/file", request.getFilePath());
+        assertEquals(Message.COMPRESSION_DEFLATE, request.getCompression());
+        FileRangeRequestMsg range = (FileRangeRequestMsg) Message.decode(buffer, reuse);
+        assertEquals(7, range.getFileId());
+        assertEquals(1L << 40, range.getOffset());
+        assertEquals(123456789L, range.getLength());
+        assertEquals(3, range.getChunkId());
+        assertEquals(Message.COMPRESSION_NONE, range.getCompression());
+        assertEquals(0, buffer.remaining());
+        assertSame(range, reuse[Message.FILE_RANGE_REQUEST]);
+    }
+
+    @Test
+    public void partialFrame() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        Message.encode(new FileRangeRequestMsg(1, 0L, 10L, 0), buffer);
+        int frameLength = buffer.position();
+        buffer.flip();
+        buffer.limit(frameLength - 1);
+        assertNull(Message.decode(buffer, null));
+        assertEquals(0, buffer.position());
+        buffer.limit(frameLength);
+        assertEquals(10L, ((FileRangeRequestMsg) Message.decode(buffer, null)).getLength());
+    }
+
+    @Test(expected = IOException.class)
+    public void unsupportedVersion() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        Message.encode(new FileRequestMsg("/tmp/file"), buffer);
+        buffer.put(Message.LENGTH_FIELD_SIZE, (byte) (Message.VERSION + 1));
+        buffer.flip();
+        Message.decode(buffer, null);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedPayload() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        Message.encode(new FileRangeRequestMsg(1, 0L, 10L, 0), buffer);
+        Message.encode(new FileRangeRequestMsg(2, 0L, 10L, 0), buffer);
+        // the first frame claims less than its payload, which must not be read from the next
+        buffer.putInt(0, 10);
+        buffer.flip();
+        Message.decode(buffer, null);
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeBatchCount() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        Message.encode(new FileBatchRequestMsg(1, new int[] {1}, 1), buffer);
+        buffer.putInt(Message.LENGTH_FIELD_SIZE + 6, -1);
+        buffer.flip();
+        Message.decode(buffer, null);
+    }
+}
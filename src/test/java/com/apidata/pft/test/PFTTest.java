@@ -1,28 +1,94 @@
 package com.apidata.pft.test;
 
+import com.apidata.pft.ClientMetricsMBean;
 import com.apidata.pft.PFTClient;
 import com.apidata.pft.PFTConstants;
 import com.apidata.pft.PFTServer;
+import com.apidata.pft.ServerMetricsMBean;
+import com.apidata.pft.exception.SocketCloseException;
+import com.apidata.pft.message.FileRequestMsg;
+import com.apidata.pft.message.FileResponseMsg;
+import com.apidata.pft.message.ManifestRequestMsg;
+import com.apidata.pft.message.Message;
+import com.apidata.pft.message.UploadRequestMsg;
+import com.apidata.pft.message.UploadResponseMsg;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class PFTTest extends AbstractTest {
     private static final String FILE_1 = "/src/test/resource/file_data.txt";
     private static final String HOSTNAME = "localhost";
     private static final int PORT = 54231;
+    private static final int LARGE_FILE_PORT = 54232;
+    private static final int LARGE_FILE_SIZE = 25 * 1024 * 1024 + 1234;
+    private static final int CHUNK_SIZE = 3 * 1024 * 1024;
+    private static final int RESUME_PORT = 54233;
+    private static final int VERIFY_PORT = 54234;
+    private static final int CORRUPT_PORT = 54235;
+    private static final int DELTA_PORT = 54236;
+    private static final int RETRY_PORT = 54237;
+    private static final int PROXY_PORT = 54238;
+    private static final int MAPPED_PORT = 54239;
+    private static final int COMPRESS_PORT = 54240;
+    private static final int RATE_PORT = 54241;
+    private static final int TREE_PORT = 54242;
+    private static final int STREAMS_PORT = 54243;
+    private static final int PRIMARY_PORT = 54244;
+    private static final int REPLICA_PORT = 54245;
+    private static final int FLAKY_REPLICA_PORT = 54246;
+    private static final int DEAD_REPLICA_PORT = 54247;
+    private static final int CACHE_PORT = 54248;
+    private static final int SWARM_PORT = 54249;
+    private static final int PEER_PORT = 54250;
+    private static final int UPLOAD_PORT = 54253;
+    private static final int ADAPTIVE_PORT = 54254;
+    private static final int PARTIAL_PORT = 54255;
+    private static final int SLOW_PROXY_PORT = 54256;
+    private static final int STALLED_PORT = 54257;
+    private static final int BAD_SWARM_PORT = 54258;
+    private static final int BAD_PEER_PORT = 54259;
+    private static final int MALFORMED_PORT = 54261;
+    private static final long SERVER_START_SECONDS = 10;
+    private static final long SERVER_STOP_MILLIS = 5000;
     private String clientPath;
 
     @Before
     public void setUp() throws IOException {
         srcFile = new File(System.getProperty("user.dir") + FILE_1);
-        long timestamp = System.currentTimeMillis();
         clientPath = "/tmp" + "/" + srcFile.getName();
         targetFile = new File(clientPath);
     }
 
+    @After
+    public void tearDown() {
+        targetFile.delete();
+    }
+
     @Test
     public void downloadFile() throws InterruptedException {
 
@@ -47,4 +113,698 @@ public class PFTTest extends AbstractTest {
         targetFile.delete();
         thread.interrupt();
     }
+
+    @Test
+    public void downloadLargeFile() throws InterruptedException, IOException, JMException {
+        createSource("pft-large", ".large");
+
+        try (RunningServer server = startServer(new PFTServer(HOSTNAME, LARGE_FILE_PORT))) {
+            // chunks spread over several clients so the server has to resume partial writes
+            PFTClient pftClient = newClient(LARGE_FILE_PORT, CHUNK_SIZE);
+            download(pftClient);
+
+            ClientMetricsMBean metrics = pftClient.getMetrics();
+            assertTrue(metrics.getBytesReceived() >= LARGE_FILE_SIZE);
+            assertTrue(metrics.getChunksFetched() > 0);
+            assertEquals(0, metrics.getActiveStreams());
+            assertTrue(metrics.getChunkLatencyMicrosP50() <= metrics.getChunkLatencyMicrosP99());
+            // the server side is read over JMX
+            ObjectName name =
+                    new ObjectName("com.apidata.pft:type=PFTServer,port=" + LARGE_FILE_PORT);
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            assertTrue((Long) mbeanServer.getAttribute(name, "BytesSent") >= LARGE_FILE_SIZE);
+            assertTrue((Long) mbeanServer.getAttribute(name, "DiskReads") > 0);
+            assertTrue((Long) mbeanServer.getAttribute(name, "ChunksSent")
+                    >= metrics.getChunksFetched());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void stalledClient() throws InterruptedException, IOException {
+        createSource("pft-stalled", ".stalled");
+
+        // a client asking for more than it reads must not hold up the only reactor
+        ByteBuffer requests = ByteBuffer.allocate(8 * 1024 * 1024);
+        ManifestRequestMsg request = new ManifestRequestMsg("/", 1, 0);
+        while (requests.remaining() > 64) {
+            Message.encode(request, requests);
+        }
+        try (RunningServer server = startServer(new PFTServer(HOSTNAME, STALLED_PORT, 1));
+                Socket stalled = new Socket()) {
+            stalled.setReceiveBufferSize(4096);
+            stalled.connect(new InetSocketAddress(HOSTNAME, STALLED_PORT));
+            Thread writer = new Thread(() -> {
+                try {
+                    stalled.getOutputStream().write(requests.array(), 0, requests.position());
+                } catch (IOException e) {
+                    // closed at the end of the test
+                }
+            });
+            writer.setDaemon(true);
+            writer.start();
+            // nothing tells when the replies have filled the socket buffers, a few thousand
+            // select loops take well below this
+            Thread.sleep(2000);
+            download(newClient(STALLED_PORT, CHUNK_SIZE));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void malformedRequest() throws InterruptedException, IOException {
+        createSource("pft-malformed", ".malformed");
+
+        // a chunk request cut short, a file request with a negative path length and a batch
+        // request with a negative count
+        ByteBuffer truncated = ByteBuffer.allocate(6);
+        truncated.putInt(2).put(Message.VERSION).put(Message.FILE_CHUNK_REQUEST);
+        ByteBuffer negative = ByteBuffer.allocate(9);
+        negative.putInt(5).put(Message.VERSION).put(Message.FILE_REQUEST).putShort((short) -1)
+                .put(Message.COMPRESSION_NONE);
+        ByteBuffer batch = ByteBuffer.allocate(14);
+        batch.putInt(10).put(Message.VERSION).put(Message.FILE_BATCH_REQUEST).putInt(1)
+                .putInt(-1);
+        try (RunningServer server = startServer(new PFTServer(HOSTNAME, MALFORMED_PORT, 1))) {
+            for (ByteBuffer frame : new ByteBuffer[] {truncated, negative, batch}) {
+                try (Socket socket = new Socket(HOSTNAME, MALFORMED_PORT)) {
+                    socket.getOutputStream().write(frame.array());
+                    // only this connection is closed
+                    assertEquals(-1, socket.getInputStream().read());
+                }
+            }
+            download(newClient(MALFORMED_PORT, CHUNK_SIZE));
+        }
+    }
+
+    @Test
+    public void cachedDownload() throws InterruptedException, IOException {
+        createSource("pft-cached", ".cached");
+
+        PFTServer pftServer = new PFTServer(HOSTNAME, CACHE_PORT);
+        pftServer.setCacheSize(64 * 1024 * 1024);
+        try (RunningServer server = startServer(pftServer)) {
+            download(newClient(CACHE_PORT, CHUNK_SIZE));
+            targetFile.delete();
+
+            // the second client is served from the blocks the first one loaded
+            ServerMetricsMBean metrics = pftServer.getMetrics();
+            long served = metrics.getCacheBytesServed();
+            download(newClient(CACHE_PORT, CHUNK_SIZE));
+            assertTrue(metrics.getCacheBytesServed() - served >= LARGE_FILE_SIZE);
+            assertTrue(metrics.getCacheHitRatio() > 0);
+            assertTrue(metrics.getCacheBytesUsed() > 0);
+        }
+    }
+
+    @Test
+    public void mappedDownload() throws InterruptedException, IOException {
+        createSource("pft-mapped", ".mapped");
+        new File(srcFile.getAbsolutePath() + ".pft-crc").deleteOnExit();
+
+        PFTServer pftServer = new PFTServer(HOSTNAME, MAPPED_PORT);
+        // zero-copy sends from the reactors
+        pftServer.setIoThreads(0);
+        try (RunningServer server = startServer(pftServer)) {
+            PFTClient pftClient = newClient(MAPPED_PORT, CHUNK_SIZE);
+            pftClient.setMapped(true);
+            pftClient.setVerify(true);
+            download(pftClient);
+        }
+    }
+
+    @Test
+    public void compressedDownload()
+            throws InterruptedException, IOException, SocketCloseException {
+        srcFile = File.createTempFile("pft-compress", ".log");
+        srcFile.deleteOnExit();
+        new File(srcFile.getAbsolutePath() + ".pft-crc").deleteOnExit();
+        writeTextFile(srcFile, LARGE_FILE_SIZE);
+        targetFile = new File(clientPath + ".compressed");
+        targetFile.delete();
+
+        PFTServer pftServer = new PFTServer(HOSTNAME, COMPRESS_PORT);
+        try (RunningServer server = startServer(pftServer)) {
+            assertEquals(Message.COMPRESSION_DEFLATE,
+                    requestCompressed(COMPRESS_PORT, srcFile).getCompression());
+            PFTClient pftClient = newClient(COMPRESS_PORT, CHUNK_SIZE);
+            pftClient.setCompress(true);
+            pftClient.setVerify(true);
+            download(pftClient);
+            targetFile.delete();
+            ServerMetricsMBean metrics = pftServer.getMetrics();
+            long rawBytes = metrics.getCompressionRawBytes();
+            long bytes = metrics.getCompressionBytes();
+            assertTrue(rawBytes >= LARGE_FILE_SIZE);
+            assertTrue("compressed " + rawBytes + " bytes to " + bytes, bytes < rawBytes / 2);
+
+            // random bytes do not compress, the server falls back to raw chunks
+            createSource("pft-compress", ".compressed");
+            assertEquals(Message.COMPRESSION_NONE,
+                    requestCompressed(COMPRESS_PORT, srcFile).getCompression());
+            pftClient = newClient(COMPRESS_PORT, CHUNK_SIZE);
+            pftClient.setCompress(true);
+            download(pftClient);
+            assertEquals(rawBytes, metrics.getCompressionRawBytes());
+        }
+    }
+
+    @Test
+    public void rateLimitedDownload() throws InterruptedException, IOException {
+        createSource("pft-rate", ".rate");
+
+        PFTServer pftServer = new PFTServer(HOSTNAME, RATE_PORT);
+        pftServer.setRateLimit(20 * 1024 * 1024);
+        pftServer.setClientRateLimit(10 * 1024 * 1024);
+        try (RunningServer server = startServer(pftServer)) {
+            long startTime = System.nanoTime();
+            download(newClient(RATE_PORT, CHUNK_SIZE));
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            // all ten connections share the client limit, a slow run only lowers the measured rate
+            ServerMetricsMBean metrics = pftServer.getMetrics();
+            assertTrue(metrics.getRateLimitWaits() > 0);
+            long allowed = (long) (10 * 1024 * 1024 * seconds) + 1024 * 1024;
+            assertTrue(metrics.getBytesSent() + " bytes in " + seconds + " secs",
+                    metrics.getBytesSent() <= allowed * 1.1);
+        }
+    }
+
+    @Test
+    public void compressedPartialWrites() throws InterruptedException, IOException {
+        srcFile = File.createTempFile("pft-partial", ".bin");
+        srcFile.deleteOnExit();
+        writeMixedFile(srcFile, LARGE_FILE_SIZE);
+        targetFile = new File(clientPath + ".partial");
+        targetFile.delete();
+
+        // one chunk larger than the socket buffers, read slowly, so frames are written in
+        // several goes; nothing verifies the copy but the comparison
+        try (RunningServer server = startServer(new PFTServer(HOSTNAME, PARTIAL_PORT));
+                ServerSocket proxy = startSlowProxy(SLOW_PROXY_PORT, PARTIAL_PORT)) {
+            PFTClient pftClient = new PFTClient(HOSTNAME, SLOW_PROXY_PORT,
+                    srcFile.getAbsolutePath(), targetFile.getAbsolutePath(), LARGE_FILE_SIZE, 1);
+            pftClient.setCompress(true);
+            download(pftClient);
+        }
+    }
+
+    @Test
+    public void adaptiveDownload() throws InterruptedException, IOException {
+        createSource("pft-adaptive", ".adaptive");
+
+        // a rate limit stretches the transfer over several control intervals
+        PFTServer pftServer = new PFTServer(HOSTNAME, ADAPTIVE_PORT);
+        pftServer.setRateLimit(16 * 1024 * 1024);
+        try (RunningServer server = startServer(pftServer)) {
+            PFTClient pftClient = new PFTClient(HOSTNAME, ADAPTIVE_PORT,
+                    srcFile.getAbsolutePath(), targetFile.getAbsolutePath(), 1024 * 1024, 8);
+            pftClient.setAdaptive(true);
+            download(pftClient);
+            // it starts with fewer streams than workers and grows them while the goodput does
+            ClientMetricsMBean metrics = pftClient.getMetrics();
+            assertTrue(metrics.getWorkerParks() > 0);
+            assertTrue(metrics.getStreamLimitChanges() > 0);
+        }
+    }
+
+    @Test
+    public void treeDownload() throws InterruptedException, IOException {
+        Path serverDir = Files.createTempDirectory("pft-tree");
+        Path clientDir = Files.createTempDirectory("pft-tree-copy");
+        // many small files spread over nested directories, a few large and an empty one
+        for (int i = 0; i < 300; i++) {
+            File file = serverDir.resolve("d" + i % 7 + "/e" + i % 3 + "/small-" + i).toFile();
+            file.getParentFile().mkdirs();
+            writeRandomFile(file, 1 + i * 97);
+        }
+        writeRandomFile(serverDir.resolve("large-1").toFile(), 3 * 1024 * 1024 + 123);
+        writeTextFile(serverDir.resolve("d1/large-2").toFile(), 5 * 1024 * 1024);
+        writeRandomFile(serverDir.resolve("d2/empty").toFile(), 0);
+        writeRandomFile(serverDir.resolve("large-1.pft-crc").toFile(), 16);
+        writeRandomFile(serverDir.resolve("d3/part.pft-journal").toFile(), 16);
+        writeRandomFile(serverDir.resolve("d3/part.pft-delta").toFile(), 16);
+        writeRandomFile(serverDir.resolve("d4/in.pft-upload.7").toFile(), 16);
+
+        try (RunningServer server = startServer(new PFTServer(HOSTNAME, TREE_PORT))) {
+            PFTClient pftClient = new PFTClient(HOSTNAME, TREE_PORT, serverDir.toString(),
+                    clientDir.toString(), 2 * 1024 * 1024, 4);
+            pftClient.setTree(true);
+            assertTrue(pftClient.doWork());
+            int[] files = new int[1];
+            Files.walk(serverDir).filter(Files::isRegularFile).forEach(file -> {
+                File copy = clientDir.resolve(serverDir.relativize(file)).toFile();
+                String name = file.getFileName().toString();
+                if (name.matches(".*\\.pft-(crc|journal|delta|upload\\.\\d+)")) {
+                    assertFalse(copy.exists());
+                    return;
+                }
+                try {
+                    assertTrue(copy.toString(), Arrays.equals(Files.readAllBytes(file),
+                            Files.readAllBytes(copy.toPath())));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                assertEquals(file.toFile().lastModified() / 1000, copy.lastModified() / 1000);
+                files[0]++;
+            });
+            assertEquals(303, files[0]);
+        } finally {
+            deleteTree(serverDir);
+            deleteTree(clientDir);
+        }
+    }
+
+    @Test
+    public void streamsDownload() throws InterruptedException, IOException {
+        createSource("pft-streams", ".streams");
+
+        try (RunningServer server = startServer(new PFTServer(HOSTNAME, STREAMS_PORT))) {
+            // more streams than pooled connections, all on the few threads of the engine
+            PFTClient pftClient = newClient(STREAMS_PORT, 1024 * 1024);
+            pftClient.setStreams(32);
+            download(pftClient);
+            assertEquals(0, pftClient.getMetrics().getActiveStreams());
+            targetFile.delete();
+
+            // the engine was closed with the last transfer, the next one starts it again
+            pftClient = newClient(STREAMS_PORT, 1024 * 1024);
+            pftClient.setStreams(32);
+            download(pftClient);
+        }
+    }
+
+    @Test
+    public void replicasDownload() throws InterruptedException, IOException {
+        createSource("pft-replicas", ".replicas");
+
+        PFTServer primary = new PFTServer(HOSTNAME, PRIMARY_PORT);
+        PFTServer replica = new PFTServer(HOSTNAME, REPLICA_PORT);
+        // one replica drops every connection right after the handshake, one is not there at all
+        try (RunningServer primaryServer = startServer(primary);
+                RunningServer replicaServer = startServer(replica);
+                ServerSocket proxy = startFlakyProxy(FLAKY_REPLICA_PORT, REPLICA_PORT,
+                        Integer.MAX_VALUE, 1024)) {
+            PFTClient pftClient = new PFTClient(HOSTNAME, PRIMARY_PORT,
+                    srcFile.getAbsolutePath(), targetFile.getAbsolutePath(), CHUNK_SIZE, 2);
+            pftClient.setReplicas(Arrays.asList(HOSTNAME + ":" + REPLICA_PORT,
+                    HOSTNAME + ":" + FLAKY_REPLICA_PORT, HOSTNAME + ":" + DEAD_REPLICA_PORT));
+            download(pftClient);
+            assertTrue(primary.getMetrics().getBytesSent() > 0);
+            assertTrue(replica.getMetrics().getBytesSent() > 0);
+        }
+    }
+
+    @Test
+    public void swarmDownload() throws InterruptedException, IOException {
+        createSource("pft-swarm", ".swarm");
+
+        PFTServer origin = new PFTServer(HOSTNAME, SWARM_PORT);
+        PFTClient[] clients = new PFTClient[3];
+        try (RunningServer server = startServer(origin)) {
+            // every client after the first fetches from the ones before it
+            for (int i = 0; i < clients.length; i++) {
+                targetFile = new File(clientPath + ".swarm" + i);
+                targetFile.delete();
+                clients[i] = new PFTClient(HOSTNAME, SWARM_PORT, srcFile.getAbsolutePath(),
+                        targetFile.getAbsolutePath(), CHUNK_SIZE, 2);
+                clients[i].setPeerPort(PEER_PORT + i);
+                download(clients[i]);
+            }
+            assertTrue(origin.getMetrics().getBytesSent() >= LARGE_FILE_SIZE);
+            assertTrue(origin.getMetrics().getBytesSent() < 2L * LARGE_FILE_SIZE);
+        } finally {
+            for (int i = 0; i < clients.length; i++) {
+                if (clients[i] != null) {
+                    clients[i].stopSwarm();
+                }
+                new File(clientPath + ".swarm" + i).delete();
+            }
+        }
+    }
+
+    @Test
+    public void corruptPeer() throws InterruptedException, IOException {
+        createSource("pft-bad-peer", ".badpeer");
+
+        PFTServer origin = new PFTServer(HOSTNAME, BAD_SWARM_PORT);
+        PFTClient[] clients = new PFTClient[2];
+        File peerCopy = new File(clientPath + ".badpeer0");
+        try (RunningServer server = startServer(origin)) {
+            targetFile = peerCopy;
+            targetFile.delete();
+            clients[0] = new PFTClient(HOSTNAME, BAD_SWARM_PORT, srcFile.getAbsolutePath(),
+                    targetFile.getAbsolutePath(), CHUNK_SIZE, 2);
+            clients[0].setPeerPort(BAD_PEER_PORT);
+            download(clients[0]);
+
+            // the first client goes on serving its copy, now with a corrupted block
+            try (RandomAccessFile raf = new RandomAccessFile(peerCopy, "rw")) {
+                byte[] garbage = new byte[4096];
+                Arrays.fill(garbage, (byte) 0x5a);
+                raf.seek(3 * 1024 * 1024 + 100);
+                raf.write(garbage);
+            }
+            targetFile = new File(clientPath + ".badpeer1");
+            targetFile.delete();
+            clients[1] = new PFTClient(HOSTNAME, BAD_SWARM_PORT, srcFile.getAbsolutePath(),
+                    targetFile.getAbsolutePath(), CHUNK_SIZE, 2);
+            clients[1].setPeerPort(BAD_PEER_PORT + 1);
+            download(clients[1]);
+        } finally {
+            for (PFTClient client : clients) {
+                if (client != null) {
+                    client.stopSwarm();
+                }
+            }
+            peerCopy.delete();
+        }
+    }
+
+    @Test
+    public void uploadFile() throws InterruptedException, IOException, SocketCloseException {
+        srcFile = File.createTempFile("pft-upload", ".bin");
+        srcFile.deleteOnExit();
+        writeRandomFile(srcFile, LARGE_FILE_SIZE);
+        Path uploadDir = Files.createTempDirectory("pft-uploads");
+        targetFile = uploadDir.resolve("sub/upload.bin").toFile();
+
+        PFTServer pftServer = new PFTServer(HOSTNAME, UPLOAD_PORT);
+        pftServer.setUploadDir(uploadDir.toString());
+        try (RunningServer server = startServer(pftServer)) {
+            PFTClient pftClient = new PFTClient(HOSTNAME, UPLOAD_PORT,
+                    targetFile.getAbsolutePath(), srcFile.getAbsolutePath(), CHUNK_SIZE, 4);
+            pftClient.setUpload(true);
+            download(pftClient);
+            assertArrayEquals(new String[] {targetFile.getName()},
+                    targetFile.getParentFile().list());
+            assertTrue(pftServer.getMetrics().getBytesUploaded() >= LARGE_FILE_SIZE);
+
+            // an upload there is no room for is refused
+            try (SocketChannel channel =
+                    SocketChannel.open(new InetSocketAddress(HOSTNAME, UPLOAD_PORT))) {
+                Message.sendMessage(channel, new UploadRequestMsg(targetFile.getAbsolutePath(),
+                        Long.MAX_VALUE));
+                assertEquals(0, ((UploadResponseMsg) Message.nextMsgFromSocket(channel,
+                        ByteBuffer.allocate(PFTConstants.BUFFER_SIZE))).getUploadId());
+            }
+
+            // nothing is written outside the upload directory
+            File outside = new File(uploadDir.getParent().toFile(), "pft-outside.bin");
+            pftClient = new PFTClient(HOSTNAME, UPLOAD_PORT, outside.getAbsolutePath(),
+                    srcFile.getAbsolutePath(), CHUNK_SIZE, 4);
+            pftClient.setUpload(true);
+            assertFalse(pftClient.doWork());
+            assertFalse(outside.exists());
+        } finally {
+            deleteTree(uploadDir);
+        }
+    }
+
+    @Test
+    public void resumeDownload() throws InterruptedException, IOException {
+        createSource("pft-resume", ".resume");
+        File journal = new File(targetFile.getAbsolutePath() + ".pft-journal");
+
+        // pretend the first half is already on disk, it is left as zeros to tell it apart
+        long half = LARGE_FILE_SIZE / 2;
+        try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+            raf.writeLong(PFTConstants.JOURNAL_MAGIC);
+            raf.writeLong(LARGE_FILE_SIZE);
+            raf.writeLong(srcFile.lastModified());
+            raf.writeLong(0);
+            raf.writeLong(half);
+        }
+
+        try (RunningServer server = startServer(new PFTServer(HOSTNAME, RESUME_PORT))) {
+            PFTClient pftClient = newClient(RESUME_PORT, CHUNK_SIZE);
+            pftClient.setResume(true);
+            assertTrue(pftClient.doWork());
+            assertFalse("journal must be removed once complete", journal.exists());
+
+            byte[] src = Files.readAllBytes(srcFile.toPath());
+            byte[] target = Files.readAllBytes(targetFile.toPath());
+            assertEquals(src.length, target.length);
+            for (int i = 0; i < target.length; i++) {
+                assertEquals("byte " + i, i < half ? 0 : src[i], target[i]);
+            }
+        } finally {
+            journal.delete();
+        }
+    }
+
+    @Test
+    public void verifyDownload() throws InterruptedException, IOException {
+        createSource("pft-verify", ".verify");
+        File checksums = new File(srcFile.getAbsolutePath() + ".pft-crc");
+        checksums.deleteOnExit();
+
+        try (RunningServer server = startServer(new PFTServer(HOSTNAME, VERIFY_PORT))) {
+            PFTClient pftClient = newClient(VERIFY_PORT, CHUNK_SIZE);
+            pftClient.setVerify(true);
+            download(pftClient);
+            assertTrue("checksums must be cached next to the file", checksums.exists());
+        }
+        targetFile.delete();
+
+        // a block that never matches its checksum fails the download after the retries
+        try (RandomAccessFile raf = new RandomAccessFile(checksums, "rw")) {
+            raf.seek(checksums.length() - 4);
+            int checksum = raf.readInt();
+            raf.seek(checksums.length() - 4);
+            raf.writeInt(checksum + 1);
+        }
+        try (RunningServer server = startServer(new PFTServer(HOSTNAME, CORRUPT_PORT))) {
+            PFTClient pftClient = newClient(CORRUPT_PORT, CHUNK_SIZE);
+            pftClient.setVerify(true);
+            assertFalse(pftClient.doWork());
+        }
+    }
+
+    @Test
+    public void deltaDownload() throws InterruptedException, IOException {
+        createSource("pft-delta", ".delta");
+
+        // a stale copy with a modified region, an insertion and a deletion
+        byte[] bytes = Files.readAllBytes(srcFile.toPath());
+        byte[] inserted = new byte[777];
+        new Random(1).nextBytes(inserted);
+        byte[] stale = new byte[bytes.length + inserted.length - 3000];
+        System.arraycopy(bytes, 0, stale, 0, 10000000);
+        Arrays.fill(stale, 5000000, 5001000, (byte) 1);
+        System.arraycopy(inserted, 0, stale, 10000000, inserted.length);
+        System.arraycopy(bytes, 10000000, stale, 10000777, 10000000);
+        System.arraycopy(bytes, 20003000, stale, 20000777, bytes.length - 20003000);
+
+        try (RunningServer server = startServer(new PFTServer(HOSTNAME, DELTA_PORT))) {
+            // verify mode only takes whole checksum blocks from the copy, still a fraction
+            for (boolean verify : new boolean[] { false, true }) {
+                Files.write(targetFile.toPath(), stale);
+                PFTClient pftClient = newClient(DELTA_PORT, CHUNK_SIZE);
+                pftClient.setDelta(true);
+                pftClient.setVerify(verify);
+                download(pftClient);
+                assertFalse(new File(targetFile.getAbsolutePath() + ".pft-delta").exists());
+                long received = pftClient.getMetrics().getBytesReceived();
+                assertTrue("fetched " + received + " bytes", received > 0
+                        && received < LARGE_FILE_SIZE / 4);
+            }
+        }
+    }
+
+    @Test
+    public void retryDroppedConnections() throws InterruptedException, IOException {
+        createSource("pft-retry", ".retry");
+
+        // the first connections break in the middle of a piece
+        try (RunningServer server = startServer(new PFTServer(HOSTNAME, RETRY_PORT));
+                ServerSocket proxy = startFlakyProxy(PROXY_PORT, RETRY_PORT, 3,
+                        2 * 1024 * 1024)) {
+            download(new PFTClient(HOSTNAME, PROXY_PORT, srcFile.getAbsolutePath(),
+                    targetFile.getAbsolutePath(), CHUNK_SIZE));
+        }
+    }
+
+    /**
+     * Asks for the file the way the client does, offering to take deflated chunks, and returns
+     * the answer of the server.
+     */
+    private static FileResponseMsg requestCompressed(int port, File file)
+            throws IOException, SocketCloseException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(HOSTNAME, port))) {
+            Message.sendMessage(channel,
+                    new FileRequestMsg(file.getAbsolutePath(), Message.COMPRESSION_DEFLATE));
+            return (FileResponseMsg) Message.nextMsgFromSocket(channel,
+                    ByteBuffer.allocate(PFTConstants.BUFFER_SIZE));
+        }
+    }
+
+    /**
+     * Writes a random source file of {@link #LARGE_FILE_SIZE} bytes, to be downloaded to the
+     * client path with the given suffix.
+     */
+    private void createSource(String prefix, String suffix) throws IOException {
+        srcFile = File.createTempFile(prefix, ".bin");
+        srcFile.deleteOnExit();
+        writeRandomFile(srcFile, LARGE_FILE_SIZE);
+        targetFile = new File(clientPath + suffix);
+        targetFile.delete();
+    }
+
+    private PFTClient newClient(int port, int chunkSize) {
+        return new PFTClient(HOSTNAME, port, srcFile.getAbsolutePath(),
+                targetFile.getAbsolutePath(), chunkSize);
+    }
+
+    /**
+     * Runs the client and checks that the target is a copy of the source.
+     */
+    private void download(PFTClient pftClient) {
+        assertTrue("transfer failed", pftClient.doWork());
+        compare();
+    }
+
+    /**
+     * Runs the server on its own thread and waits until it listens, it is stopped when the
+     * returned handle is closed.
+     */
+    private static RunningServer startServer(PFTServer pftServer) throws InterruptedException {
+        Thread thread = new Thread(pftServer::doWork);
+        thread.start();
+        RunningServer server = new RunningServer(thread);
+        if (!pftServer.awaitRunning(SERVER_START_SECONDS, TimeUnit.SECONDS)) {
+            server.close();
+            throw new AssertionError("server did not start");
+        }
+        return server;
+    }
+
+    private static final class RunningServer implements AutoCloseable {
+        private final Thread thread;
+
+        RunningServer(Thread thread) {
+            this.thread = thread;
+        }
+
+        @Override
+        public void close() throws InterruptedException {
+            thread.interrupt();
+            // the port is free again once the server is done
+            thread.join(SERVER_STOP_MILLIS);
+        }
+    }
+
+    /**
+     * Forwards connections to the target port, cutting the first drops of them once they have
+     * sent dropAfter bytes back.
+     */
+    private static ServerSocket startFlakyProxy(int port, int targetPort, int drops,
+            long dropAfter) throws IOException {
+        ServerSocket proxy = new ServerSocket(port);
+        Thread thread = new Thread(() -> {
+            try {
+                for (int i = 0; ; i++) {
+                    Socket client = proxy.accept();
+                    Socket server = new Socket(HOSTNAME, targetPort);
+                    pump(client, server, Long.MAX_VALUE);
+                    pump(server, client, i < drops ? dropAfter : Long.MAX_VALUE);
+                }
+            } catch (IOException e) {
+                // proxy closed
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return proxy;
+    }
+
+    /**
+     * Forwards connections to the target port, passing what comes back on in small pieces with a
+     * pause after each, so the server finds its socket buffers full.
+     */
+    private static ServerSocket startSlowProxy(int port, int targetPort) throws IOException {
+        ServerSocket proxy = new ServerSocket(port);
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket client = proxy.accept();
+                    Socket server = new Socket();
+                    server.setReceiveBufferSize(16384);
+                    server.connect(new InetSocketAddress(HOSTNAME, targetPort));
+                    pump(client, server, Long.MAX_VALUE);
+                    pump(server, client, Long.MAX_VALUE, 16384, 1);
+                }
+            } catch (IOException e) {
+                // proxy closed
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return proxy;
+    }
+
+    private static void pump(Socket from, Socket to, long limit) {
+        pump(from, to, limit, 65536, 0);
+    }
+
+    private static void pump(Socket from, Socket to, long limit, int size, long pauseMillis) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[size];
+            long total = 0;
+            try (Socket in = from; Socket out = to) {
+                int len;
+                while (total < limit && (len = in.getInputStream().read(buffer)) > 0) {
+                    out.getOutputStream().write(buffer, 0, len);
+                    total += len;
+                    if (pauseMillis > 0) {
+                        Thread.sleep(pauseMillis);
+                    }
+                }
+            } catch (IOException e) {
+                // either side closed
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        Files.walk(dir).sorted(Comparator.reverseOrder()).map(Path::toFile)
+                .forEach(File::delete);
+    }
+
+    private static void writeTextFile(File file, int size) throws IOException {
+        Random random = new Random(size);
+        StringBuilder text = new StringBuilder(size + 100);
+        while (text.length() < size) {
+            text.append("2024-01-01 00:00:").append(random.nextInt(60)).append(" INFO worker-")
+                    .append(random.nextInt(16)).append(" fetched chunk ")
+                    .append(random.nextInt(100000)).append('\n');
+        }
+        text.setLength(size);
+        Files.write(file.toPath(), text.toString().getBytes("US-ASCII"));
+    }
+
+    /**
+     * Writes compression frames of random hex digits, which compress to about half, between
+     * frames of random bytes, which do not compress at all.
+     */
+    private static void writeMixedFile(File file, int size) throws IOException {
+        byte[] bytes = new byte[size];
+        Random random = new Random(size);
+        random.nextBytes(bytes);
+        for (int i = 0; i < size; i++) {
+            if (i / PFTConstants.COMPRESSION_FRAME_SIZE % 2 == 0) {
+                bytes[i] = (byte) Character.forDigit(random.nextInt(16), 16);
+            }
+        }
+        Files.write(file.toPath(), bytes);
+    }
+
+    private static void writeRandomFile(File file, int size) throws IOException {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(bytes);
+        }
+    }
 }